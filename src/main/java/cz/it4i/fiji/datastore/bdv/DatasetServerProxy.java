@@ -16,6 +16,7 @@ import javax.ws.rs.ProcessingException;
 import org.janelia.saalfeldlab.n5.DataBlock;
 
 import cz.it4i.fiji.datastore.rest_client.DatasetRegisterServiceClient;
+import cz.it4i.fiji.datastore.rest_client.RESTClientFactory;
 import lombok.RequiredArgsConstructor;
 
 @RequiredArgsConstructor
@@ -23,7 +24,7 @@ class DatasetServerProxy<T> implements DatasetServer<T> {
 
 	private static final int MAX_ATTEMPTS = 10;
 
-	private final DatasetRegisterServiceClient datasetRegisterService;
+	private final String datasetRegisterServiceURL;
 
 	private final DatasetServerId datasetServerId;
 
@@ -52,6 +53,8 @@ class DatasetServerProxy<T> implements DatasetServer<T> {
 
 	private DatasetServer<T> getInnerServer() throws IOException {
 		if (innerServer == null) {
+			DatasetRegisterServiceClient datasetRegisterService = RESTClientFactory
+				.create(datasetRegisterServiceURL, DatasetRegisterServiceClient.class);
 			innerServer = new DatasetServerAdapter<>(startDatasetServer(
 				datasetRegisterService, datasetServerId.getUuid(), datasetServerId
 					.getResolution(), datasetServerId.getVersion(), "read", 10000l));
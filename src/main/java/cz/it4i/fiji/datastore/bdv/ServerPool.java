@@ -12,12 +12,10 @@ import java.util.Map;
 
 import bdv.img.hdf5.Util;
 import cz.it4i.fiji.datastore.core.HPCDatastoreImageLoaderMetaData;
-import cz.it4i.fiji.datastore.rest_client.DatasetRegisterServiceClient;
-import cz.it4i.fiji.datastore.rest_client.RESTClientFactory;
 
 class ServerPool<T> {
 
-	private DatasetRegisterServiceClient datasetRegisterService;
+	private String datasetRegisterServiceURL;
 
 	private Map<DatasetServerId, DatasetServer<T>> servers =
 		new HashMap<>();
@@ -27,7 +25,7 @@ class ServerPool<T> {
 	
 	ServerPool(String baseUrl, HPCDatastoreImageLoaderMetaData metadata)
 	{
-		datasetRegisterService = RESTClientFactory.create(baseUrl, DatasetRegisterServiceClient.class);
+		datasetRegisterServiceURL = baseUrl;
 		this.metadata = metadata;
 	}
 
@@ -38,7 +36,7 @@ class ServerPool<T> {
 			level);
 
 		return servers.computeIfAbsent(datasetServerId,
-			$1 -> new DatasetServerProxy<>(datasetRegisterService, datasetServerId));
+			$1 -> new DatasetServerProxy<>(datasetRegisterServiceURL, datasetServerId));
 	}
 
 	private DatasetServerId constructDatasetServerId(ViewSetupValues setupValues, int level) {
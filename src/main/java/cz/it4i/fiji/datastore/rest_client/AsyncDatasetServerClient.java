@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2023 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore.rest_client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.apache.cxf.jaxrs.client.WebClient;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Reads and writes single blocks of a DatasetServer (the same requests as
+ * {@link DatasetServerClient#readBlock} and
+ * {@link DatasetServerClient#writeBlock}) without holding the calling thread
+ * for the round trip. The methods return right away, the returned stages
+ * complete when the response has been processed, so one thread can keep many
+ * blocks in flight, best over the shared connection pool (see
+ * {@link RESTClientFactory#pooledConnections}). At most {@link #maxInFlight}
+ * requests are in flight at a time, the requests beyond are queued and sent as
+ * the ones in flight complete; the caller never waits, not even when it sends
+ * from the completion of another request.
+ */
+@Log4j2
+public class AsyncDatasetServerClient {
+
+	public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+	private final WebClient baseClient;
+
+	private final DataType dataType;
+
+	private final int maxInFlight;
+
+	private final Semaphore inFlight;
+
+	/** the requests waiting for room in flight, in the order of their sending */
+	private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+	/** how many times the draining of the waiting requests has been asked for */
+	private final AtomicInteger drainRequests = new AtomicInteger();
+
+	public AsyncDatasetServerClient(String url, DataType dataType) {
+		this(url, dataType, WireCompression.RAW, WireCompression.DEFAULT_LEVEL,
+			DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	/**
+	 * @param url the URL of the DatasetServer (as of its
+	 *          {@link DatasetServerClient})
+	 * @param compression the wire compression of the blocks, see
+	 *          {@link WireCompressionFilter}
+	 * @param maxInFlight how many requests can be in flight at a time
+	 */
+	public AsyncDatasetServerClient(String url, DataType dataType,
+		WireCompression compression, int level, int maxInFlight)
+	{
+		if (maxInFlight <= 0) {
+			throw new IllegalArgumentException(
+				"The number of requests in flight must be positive, got " +
+					maxInFlight);
+		}
+		this.baseClient = RESTClientFactory.createWebClient(url, compression,
+			level);
+		this.dataType = dataType;
+		this.maxInFlight = maxInFlight;
+		this.inFlight = new Semaphore(maxInFlight);
+	}
+
+	/**
+	 * Reads the block, the stage completes with null if the block is missing
+	 * (as {@link Routines#readBlock} returns) or with an {@link IOException} if
+	 * the request fails.
+	 */
+	public <T> CompletionStage<DataBlock<T>> readBlock(long[] gridPosition,
+		int timepoint, int channel, int angle)
+	{
+		WebClient client = blockClient(gridPosition, timepoint, channel, angle)
+			.accept(MediaType.APPLICATION_OCTET_STREAM);
+		return send("readBlock", gridPosition, () -> client.rx().get(),
+			response -> {
+				if (response.getStatus() != Status.OK.getStatusCode()) {
+					log.warn("readBlock({}) - status = {}, msg = {}", "" + response
+						.getStatus(), Routines.getText(response.readEntity(
+							InputStream.class)));
+					return null;
+				}
+				@SuppressWarnings("unchecked")
+				DataBlock<T> result = (DataBlock<T>) DataBlockRoutines
+					.constructDataBlock(gridPosition, response, dataType);
+				return result;
+			});
+	}
+
+	/**
+	 * Writes the block, a null block marks the block at the grid position as
+	 * missing. The stage completes with an {@link IOException} if the request
+	 * fails.
+	 */
+	public CompletionStage<Void> writeBlock(long[] gridPosition,
+		DataBlock<?> dataBlock, int timepoint, int channel, int angle)
+	{
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (DataOutputStream os = new DataOutputStream(baos)) {
+			BatchedBlocks.writeBlock(os, dataBlock);
+		}
+		catch (IOException exc) {
+			// cannot happen with the stream in memory
+			throw new IllegalStateException(exc);
+		}
+		log.debug("writeBlock coord=[{},{},{}],bytes={}", gridPosition[0],
+			gridPosition[1], gridPosition[2], baos.size());
+
+		WebClient client = blockClient(gridPosition, timepoint, channel, angle);
+		Entity<byte[]> entity = Entity.entity(baos.toByteArray(),
+			MediaType.APPLICATION_OCTET_STREAM_TYPE);
+		return send("writeBlock", gridPosition, () -> client.rx().post(entity),
+			response -> {
+				if (response.getStatusInfo().getFamily() != Status.Family.SUCCESSFUL) {
+					throw new IOException(String.format(
+						"writeBlock(%d,%d,%d) - status = %d, msg = %s", gridPosition[0],
+						gridPosition[1], gridPosition[2], response.getStatus(), response
+							.getStatusInfo().getReasonPhrase()));
+				}
+				return null;
+			});
+	}
+
+	public <T> CompletionStage<Void> writeBlock(DataBlock<T> dataBlock,
+		int timepoint, int channel, int angle)
+	{
+		return writeBlock(dataBlock.getGridPosition(), dataBlock, timepoint,
+			channel, angle);
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/** how many requests are in flight now */
+	public int getInFlight() {
+		return maxInFlight - inFlight.availablePermits();
+	}
+
+	/** how many requests are waiting for room in flight now */
+	public int getWaiting() {
+		return waiting.size();
+	}
+
+	private WebClient blockClient(long[] gridPosition, int timepoint,
+		int channel, int angle)
+	{
+		return WebClient.fromClient(baseClient).path(gridPosition[0]).path(
+			gridPosition[1]).path(gridPosition[2]).path(timepoint).path(channel)
+			.path(angle);
+	}
+
+	/**
+	 * Queues the request to be sent once there is room for it in flight and
+	 * returns right away. The room is freed when the response is processed (and
+	 * closed). The failures of the request complete the stage with an
+	 * {@link IOException}.
+	 */
+	private <R> CompletableFuture<R> send(String name, long[] gridPosition,
+		Supplier<CompletionStage<Response>> request,
+		ResponseProcessor<R> processor)
+	{
+		CompletableFuture<R> result = new CompletableFuture<>();
+		waiting.add(() -> sendNow(name, gridPosition, request, processor, result));
+		drain();
+		return result;
+	}
+
+	/**
+	 * Sends the waiting requests while there is room in flight. Only one thread
+	 * drains at a time, the others (also a completion sending more requests from
+	 * within the draining) only ask the draining one for another round, so the
+	 * caller is not held and the completions do not nest.
+	 */
+	private void drain() {
+		if (drainRequests.getAndIncrement() != 0) {
+			return;
+		}
+		int rounds = 1;
+		do {
+			while (!waiting.isEmpty() && inFlight.tryAcquire()) {
+				Runnable next = waiting.poll();
+				if (next == null) {
+					inFlight.release();
+					break;
+				}
+				next.run();
+			}
+			rounds = drainRequests.addAndGet(-rounds);
+		}
+		while (rounds != 0);
+	}
+
+	/** sends the request that has got its room in flight */
+	private <R> void sendNow(String name, long[] gridPosition,
+		Supplier<CompletionStage<Response>> request,
+		ResponseProcessor<R> processor, CompletableFuture<R> result)
+	{
+		CompletionStage<Response> sent;
+		try {
+			sent = request.get();
+		}
+		catch (RuntimeException exc) {
+			inFlight.release();
+			result.completeExceptionally(asIOException(name, gridPosition, exc));
+			drain();
+			return;
+		}
+		sent.whenComplete((response, exc) -> {
+			R value = null;
+			Throwable failure = exc;
+			if (failure == null) {
+				try {
+					value = processor.process(response);
+				}
+				catch (IOException | RuntimeException processingExc) {
+					failure = processingExc;
+				}
+				finally {
+					response.close();
+				}
+			}
+			// freed before the stage completes, its dependents may send more requests
+			inFlight.release();
+			drain();
+			if (failure != null) {
+				result.completeExceptionally(asIOException(name, gridPosition,
+					failure));
+			}
+			else {
+				result.complete(value);
+			}
+		});
+	}
+
+	private interface ResponseProcessor<R> {
+
+		R process(Response response) throws IOException;
+	}
+
+	private static IOException asIOException(String name, long[] gridPosition,
+		Throwable exc)
+	{
+		if (exc instanceof CompletionException && exc.getCause() != null) {
+			exc = exc.getCause();
+		}
+		if (exc instanceof IOException) {
+			return (IOException) exc;
+		}
+		return new IOException(String.format("%s(%d,%d,%d) - %s", name,
+			gridPosition[0], gridPosition[1], gridPosition[2], exc.getMessage()),
+			exc);
+	}
+}
@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2023 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore.rest_client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+
+/**
+ * Batched block requests list the coordinates of the requested blocks in the
+ * request body instead of in the URL path, so one request can carry tens of
+ * thousands of blocks.
+ * <p>
+ * The body starts with the number of blocks followed by six integers per block
+ * (x, y, z grid position, time, channel, angle), all big-endian. For reading
+ * ({@link #READ_PATH}) that is the whole body, and the response is the usual
+ * stream of blocks in the order of the coordinates: a header with x, y, z size
+ * of the block followed by its data, or a header -1, -1, -1 for a missing
+ * block. For writing ({@link #WRITE_PATH}) the coordinates are followed by the
+ * blocks (headers and data) in the same order.
+ */
+public final class BatchedBlocks {
+
+	public static final String READ_PATH = "blocks/read";
+
+	public static final String WRITE_PATH = "blocks/write";
+
+	public static final int COORDINATES_PER_BLOCK = 6;
+
+	private BatchedBlocks() {}
+
+	/** size in bytes of the coordinates part of a body with the given number of blocks */
+	public static int coordinatesByteSize(int noOfBlocks) {
+		return Integer.BYTES + noOfBlocks * COORDINATES_PER_BLOCK * Integer.BYTES;
+	}
+
+	public static byte[] encodeCoordinates(List<long[]> gridPositions,
+		int time, int channel, int angle)
+	{
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(coordinatesByteSize(
+			gridPositions.size()));
+		try {
+			writeCoordinates(new DataOutputStream(baos), gridPositions, time, channel,
+				angle);
+		}
+		catch (IOException exc) {
+			// never happens with a ByteArrayOutputStream
+			throw new IllegalStateException(exc);
+		}
+		return baos.toByteArray();
+	}
+
+	public static void writeCoordinates(DataOutput out, List<long[]> gridPositions,
+		int time, int channel, int angle) throws IOException
+	{
+		out.writeInt(gridPositions.size());
+		for (long[] pos : gridPositions) {
+			out.writeInt((int) pos[0]);
+			out.writeInt((int) pos[1]);
+			out.writeInt((int) pos[2]);
+			out.writeInt(time);
+			out.writeInt(channel);
+			out.writeInt(angle);
+		}
+	}
+
+	/**
+	 * Reads the coordinates part of a body, returns x, y, z, time, channel, angle
+	 * for every block.
+	 */
+	public static List<int[]> readCoordinates(DataInput in) throws IOException {
+		int noOfBlocks = in.readInt();
+		if (noOfBlocks < 0) {
+			throw new IOException("Negative number of blocks: " + noOfBlocks);
+		}
+		List<int[]> result = new ArrayList<>(noOfBlocks);
+		for (int i = 0; i < noOfBlocks; i++) {
+			int[] coords = new int[COORDINATES_PER_BLOCK];
+			for (int j = 0; j < COORDINATES_PER_BLOCK; j++) {
+				coords[j] = in.readInt();
+			}
+			result.add(coords);
+		}
+		return result;
+	}
+
+	/** writes the header and the data of the block, or the missing-block header for null */
+	public static void writeBlock(DataOutput out, DataBlock<?> block)
+		throws IOException
+	{
+		if (block == null) {
+			for (int i = 0; i < 3; i++) {
+				out.writeInt(-1);
+			}
+			return;
+		}
+		for (int size : block.getSize()) {
+			out.writeInt(size);
+		}
+		out.write(block.toByteBuffer().array());
+	}
+}
@@ -25,14 +25,25 @@ public final class DataBlockRoutines {
 	public static DataBlock<?> constructDataBlock(long[] gridPosition,
 		Response response, DataType dataType) throws IOException
 	{
-		InputStream is = response.readEntity(InputStream.class);
+		return constructDataBlock(gridPosition, response.readEntity(
+			InputStream.class), dataType);
+	}
+
+	/**
+	 * Reads one block (header and data) from the stream, returns null if the
+	 * header says the block is missing.
+	 */
+	public static DataBlock<?> constructDataBlock(long[] gridPosition,
+		InputStream is, DataType dataType) throws IOException
+	{
 		DataInputStream dis = new DataInputStream(is);
 		int[] size = new int[3];
 		for (int i = 0; i < 3; i++) {
 			size[i] = dis.readInt();
-			if (size[i] < 0) {
-				return null;
-			}
+		}
+		// whole header is consumed so that a next block can follow in the stream
+		if (size[0] < 0 || size[1] < 0 || size[2] < 0) {
+			return null;
 		}
 
 
@@ -66,6 +77,19 @@ public final class DataBlockRoutines {
 		}
 	}
 
+	/**
+	 * Returns true if the first length bytes of the data are all zero, such a
+	 * block can be written as missing (the header -1,-1,-1 with no data) since a
+	 * missing block reads back as zeros.
+	 */
+	public static boolean isAllZero(byte[] data, int length) {
+		int or = 0;
+		for (int i = 0; i < length; i++) {
+			or |= data[i];
+		}
+		return or == 0;
+	}
+
 	private static int readFully(InputStream in, byte[] b) throws IOException {
 		int n = 0;
 		while (n < b.length) {
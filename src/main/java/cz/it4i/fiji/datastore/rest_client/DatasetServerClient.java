@@ -59,6 +59,25 @@ public interface DatasetServerClient {
 		@PathParam(TIME_PARAM) int time, @PathParam(CHANNEL_PARAM) int channel,
 		@PathParam(ANGLE_PARAM) int angle);
 
+	/**
+	 * Reads blocks listed in the body, see {@link BatchedBlocks} for the format
+	 * of the body and of the response.
+	 */
+	@Path("/" + BatchedBlocks.READ_PATH)
+	@POST
+	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+	@Produces(MediaType.APPLICATION_OCTET_STREAM)
+	Response readBlocks(byte[] coordinates);
+
+	/**
+	 * Writes blocks listed in the body, see {@link BatchedBlocks} for the format
+	 * of the body.
+	 */
+	@Path("/" + BatchedBlocks.WRITE_PATH)
+	@POST
+	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+	Response writeBlocks(byte[] data);
+
 	//@formatter:off
 	@Path("/datatype"
 			+"/{" + TIME_PARAM + "}"
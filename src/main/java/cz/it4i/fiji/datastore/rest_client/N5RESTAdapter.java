@@ -23,6 +23,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -35,6 +36,7 @@ import javax.ws.rs.core.Response.Status;
 
 import net.imglib2.util.Cast;
 
+import org.apache.cxf.jaxrs.client.WebClient;
 import org.janelia.saalfeldlab.n5.Compression;
 import org.janelia.saalfeldlab.n5.DataBlock;
 import org.janelia.saalfeldlab.n5.DataType;
@@ -50,6 +52,7 @@ import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.log4j.Log4j2;
 import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
 import mpicbg.spim.data.generic.sequence.BasicImgLoader;
@@ -75,6 +78,10 @@ public class N5RESTAdapter {
 
 	private static final long DEFAULT_DATASERVER_TIMEOUT = 60000l;
 
+	/** the header -1,-1,-1 of a missing block */
+	private static final byte[] MISSING_BLOCK = { -1, -1, -1, -1, -1, -1, -1, -1,
+		-1, -1, -1, -1 };
+
 	@Getter
 	private final DatasetDTO dto;
 
@@ -82,6 +89,20 @@ public class N5RESTAdapter {
 
 	private final PerAnglesChannels perAnglesChannels;
 
+	/** compression of the blocks on the wire to the DatasetServers */
+	@Getter
+	@Setter
+	private WireCompression wireCompression = WireCompression.RAW;
+
+	@Getter
+	@Setter
+	private int wireCompressionLevel = WireCompression.DEFAULT_LEVEL;
+
+	/** all-zero blocks are written as missing, only their header is sent */
+	@Getter
+	@Setter
+	private boolean sparseWrites = false;
+
 	public N5RESTAdapter(AbstractSequenceDescription<?, ?, ?> seq,
 		ViewRegistrations viewRegistrations, int[][] resolutions,
 		int[][] blockDimensions,
@@ -172,16 +193,21 @@ public class N5RESTAdapter {
 
 		private boolean alreadyCreated;
 
-		private DatasetRegisterServiceClient registerServiceClient;
-		
-		private final Map<Integer, DatasetServerClient> level2serverClient =
-			new HashMap<>();
+		/**
+		 * the URLs of the started DatasetServers, their clients are taken from
+		 * the RESTClientFactory for every use
+		 */
+		private final Map<Integer, String> level2serverURL = new HashMap<>();
 
 		private final Map<String, DatasetAttributes> path2Attributes =
 			new HashMap<>();
 
 		private long dataserverTimeout;
 
+		private final AtomicLong sparseBlocks = new AtomicLong();
+
+		private final AtomicLong savedBytes = new AtomicLong();
+
 		public N5RESTWriter(String url, long aDataserverTimeout) {
 			this.url = url;
 			this.uuid = readUUID();
@@ -229,7 +255,18 @@ public class N5RESTAdapter {
 			DatasetServerClient client = getServerClient(act.getLevelID());
 			
 			long[] pos = dataBlock.getGridPosition();
-		
+
+			byte[] data = dataBlock.toByteBuffer().array();
+			if (sparseWrites && DataBlockRoutines.isAllZero(data, data.length)) {
+				log.debug("writeBlock path={},coord=[{}] as missing", pathName,
+					coordsAsString(dataBlock.getGridPosition()));
+				sparseBlocks.incrementAndGet();
+				savedBytes.addAndGet(data.length);
+				client.writeBlock(pos[0], pos[1], pos[2], act.getTimepointID(), act
+					.getChannelID(), act.getAngleID(), MISSING_BLOCK);
+				return;
+			}
+
 			ModifiedByteArrayOutputStream baos;
 			DataOutputStream os = new DataOutputStream(baos =
 				new ModifiedByteArrayOutputStream(getSizeOfElement(datasetAttributes
@@ -238,7 +275,7 @@ public class N5RESTAdapter {
 			for (int i = 0; i < dataBlock.getSize().length; i++) {
 				os.writeInt(dataBlock.getSize()[i]);
 			}
-			os.write(dataBlock.toByteBuffer().array());
+			os.write(data);
 			os.flush();
 			log.debug("writeBlock path={},coord=[{}],bytes={}", pathName,
 				coordsAsString(dataBlock.getGridPosition()), baos.size());
@@ -338,7 +375,12 @@ public class N5RESTAdapter {
 
 		@Override
 		public void close() {
-			for (DatasetServerClient dsc : level2serverClient.values()) {
+			if (sparseWrites) {
+				log.info("Sparse writes: {} all-zero blocks written as missing, {} Bytes saved",
+					sparseBlocks.get(), savedBytes.get());
+			}
+			for (String serverURL : level2serverURL.values()) {
+				DatasetServerClient dsc = serverClient(serverURL);
 				try {
 					dsc.stopDataServer();
 				}
@@ -355,28 +397,30 @@ public class N5RESTAdapter {
 			}
 		}
 
-		private synchronized DatasetRegisterServiceClient
-			getRegisterServiceClient()
-		{
-			if (registerServiceClient == null) {
-				registerServiceClient = RESTClientFactory.create(url,
-					DatasetRegisterServiceClient.class);
-			}
-			return registerServiceClient;
+		private DatasetRegisterServiceClient getRegisterServiceClient() {
+			return RESTClientFactory.create(url, DatasetRegisterServiceClient.class);
 		}
 
 		private synchronized DatasetServerClient getServerClient(int levelId)
 			throws IOException
 		{
-			DatasetServerClient result = level2serverClient.get(levelId);
-			if (result == null) {
+			String serverURL = level2serverURL.get(levelId);
+			if (serverURL == null) {
 				ResolutionLevel resolutionLevel = dto.getResolutionLevels()[levelId];
-				result = Routines.startDatasetServer(getRegisterServiceClient(), uuid
-					.toString(), resolutionLevel.getResolutions(), "latest",
-					OPERATION_MODE, dataserverTimeout);
-				level2serverClient.put(levelId, result);
+				DatasetServerClient started = Routines.startDatasetServer(
+					getRegisterServiceClient(), uuid.toString(), resolutionLevel
+						.getResolutions(), "latest", OPERATION_MODE, dataserverTimeout,
+					wireCompression, wireCompressionLevel);
+				serverURL = WebClient.client(started).getBaseURI().toString();
+				level2serverURL.put(levelId, serverURL);
+				return started;
 			}
-			return result;
+			return serverClient(serverURL);
+		}
+
+		private DatasetServerClient serverClient(String serverURL) {
+			return RESTClientFactory.create(serverURL, DatasetServerClient.class,
+				wireCompression, wireCompressionLevel);
 		}
 
 
@@ -10,25 +10,243 @@ package cz.it4i.fiji.datastore.rest_client;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.jaxrs.json.JacksonJaxbJsonProvider;
 
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
+import org.apache.cxf.Bus;
+import org.apache.cxf.BusFactory;
+import org.apache.cxf.jaxrs.client.Client;
+import org.apache.cxf.jaxrs.client.ClientConfiguration;
 import org.apache.cxf.jaxrs.client.JAXRSClientFactory;
+import org.apache.cxf.jaxrs.client.WebClient;
 import org.apache.cxf.message.Message;
+import org.apache.cxf.transport.http.HTTPConduit;
+import org.apache.cxf.transport.http.HTTPConduitFactory;
+import org.apache.cxf.transport.http.asyncclient.AsyncHTTPConduit;
+import org.apache.cxf.transport.http.asyncclient.AsyncHTTPConduitFactory;
+import org.apache.cxf.transports.http.configuration.ConnectionType;
+import org.apache.cxf.transports.http.configuration.HTTPClientPolicy;
 
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Creates the REST clients, the clients are thread-safe and so they are
+ * cached and handed out again for the same URL, type and wire compression.
+ * The callers ask for a client again for every use (a cache hit) rather than
+ * keep it. A client dropped from the cache is not closed, as other threads may
+ * still be using it, it is left to the garbage collector; its connections are
+ * those of the shared pool anyway. With {@link #pooledConnections}, the
+ * clients share one pool of keep-alive connections (of the Apache
+ * HttpAsyncClient conduit), whose limits are set with
+ * {@link #configureConnectionPool(int, int, long)}.
+ */
+@Log4j2
 public final class RESTClientFactory {
 
 	private RESTClientFactory() {}
 
+	/**
+	 * how many clients are cached, the least recently used ones beyond are
+	 * dropped
+	 */
+	public static volatile int maxCachedClients = 64;
+
+	/** the timeouts of the clients created from now on */
+	public static volatile long connectionTimeoutMillis = 30000;
+
+	public static volatile long receiveTimeoutMillis = 60000;
+
+	/**
+	 * if true, the clients created from now on use the shared connection pool,
+	 * otherwise they use the JDK HttpURLConnection (with its own keep-alive)
+	 */
+	public static volatile boolean pooledConnections = true;
+
+	/** the provider is thread-safe once configured, so all clients share it */
+	private static final JacksonJaxbJsonProvider JSON_PROVIDER =
+		new JacksonJaxbJsonProvider();
+	static {
+		JSON_PROVIDER.disable(SerializationFeature.WRAP_ROOT_VALUE).disable(
+			SerializationFeature.WRITE_SINGLE_ELEM_ARRAYS_UNWRAPPED);
+	}
+
+	private static final Map<ClientKey, Object> clients = new LinkedHashMap<
+		ClientKey, Object>(16, 0.75f, true)
+	{
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ClientKey, Object> eldest) {
+			// not closed, it may be still in use
+			return size() > maxCachedClients;
+		}
+	};
+
 	public static <T> T create(String url, Class<T> type) {
+		return create(url, type, WireCompression.RAW, WireCompression.DEFAULT_LEVEL);
+	}
+
+	/**
+	 * Returns the client that asks for the given compression of the block
+	 * streams and compresses the blocks it sends with it, see
+	 * {@link WireCompressionFilter}.
+	 */
+	public static <T> T create(String url, Class<T> type,
+		WireCompression compression, int level)
+	{
+		ClientKey key = new ClientKey(url, type, compression, level);
+		synchronized (clients) {
+			Object client = clients.get(key);
+			if (client != null) {
+				return type.cast(client);
+			}
+		}
+		// not to block the others while the client is being built
+		T client = newClient(url, type, compression, level);
+		synchronized (clients) {
+			Object cachedClient = clients.putIfAbsent(key, client);
+			if (cachedClient == null) {
+				return client;
+			}
+			// another thread has been faster, nobody else has got this one
+			close(client);
+			return type.cast(cachedClient);
+		}
+	}
+
+	/**
+	 * drops all cached clients, e.g. after the timeouts have been changed
+	 */
+	public static void clearCache() {
+		synchronized (clients) {
+			clients.clear();
+		}
+	}
+
+	static int cachedClients() {
+		synchronized (clients) {
+			return clients.size();
+		}
+	}
+
+	/**
+	 * Sets the limits of the shared pool of connections: how many connections
+	 * are open in total and to one host, and after how long an idle connection
+	 * is closed.
+	 */
+	public static void configureConnectionPool(int maxConnections,
+		int maxPerHost, long maxIdleMillis)
+	{
+		Map<String, Object> limits = new HashMap<>();
+		limits.put(AsyncHTTPConduitFactory.MAX_CONNECTIONS, maxConnections);
+		limits.put(AsyncHTTPConduitFactory.MAX_PER_HOST_CONNECTIONS, maxPerHost);
+		limits.put(AsyncHTTPConduitFactory.CONNECTION_MAX_IDLE, maxIdleMillis);
+		limits.put(AsyncHTTPConduitFactory.SO_KEEPALIVE, true);
+		Bus bus = BusFactory.getDefaultBus();
+		limits.forEach(bus::setProperty);
+		HTTPConduitFactory factory = bus.getExtension(HTTPConduitFactory.class);
+		if (factory instanceof AsyncHTTPConduitFactory) {
+			((AsyncHTTPConduitFactory) factory).update(limits);
+		}
+	}
+
+	/**
+	 * Returns a new WebClient of the url, set up as the clients returned by
+	 * {@link #create(String, Class, WireCompression, int)}. The WebClients keep
+	 * the request being built and so they are not cached, derive the clients of
+	 * the single requests with {@link WebClient#fromClient}.
+	 */
+	public static WebClient createWebClient(String url,
+		WireCompression compression, int level)
+	{
+		WebClient client = WebClient.create(url, providers(compression, level));
+		configure(client);
+		return client;
+	}
+
+	private static <T> T newClient(String url, Class<T> type,
+		WireCompression compression, int level)
+	{
+		T client = JAXRSClientFactory.create(url, type, providers(compression,
+			level), properties(), true);
+		configure(client);
+		return client;
+	}
+
+	private static void close(Object client) {
+		try {
+			((Client) client).close();
+		}
+		catch (RuntimeException exc) {
+			log.debug("Failed closing the client: {}", exc.getMessage());
+		}
+	}
+
+	private static List<Object> providers(WireCompression compression,
+		int level)
+	{
+		List<Object> providers = new ArrayList<>();
+		providers.add(JSON_PROVIDER);
+		if (compression != WireCompression.RAW) {
+			providers.add(new WireCompressionFilter(compression, level));
+		}
+		return providers;
+	}
+
+	private static Map<String, Object> properties() {
 		Map<String, Object> properties = new HashMap<>();
 		properties.put(Message.MAINTAIN_SESSION, true);
-		return JAXRSClientFactory.create(url, type, Collections.singletonList(
-			new JacksonJaxbJsonProvider().disable(
-				SerializationFeature.WRAP_ROOT_VALUE).disable(
-					SerializationFeature.WRITE_SINGLE_ELEM_ARRAYS_UNWRAPPED)), properties,
-			true);
+		if (pooledConnections) {
+			properties.put(AsyncHTTPConduit.USE_ASYNC, true);
+		}
+		return properties;
+	}
+
+	private static void configure(Object client) {
+		ClientConfiguration config = WebClient.getConfig(client);
+		config.getRequestContext().putAll(properties());
+		HTTPConduit conduit = config.getHttpConduit();
+		HTTPClientPolicy policy = new HTTPClientPolicy();
+		policy.setConnection(ConnectionType.KEEP_ALIVE);
+		policy.setConnectionTimeout(connectionTimeoutMillis);
+		policy.setReceiveTimeout(receiveTimeoutMillis);
+		conduit.setClient(policy);
 	}
 
+	private static class ClientKey {
+
+		final String url;
+
+		final Class<?> type;
+
+		final WireCompression compression;
+
+		final int level;
+
+		ClientKey(String url, Class<?> type, WireCompression compression,
+			int level)
+		{
+			this.url = url;
+			this.type = type;
+			this.compression = compression;
+			this.level = level;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof ClientKey)) return false;
+			ClientKey k = (ClientKey) o;
+			return url.equals(k.url) && type.equals(k.type) &&
+				compression == k.compression && level == k.level;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(url, type, compression, level);
+		}
+	}
 }
@@ -8,9 +8,13 @@
 package cz.it4i.fiji.datastore.rest_client;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.stream.Collectors;
 
 import javax.ws.rs.core.Response;
@@ -32,12 +36,27 @@ public final class Routines {
 		DatasetRegisterServiceClient registerService, String uuid,
 		int[] resolutions, String version, String mode, Long timeout)
 		throws IOException
+	{
+		return startDatasetServer(registerService, uuid, resolutions, version, mode,
+			timeout, WireCompression.RAW, WireCompression.DEFAULT_LEVEL);
+	}
+
+	/**
+	 * Starts the DatasetServer and returns its client that transfers the blocks
+	 * with the given wire compression.
+	 */
+	public static DatasetServerClient startDatasetServer(
+		DatasetRegisterServiceClient registerService, String uuid,
+		int[] resolutions, String version, String mode, Long timeout,
+		WireCompression compression, int level)
+		throws IOException
 	{
 		Response response = registerService.start(uuid.toString(), resolutions[0],
 			resolutions[1], resolutions[2], version, mode, timeout);
 		if (response.getStatus() == HttpStatus.SC_TEMPORARY_REDIRECT) {
 			String uri = response.getLocation().toString();
-			return RESTClientFactory.create(uri, DatasetServerClient.class);
+			return RESTClientFactory.create(uri, DatasetServerClient.class,
+				compression, level);
 
 		}
 		throw new IOException(String.format(
@@ -67,6 +86,61 @@ public final class Routines {
 		return result;
 	}
 
+	/**
+	 * Reads all blocks with one batched request, the returned list holds null for
+	 * the blocks that are missing on the server.
+	 */
+	public static <T> List<DataBlock<T>> readBlocks(DataType dataType,
+		DatasetServerClient datasetServer, List<long[]> gridPositions,
+		int timepoint, int channel, int angle)
+		throws IOException
+	{
+		Response response = datasetServer.readBlocks(BatchedBlocks
+			.encodeCoordinates(gridPositions, timepoint, channel, angle));
+		if (response.getStatus() != Status.OK.getStatusCode()) {
+			throw new IOException(String.format(
+				"readBlocks(%d blocks) - status = %d, msg = %s", gridPositions.size(),
+				response.getStatus(), getText((InputStream) response.getEntity())));
+		}
+		List<DataBlock<T>> result = new ArrayList<>(gridPositions.size());
+		try (InputStream is = response.readEntity(InputStream.class)) {
+			for (long[] pos : gridPositions) {
+				@SuppressWarnings("unchecked")
+				DataBlock<T> block = (DataBlock<T>) DataBlockRoutines
+					.constructDataBlock(pos, is, dataType);
+				result.add(block);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Writes all blocks with one batched request.
+	 */
+	public static void writeBlocks(DatasetServerClient datasetServer,
+		List<? extends DataBlock<?>> blocks, int timepoint, int channel, int angle)
+		throws IOException
+	{
+		List<long[]> gridPositions = blocks.stream().map(
+			DataBlock::getGridPosition).collect(Collectors.toList());
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream os = new DataOutputStream(baos);
+		BatchedBlocks.writeCoordinates(os, gridPositions, timepoint, channel,
+			angle);
+		for (DataBlock<?> block : blocks) {
+			BatchedBlocks.writeBlock(os, block);
+		}
+		os.flush();
+		log.debug("writeBlocks blocks={},bytes={}", blocks.size(), baos.size());
+
+		Response response = datasetServer.writeBlocks(baos.toByteArray());
+		if (response.getStatusInfo().getFamily() != Status.Family.SUCCESSFUL) {
+			throw new IOException(String.format(
+				"writeBlocks(%d blocks) - status = %d, msg = %s", blocks.size(),
+				response.getStatus(), response.getStatusInfo().getReasonPhrase()));
+		}
+	}
+
 	static String getText(InputStream entity) {
 		return new BufferedReader(new InputStreamReader(entity)).lines().collect(
 			Collectors.joining("\n"));
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2023 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore.rest_client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.xxhash.XXHashFactory;
+
+/**
+ * Compression of the block streams on the wire, negotiated with the usual HTTP
+ * content coding: a download asks for a coding with the
+ * {@value #ACCEPT_ENCODING} header and decodes the response according to its
+ * {@value #CONTENT_ENCODING} header (a server that does not know the coding
+ * just sends the blocks raw), an upload announces its coding with the
+ * {@value #CONTENT_ENCODING} header. The whole body is compressed as one stream,
+ * the block headers and the batched coordinates included.
+ */
+public enum WireCompression {
+
+	RAW("identity"), GZIP("gzip"), LZ4("lz4");
+
+	public static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+	public static final String CONTENT_ENCODING = "Content-Encoding";
+
+	/** the level that lets the codec decide */
+	public static final int DEFAULT_LEVEL = -1;
+
+	/** the token of this coding in the HTTP headers */
+	public final String encoding;
+
+	WireCompression(String encoding) {
+		this.encoding = encoding;
+	}
+
+	/**
+	 * Returns the compression of the given name (case insensitive, "none" is
+	 * accepted for RAW), e.g. as chosen in a dialog.
+	 */
+	public static WireCompression fromName(String name) {
+		if (name == null || name.equalsIgnoreCase("none")) {
+			return RAW;
+		}
+		return valueOf(name.toUpperCase());
+	}
+
+	/**
+	 * Returns the compression of the given {@value #CONTENT_ENCODING} header,
+	 * RAW for a missing header, or null for an unknown coding.
+	 */
+	public static WireCompression fromEncoding(String contentEncoding) {
+		if (contentEncoding == null || contentEncoding.isEmpty()) {
+			return RAW;
+		}
+		for (WireCompression c : values()) {
+			if (c.encoding.equalsIgnoreCase(contentEncoding.trim())) {
+				return c;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Wraps the stream of a body received with the given
+	 * {@value #CONTENT_ENCODING} header so that it reads the raw blocks.
+	 */
+	public static InputStream decoding(String contentEncoding, InputStream is)
+		throws IOException
+	{
+		WireCompression c = fromEncoding(contentEncoding);
+		if (c == null) {
+			throw new IOException("Unsupported " + CONTENT_ENCODING + ": " +
+				contentEncoding);
+		}
+		return c.decompress(is);
+	}
+
+	/**
+	 * Wraps the stream of a body to be sent so that the raw blocks written into
+	 * it are compressed, the returned stream must be closed to finish the
+	 * compression.
+	 */
+	public OutputStream compress(OutputStream os, int level) throws IOException {
+		switch (this) {
+			case GZIP:
+				return new GZIPOutputStream(os, 1 << 16) {
+
+					{
+						def.setLevel(level == DEFAULT_LEVEL ? Deflater.DEFAULT_COMPRESSION
+							: level);
+					}
+				};
+			case LZ4:
+				// levels above zero use the slower high-compression variant
+				return new LZ4FrameOutputStream(os,
+					LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB, -1L, level > 0 ? LZ4Factory
+						.fastestInstance().highCompressor(level) : LZ4Factory
+							.fastestInstance().fastCompressor(), XXHashFactory
+								.fastestInstance().hash32(),
+					LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE);
+			default:
+				return os;
+		}
+	}
+
+	/** wraps the stream of a body compressed with this coding */
+	public InputStream decompress(InputStream is) throws IOException {
+		switch (this) {
+			case GZIP:
+				return new GZIPInputStream(is, 1 << 16);
+			case LZ4:
+				return new LZ4FrameInputStream(is);
+			default:
+				return is;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2023 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore.rest_client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+/**
+ * Applies the {@link WireCompression} to the block streams of a REST client
+ * (see {@link RESTClientFactory#create(String, Class, WireCompression, int)}):
+ * the octet-stream bodies of the requests are compressed, the compressed
+ * responses are decoded, and the compression is asked for in every request.
+ */
+public class WireCompressionFilter implements ClientRequestFilter,
+	WriterInterceptor, ReaderInterceptor
+{
+
+	private final WireCompression compression;
+
+	private final int level;
+
+	public WireCompressionFilter(WireCompression compression, int level) {
+		this.compression = compression;
+		this.level = level;
+	}
+
+	@Override
+	public void filter(ClientRequestContext requestContext) {
+		requestContext.getHeaders().putSingle(WireCompression.ACCEPT_ENCODING,
+			compression.encoding);
+	}
+
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context)
+		throws IOException
+	{
+		if (compression == WireCompression.RAW || !MediaType
+			.APPLICATION_OCTET_STREAM_TYPE.isCompatible(context.getMediaType()))
+		{
+			context.proceed();
+			return;
+		}
+		context.getHeaders().putSingle(WireCompression.CONTENT_ENCODING,
+			compression.encoding);
+		OutputStream os = context.getOutputStream();
+		OutputStream compressed = compression.compress(new NotClosing(os), level);
+		context.setOutputStream(compressed);
+		context.proceed();
+		// finishes the compressed stream, the body itself is closed by the client
+		compressed.close();
+		context.setOutputStream(os);
+	}
+
+	@Override
+	public Object aroundReadFrom(ReaderInterceptorContext context)
+		throws IOException
+	{
+		String encoding = context.getHeaders().getFirst(
+			WireCompression.CONTENT_ENCODING);
+		if (encoding != null) {
+			context.setInputStream(WireCompression.decoding(encoding, context
+				.getInputStream()));
+			context.getHeaders().remove(WireCompression.CONTENT_ENCODING);
+		}
+		return context.proceed();
+	}
+
+	private static class NotClosing extends java.io.FilterOutputStream {
+
+		NotClosing(OutputStream os) {
+			super(os);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
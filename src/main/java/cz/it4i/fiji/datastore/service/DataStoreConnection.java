@@ -23,8 +23,10 @@ public class DataStoreConnection {
 	final String datasetServerURL;
 	final long createdWithThisTimeout;
 
-	private long estEndOfLifeTimepoint;
-	final private Date datePrinter = new Date();
+	/** updated from any thread that uses the connection */
+	private volatile long estEndOfLifeTimepoint;
+	/** when the client has used the connection for the last time (the keep-alive pings are not counted) */
+	private volatile long lastUsedTimepoint;
 
 	public long timeWhenServerCloses() {
 		return estEndOfLifeTimepoint;
@@ -35,16 +37,25 @@ public class DataStoreConnection {
 	}
 
 	public void serverIsUsedNow() {
+		lastUsedTimepoint = System.currentTimeMillis();
+		estEndOfLifeTimepoint = lastUsedTimepoint + createdWithThisTimeout;
+	}
+
+	/** the server was contacted only to keep it alive, the client is not using it now */
+	public void serverIsRenewedNow() {
 		estEndOfLifeTimepoint = System.currentTimeMillis() + createdWithThisTimeout;
 	}
 
+	public long timeWhenLastUsed() {
+		return lastUsedTimepoint;
+	}
+
 
 	@Override
 	public String toString() {
-		datePrinter.setTime(estEndOfLifeTimepoint);
 		return datasetServerURL+" (with timeouts of "
 				+(createdWithThisTimeout/1000)+" seconds; closes likely at "
-				+datePrinter+")";
+				+new Date(estEndOfLifeTimepoint)+")";
 	}
 
 	@Override
@@ -53,6 +53,11 @@ public class DataStoreRequest {
 		return timeout;
 	}
 
+	public String getVersion()
+	{
+		return version;
+	}
+
 	public String createRequestURL()
 	{
 		return createRequestURL(URLwithPort,datasetUUID, rx,ry,rz, version,accessRegime,timeout);
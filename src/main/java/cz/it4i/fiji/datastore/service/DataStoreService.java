@@ -7,6 +7,7 @@
  ******************************************************************************/
 package cz.it4i.fiji.datastore.service;
 
+import org.scijava.Context;
 import org.scijava.log.LogService;
 import org.scijava.log.Logger;
 import org.scijava.plugin.Parameter;
@@ -16,11 +17,27 @@ import org.scijava.service.SciJavaService;
 import org.scijava.service.Service;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 @Plugin(type = Service.class)
 public class DataStoreService extends AbstractService implements SciJavaService
@@ -46,34 +63,32 @@ public class DataStoreService extends AbstractService implements SciJavaService
 	public int uncertaintyWindowMiliSeconds = 5000;
 
 	private static final int PREFERRED_MAX_STORED_SERVICES = 50;
-	private final Map<DataStoreRequest,DataStoreConnection> knownServices = new HashMap<>(PREFERRED_MAX_STORED_SERVICES);
+	private final Map<DataStoreRequest,DataStoreConnection> knownServices = new ConcurrentHashMap<>(PREFERRED_MAX_STORED_SERVICES);
+
+	/** the requests whose DatasetServer is being started right now, the same
+	    concurrent requests wait for it instead of starting another DatasetServer */
+	private final Map<DataStoreRequest,CompletableFuture<DataStoreConnection>> pendingServices = new ConcurrentHashMap<>();
 
+	/** safe to be called from multiple threads, see requestConnection() */
 	public String getActiveServingUrl(final DataStoreRequest request)
 	throws IOException
 	{
 		logger.debug("Processing request: "+request);
-		DataStoreConnection connection = knownServices.getOrDefault(request, null);
+		DataStoreConnection connection = knownServices.get(request);
 
 		//a "dying" connection?  (an existing connection that is about to timeout soon)
 		if (connection != null && connection.willServerCloseAfter(uncertaintyWindowMiliSeconds))
 		{
 			logger.debug("  - not using expired connection "+connection);
-			knownServices.remove(request);
+			if (knownServices.remove(request, connection)) metrics.expiries.increment();
 			connection = null;
 		}
 
 		//shall we open a new connection?
 		if (connection == null) {
-			logger.debug("  - requesting a brand new connection");
-
-			connection = new DataStoreConnection(
-					requestService( request.createRequestURL() ), request.getTimeout() );
-			knownServices.put(request, connection);
-
-			//try to clean up...
-			if (knownServices.size() > PREFERRED_MAX_STORED_SERVICES)
-				proneInactiveServices();
-		}
+			metrics.misses.increment();
+			connection = requestConnection(request);
+		} else metrics.hits.increment();
 
 		//hypothetically "reset" the timeout of the service
 		connection.serverIsUsedNow();
@@ -82,36 +97,325 @@ public class DataStoreService extends AbstractService implements SciJavaService
 		return connection.datasetServerURL;
 	}
 
+	/** the threads that wait for the DatasetServers requested asynchronously */
+	private final ExecutorService requesters = Executors.newCachedThreadPool(r -> {
+		final Thread t = new Thread(r, "DataStoreService requester");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * Like getActiveServingUrl() but returns immediately, the future completes with the URL
+	 * once the DatasetServer is running (or completes exceptionally with the IOException).
+	 * It allows to start several DatasetServers at the same time, and to do other work
+	 * meanwhile. The same concurrent requests still start only one DatasetServer.
+	 */
+	public CompletableFuture<String> getActiveServingUrlAsync(final DataStoreRequest request)
+	{
+		//a known connection is served right away
+		final DataStoreConnection connection = knownServices.get(request);
+		if (connection != null && !connection.willServerCloseAfter(uncertaintyWindowMiliSeconds)) {
+			metrics.hits.increment();
+			connection.serverIsUsedNow();
+			return CompletableFuture.completedFuture(connection.datasetServerURL);
+		}
+
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return getActiveServingUrl(request);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, requesters);
+	}
+
+	/**
+	 * Requests a new DatasetServer, unless the same request is already pending
+	 * in which case its outcome (the connection, or the failure) is awaited.
+	 */
+	private DataStoreConnection requestConnection(final DataStoreRequest request)
+	throws IOException
+	{
+		final CompletableFuture<DataStoreConnection> myService = new CompletableFuture<>();
+		final CompletableFuture<DataStoreConnection> pendingService = pendingServices.putIfAbsent(request, myService);
+		if (pendingService != null) {
+			logger.debug("  - waiting for the same request that is pending");
+			metrics.coalescedRequests.increment();
+			return awaitConnection(pendingService);
+		}
+
+		try {
+			//the same request might have been just served before this one became pending
+			DataStoreConnection connection = knownServices.get(request);
+			if (connection == null || connection.willServerCloseAfter(uncertaintyWindowMiliSeconds)) {
+				logger.debug("  - requesting a brand new connection");
+
+				final long spawnStart = System.nanoTime();
+				try {
+					connection = new DataStoreConnection(
+							requestService( request.createRequestURL() ), request.getTimeout() );
+				} catch (IOException | RuntimeException e) {
+					metrics.spawnFailures.increment();
+					throw e;
+				}
+				metrics.spawned(System.nanoTime() - spawnStart);
+				//not to look expired to the others before it is used for the first time
+				connection.serverIsUsedNow();
+				knownServices.put(request, connection);
+
+				//try to clean up...
+				if (knownServices.size() > PREFERRED_MAX_STORED_SERVICES)
+					proneInactiveServices();
+			}
+			myService.complete(connection);
+			return connection;
+		} catch (IOException | RuntimeException e) {
+			myService.completeExceptionally(e);
+			throw e;
+		} finally {
+			pendingServices.remove(request, myService);
+		}
+	}
+
+	private static DataStoreConnection awaitConnection(final CompletableFuture<DataStoreConnection> service)
+	throws IOException
+	{
+		try {
+			return service.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a DatasetServer");
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new IOException("Failed requesting a DatasetServer: "+cause.getMessage(), cause);
+		}
+	}
+
 	public void proneInactiveServices()
 	{
 		int origSize = knownServices.size();
 
 		final long criticalTime = System.currentTimeMillis() + uncertaintyWindowMiliSeconds;
-		knownServices.entrySet().removeIf(e -> e.getValue().timeWhenServerCloses() < criticalTime);
+		knownServices.entrySet().removeIf(e -> {
+			if (e.getValue().timeWhenServerCloses() >= criticalTime) return false;
+			metrics.evictions.increment();
+			return true;
+		});
 
 		logger.debug("removed "+(origSize-knownServices.size())+" expired connections");
 	}
 
+	/**
+	 * Forgets the DatasetServer that is serving this request, e.g. because it has
+	 * stopped responding; the next getActiveServingUrl() will thus request a new one.
+	 */
+	public void forgetServingUrl(final DataStoreRequest request)
+	{
+		if (knownServices.remove(request) != null) {
+			metrics.forgotten.increment();
+			logger.debug("forgot the connection for request: "+request);
+		}
+	}
+
 	public void serverIsUsedNow(final DataStoreRequest request)
 	{
-		final DataStoreConnection conn = knownServices.getOrDefault(request, null);
+		final DataStoreConnection conn = knownServices.get(request);
 		if (conn != null) conn.serverIsUsedNow();
 	}
 
-	final Date datePrinter = new Date();
+	// ----------------------------------------------
+	/**
+	 * if the keep-alive is started, the connections that the client has used within
+	 * this period are renewed shortly before they expire, the longer idle ones are let
+	 * to expire (and their DatasetServers to close)
+	 */
+	public int keepAliveMaxIdleMiliSeconds = 300000;
+
+	/** how often the keep-alive looks for the connections to be renewed */
+	public int keepAlivePeriodMiliSeconds = 1000;
+
+	private ScheduledExecutorService keepAlive = null;
+
+	/** how many callers have started the keep-alive and not stopped it yet */
+	private int keepAliveUsers = 0;
+
+	/** the callers of keepAliveWhileUsed(), by the requests of their connections */
+	private final List<DataStoreRequest> keepAliveUsersOfConnections = new ArrayList<>();
+
+	/**
+	 * Starts renewing the connections in use in the background, so that the DatasetServers
+	 * stay ready when the client pauses for a while (e.g. browsing a lazily loaded image),
+	 * instead of being let to close and started anew on the next request. It is opt-in,
+	 * as it keeps the DatasetServers busy also when the client no longer needs them.
+	 * The callers are counted, the keep-alive runs until all of them have called
+	 * stopKeepAlive().
+	 */
+	public synchronized void startKeepAlive()
+	{
+		if (keepAliveUsers++ > 0) return;
+		keepAlive = Executors.newSingleThreadScheduledExecutor(r -> {
+			final Thread t = new Thread(r, "DataStoreService keep-alive");
+			t.setDaemon(true);
+			return t;
+		});
+		keepAlive.scheduleWithFixedDelay(this::renewActiveServices,
+				keepAlivePeriodMiliSeconds, keepAlivePeriodMiliSeconds, TimeUnit.MILLISECONDS);
+		logger.debug("started the keep-alive of connections used within the last "
+				+(keepAliveMaxIdleMiliSeconds/1000)+" seconds");
+	}
+
+	/** ends the keep-alive of one caller of startKeepAlive() */
+	public synchronized void stopKeepAlive()
+	{
+		if (keepAliveUsers == 0) return;
+		if (--keepAliveUsers > 0) return;
+		keepAlive.shutdownNow();
+		keepAlive = null;
+		logger.debug("stopped the keep-alive");
+	}
+
+	/**
+	 * Starts the keep-alive for a caller that cannot tell when it is done, e.g. a lazily
+	 * loaded image: the caller is stopped once the connection of its 'request' is idle
+	 * for longer than keepAliveMaxIdleMiliSeconds (or is gone).
+	 */
+	public synchronized void keepAliveWhileUsed(final DataStoreRequest request)
+	{
+		startKeepAlive();
+		keepAliveUsersOfConnections.add(request);
+	}
+
+	/** stops the callers of keepAliveWhileUsed() whose connections are no longer used */
+	synchronized void stopKeepAliveOfIdleConnections(final long now)
+	{
+		final Iterator<DataStoreRequest> users = keepAliveUsersOfConnections.iterator();
+		while (users.hasNext()) {
+			final DataStoreConnection conn = knownServices.get(users.next());
+			if (conn != null && now - conn.timeWhenLastUsed() <= keepAliveMaxIdleMiliSeconds) continue;
+			users.remove();
+			stopKeepAlive();
+		}
+	}
+
+	public synchronized boolean isKeepingAlive()
+	{
+		return keepAlive != null;
+	}
+
+	@Override
+	public void dispose()
+	{
+		//regardless of how many callers have not stopped it
+		synchronized (this) {
+			keepAliveUsersOfConnections.clear();
+			keepAliveUsers = 0;
+			if (keepAlive != null) keepAlive.shutdownNow();
+			keepAlive = null;
+		}
+		requesters.shutdownNow();
+		withdrawMetrics();
+	}
+
+	/** renews the connections in use that would otherwise be considered dying soon */
+	void renewActiveServices()
+	{
+		final long now = System.currentTimeMillis();
+		for (Map.Entry<DataStoreRequest,DataStoreConnection> e : knownServices.entrySet())
+		{
+			final DataStoreConnection conn = e.getValue();
+			if (now - conn.timeWhenLastUsed() > keepAliveMaxIdleMiliSeconds) continue;
+			if (!conn.willServerCloseAfter(uncertaintyWindowMiliSeconds + 2L*keepAlivePeriodMiliSeconds)) continue;
+
+			if (pingService(conn.datasetServerURL)) {
+				conn.serverIsRenewedNow();
+				metrics.renewals.increment();
+				logger.debug("renewed the connection "+conn);
+			} else {
+				if (knownServices.remove(e.getKey(), conn)) metrics.lostLeases.increment();
+				logger.debug("forgot the unresponsive connection "+conn);
+			}
+		}
+		stopKeepAliveOfIdleConnections(now);
+	}
+
+	/** contacts the DatasetServer with a cheap request, returns false if it has not responded */
+	static boolean pingService(final String datasetServerURL)
+	{
+		try {
+			final HttpURLConnection connection = (HttpURLConnection)new URL(datasetServerURL+"datatype/0/0/0").openConnection();
+			connection.setConnectTimeout(5000);
+			connection.setReadTimeout(5000);
+			//any answer (even an error one) tells the DatasetServer is there
+			connection.getResponseCode();
+			connection.disconnect();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// ----------------------------------------------
+	private final DataStoreServiceMetrics metrics =
+			new DataStoreServiceMetrics(knownServices::size, pendingServices::size);
+
+	/** the metrics are also registered as an MXBean under this name (if asked for and succeeded) */
+	private ObjectName metricsName = null;
+
+	public DataStoreServiceMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Registers the metrics also as an MXBean, until this service is disposed. It is
+	 * asked for only by the owners of long-lived contexts (e.g. the commands for the
+	 * context of Fiji): the MBean server keeps this service (and its context) alive,
+	 * the single-use contexts of the static transfer methods must not stay registered.
+	 * Several contexts can have their own DataStoreService, they are told apart in their names.
+	 */
+	public synchronized void publishMetrics()
+	{
+		if (metricsName != null) return;
+		try {
+			final ObjectName name = new ObjectName("cz.it4i.fiji.datastore:type=DataStoreService,id="
+					+Integer.toHexString(System.identityHashCode(this)));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+			metricsName = name;
+		} catch (JMException | SecurityException e) {
+			logger.warn("Metrics are not available over JMX: "+e.getMessage());
+		}
+	}
+
+	/** publishes the metrics of the DataStoreService of the 'ctx', if it has one */
+	public static void publishMetricsOf(final Context ctx)
+	{
+		final DataStoreService service = ctx.getService(DataStoreService.class);
+		if (service != null) service.publishMetrics();
+	}
+
+	private synchronized void withdrawMetrics()
+	{
+		if (metricsName == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+		} catch (JMException e) {
+			logger.debug("Failed unregistering the metrics: "+e.getMessage());
+		}
+		metricsName = null;
+	}
 
 	@Override
 	public String toString()
 	{
 		final long now = System.currentTimeMillis();
-		datePrinter.setTime(now);
 
 		final StringBuilder sb = new StringBuilder("Known connections at ");
-		sb.append(datePrinter).append(":\n");
-		for (DataStoreRequest req : knownServices.keySet())
+		sb.append(new Date(now)).append(":\n");
+		for (Map.Entry<DataStoreRequest,DataStoreConnection> e : knownServices.entrySet())
 		{
-			final DataStoreConnection conn = knownServices.get(req);
-			sb.append("  ").append(req).append("\n  -> ").append(conn);
+			final DataStoreConnection conn = e.getValue();
+			sb.append("  ").append(e.getKey()).append("\n  -> ").append(conn);
 
 			final long closingTime = conn.timeWhenServerCloses() - uncertaintyWindowMiliSeconds;
 			if (now > closingTime)
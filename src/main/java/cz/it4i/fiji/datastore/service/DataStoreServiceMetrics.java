@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2023 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Counts what the {@link DataStoreService} is doing with its cache of DatasetServers,
+ * mainly how often (and for how long) a new DatasetServer must be started. The counters
+ * are updated from any thread, and are readable any time via DataStoreService.getMetrics()
+ * or over JMX.
+ */
+public class DataStoreServiceMetrics implements DataStoreServiceMetricsMXBean {
+	DataStoreServiceMetrics(final IntSupplier liveLeases, final IntSupplier pendingRequests) {
+		this.liveLeases = liveLeases;
+		this.pendingRequests = pendingRequests;
+	}
+
+	private final IntSupplier liveLeases;
+	private final IntSupplier pendingRequests;
+
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+	final LongAdder coalescedRequests = new LongAdder();
+	final LongAdder spawns = new LongAdder();
+	final LongAdder spawnFailures = new LongAdder();
+	final LongAdder spawnNanos = new LongAdder();
+	final AtomicLong maxSpawnNanos = new AtomicLong();
+	final LongAdder expiries = new LongAdder();
+	final LongAdder evictions = new LongAdder();
+	final LongAdder forgotten = new LongAdder();
+	final LongAdder renewals = new LongAdder();
+	final LongAdder lostLeases = new LongAdder();
+
+	void spawned(final long nanos) {
+		spawns.increment();
+		spawnNanos.add(nanos);
+		maxSpawnNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	@Override
+	public long getHits() {
+		return hits.sum();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	@Override
+	public double getHitRate() {
+		final long h = getHits();
+		final long requests = h + getMisses();
+		return requests > 0 ? (double)h / requests : 0;
+	}
+
+	@Override
+	public long getCoalescedRequests() {
+		return coalescedRequests.sum();
+	}
+
+	@Override
+	public long getSpawns() {
+		return spawns.sum();
+	}
+
+	@Override
+	public long getSpawnFailures() {
+		return spawnFailures.sum();
+	}
+
+	@Override
+	public double getMeanSpawnMillis() {
+		final long n = getSpawns();
+		return n > 0 ? spawnNanos.sum() / 1e6 / n : 0;
+	}
+
+	@Override
+	public double getMaxSpawnMillis() {
+		return maxSpawnNanos.get() / 1e6;
+	}
+
+	@Override
+	public int getLiveLeases() {
+		return liveLeases.getAsInt();
+	}
+
+	@Override
+	public int getPendingRequests() {
+		return pendingRequests.getAsInt();
+	}
+
+	@Override
+	public long getExpiries() {
+		return expiries.sum();
+	}
+
+	@Override
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	@Override
+	public long getForgotten() {
+		return forgotten.sum();
+	}
+
+	@Override
+	public long getRenewals() {
+		return renewals.sum();
+	}
+
+	@Override
+	public long getLostLeases() {
+		return lostLeases.sum();
+	}
+
+	@Override
+	public void reset() {
+		hits.reset();
+		misses.reset();
+		coalescedRequests.reset();
+		spawns.reset();
+		spawnFailures.reset();
+		spawnNanos.reset();
+		maxSpawnNanos.set(0);
+		expiries.reset();
+		evictions.reset();
+		forgotten.reset();
+		renewals.reset();
+		lostLeases.reset();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("DatasetServers: %d live, %d pending; requests: %d hits, %d misses (hit rate %.1f %%),"
+				+ " %d coalesced; started %d servers (%d failed) taking %.0f ms on average, %.0f ms at most;"
+				+ " dropped %d expired, %d evicted, %d forgotten, %d unresponsive; keep-alive renewals: %d",
+				getLiveLeases(), getPendingRequests(), getHits(), getMisses(), 100 * getHitRate(),
+				getCoalescedRequests(), getSpawns(), getSpawnFailures(), getMeanSpawnMillis(), getMaxSpawnMillis(),
+				getExpiries(), getEvictions(), getForgotten(), getLostLeases(), getRenewals());
+	}
+}
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2023 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.datastore.service;
+
+/**
+ * The metrics of the cache of DatasetServers of one {@link DataStoreService},
+ * as they are seen over JMX (see {@link DataStoreServiceMetrics}).
+ */
+public interface DataStoreServiceMetricsMXBean {
+	/** the requests served with an already running DatasetServer */
+	long getHits();
+	/** the requests that had to wait for a DatasetServer to start */
+	long getMisses();
+	/** the hits among all requests, 0 if there was no request yet */
+	double getHitRate();
+	/** the misses that have waited for the same pending request, instead of starting another DatasetServer */
+	long getCoalescedRequests();
+
+	/** the DatasetServers started */
+	long getSpawns();
+	long getSpawnFailures();
+	double getMeanSpawnMillis();
+	double getMaxSpawnMillis();
+
+	/** the DatasetServers known to be running right now */
+	int getLiveLeases();
+	/** the DatasetServers being started right now */
+	int getPendingRequests();
+
+	/** the DatasetServers that were about to time out when they were asked for, and were dropped */
+	long getExpiries();
+	/** the DatasetServers dropped by the clean-up of the cache (proneInactiveServices()) */
+	long getEvictions();
+	/** the DatasetServers dropped by the clients, e.g. after they have stopped responding */
+	long getForgotten();
+	/** the renewals made by the keep-alive */
+	long getRenewals();
+	/** the DatasetServers dropped by the keep-alive as they have not responded */
+	long getLostLeases();
+
+	/** sets all counters to zero */
+	void reset();
+}
@@ -24,5 +24,6 @@ public class QueryDatasetServiceStatus implements Command {
 	@Override
 	public void run() {
 		mainLogger.info( dataStoreService );
+		mainLogger.info( dataStoreService.getMetrics() );
 	}
 }
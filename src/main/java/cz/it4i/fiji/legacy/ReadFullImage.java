@@ -15,7 +15,10 @@ import org.scijava.plugin.Plugin;
 
 import static cz.it4i.fiji.legacy.common.ImagePlusTransferrer.DEFAULT_TIMEOUT_PERIOD;
 import static cz.it4i.fiji.legacy.common.ImagePlusTransferrer.createResStr;
+import cz.it4i.fiji.datastore.rest_client.WireCompression;
 import cz.it4i.fiji.datastore.service.DataStoreService;
+import cz.it4i.fiji.legacy.common.AsyncBlockTransport;
+import cz.it4i.fiji.legacy.common.BlockTransport;
 import cz.it4i.fiji.legacy.common.ImagePlusTransferrer;
 import cz.it4i.fiji.rest.util.DatasetInfo;
 import org.scijava.Context;
@@ -56,6 +59,51 @@ public class ReadFullImage implements Command {
 			persistKey="datasetversion")
 	public String versionAsStr = "latest";
 
+	@Parameter(label = "Parallel connections:", min = "1", required = false,
+			description = "How many connections to the DatasetServer can be transferring at the same time.",
+			persistKey = "datasetparallelconnections")
+	public int parallelConnections = 1;
+
+	@Parameter(label = "Batched block requests:", required = false,
+			description = "Lists the blocks in the request body instead of in the URL, the DatasetServer must support it.",
+			persistKey = "datasetbatchedrequests")
+	public boolean batchedRequests = false;
+
+	@Parameter(label = "Wire compression:", choices = { "raw", "gzip", "lz4" }, required = false,
+			description = "Asks the DatasetServer to compress the blocks on the wire, a DatasetServer that cannot do it sends them raw.",
+			persistKey = "datasetwirecompression")
+	public String wireCompressionAsStr = "raw";
+
+	@Parameter(label = "Wire compression level:", min = "-1", max = "17", required = false,
+			description = "-1 lets the codec decide, otherwise 1-9 for gzip, or 1-17 for the slower high-compression lz4.",
+			persistKey = "datasetwirecompressionlevel")
+	public int wireCompressionLevel = -1;
+
+	@Parameter(label = "Adaptive transfers:", required = false,
+			description = "Tunes the size of the requests and the number of connections during the transfer, up to 8 connections or the parallel connections above if more.",
+			persistKey = "datasetadaptivetransfers")
+	public boolean adaptiveTransfers = false;
+
+	@Parameter(label = "Asynchronous transport:", required = false,
+			description = "Keeps many requests in flight from a few threads, with no thread waiting per connection.",
+			persistKey = "datasetasynctransport")
+	public boolean asyncTransport = false;
+
+	@Parameter(label = "Lazy loading:", required = false,
+			description = "Returns immediately an image whose blocks are downloaded only when they are accessed.",
+			persistKey = "datasetlazyloading")
+	public boolean lazyLoading = false;
+
+	@Parameter(label = "Lazy loading max cached blocks:", min = "1", required = false,
+			description = "How many blocks of the lazily loaded image are kept in the memory.",
+			persistKey = "datasetmaxcachedblocks")
+	public int maxCachedBlocks = 1024;
+
+	@Parameter(label = "Keep DatasetServers alive:", required = false,
+			description = "Renews the DatasetServers in use so they stay ready during pauses (e.g. with lazy loading), those idle for 5 minutes are let go.",
+			persistKey = "datasetkeepalive")
+	public boolean keepServersAlive = false;
+
 	/*
 	@Parameter(label = "Server alive timeout [miliseconds]:", min = "1", stepSize = "1000",
 			description = "How long inactivity period has to pass before the connection gets closed...",
@@ -78,7 +126,19 @@ public class ReadFullImage implements Command {
 	@Override
 	public void run() {
 		try {
-			outDatasetImg = new LocalReader(log.getContext()).readNow(URL,datasetID,
+			//the context of the command outlives it, its metrics are watched over JMX
+			DataStoreService.publishMetricsOf(log.getContext());
+			final LocalReader reader = new LocalReader(log.getContext());
+			reader.parallelConnections = parallelConnections;
+			reader.batchedRequests = batchedRequests;
+			reader.wireCompression = WireCompression.fromName(wireCompressionAsStr);
+			reader.wireCompressionLevel = wireCompressionLevel;
+			reader.adaptiveTransfers = adaptiveTransfers;
+			reader.asyncTransport = asyncTransport;
+			reader.lazyLoading = lazyLoading;
+			reader.maxCachedBlocks = maxCachedBlocks;
+			reader.keepServersAlive = keepServersAlive;
+			outDatasetImg = reader.readNow(URL,datasetID,
 					timepoint,channel,angle,
 					resolutionLevelsAsStr,versionAsStr,
 					DEFAULT_TIMEOUT_PERIOD /*timeout*/,verboseLog);
@@ -121,6 +181,54 @@ public class ReadFullImage implements Command {
 				resolutionLevelsAsStr, versionAsStr, serverTimeout, verboseLog);
 	}
 
+	public static
+	Dataset from(final String url, final String datasetID,
+	             final int timepoint, final int channel, final int angle,
+	             final String resolutionLevelsAsStr, final String versionAsStr,
+	             final int serverTimeout, final boolean verboseLog,
+	             final int parallelConnections)
+	throws IOException {
+		final LocalReader reader = new LocalReader();
+		reader.parallelConnections = parallelConnections;
+		return reader.readNow(url, datasetID, timepoint, channel, angle,
+				resolutionLevelsAsStr, versionAsStr, serverTimeout, verboseLog);
+	}
+
+
+	/** how long the DatasetServer of a lazily read image waits for a next access by default */
+	public static final int LAZY_SERVER_TIMEOUT = 120000;
+
+	/**
+	 * Returns immediately an image whose blocks are downloaded on their first access,
+	 * and of which at most 'maxCachedBlocks' blocks are kept in the memory.
+	 */
+	public static
+	Dataset lazilyFrom(final String url, final String datasetID,
+	                   final int timepoint, final int channel, final int angle,
+	                   final String resolutionLevelsAsStr, final String versionAsStr,
+	                   final int maxCachedBlocks)
+	throws IOException {
+		return lazilyFrom(url, datasetID, timepoint, channel, angle,
+				resolutionLevelsAsStr, versionAsStr, maxCachedBlocks, LAZY_SERVER_TIMEOUT);
+	}
+
+	/**
+	 * Like the above, the DatasetServer waits 'serverTimeout' ms for a next access before it
+	 * stops itself; an access after that (re-)starts a new one, just takes longer.
+	 */
+	public static
+	Dataset lazilyFrom(final String url, final String datasetID,
+	                   final int timepoint, final int channel, final int angle,
+	                   final String resolutionLevelsAsStr, final String versionAsStr,
+	                   final int maxCachedBlocks, final int serverTimeout)
+	throws IOException {
+		final LocalReader reader = new LocalReader();
+		reader.lazyLoading = true;
+		reader.maxCachedBlocks = maxCachedBlocks;
+		return reader.readNow(url, datasetID, timepoint, channel, angle,
+				resolutionLevelsAsStr, versionAsStr, serverTimeout, false);
+	}
+
 
 	static class LocalReader extends ImagePlusTransferrer {
 		/** intended for use in solo (without a valid scijava context) application */
@@ -134,6 +242,11 @@ public class ReadFullImage implements Command {
 			this.setContext(useThisCtx);
 		}
 
+		boolean lazyLoading = false;
+		int maxCachedBlocks = 1024;
+		boolean asyncTransport = false;
+		boolean keepServersAlive = false;
+
 		Dataset readNow(final String url, final String datasetID,
 		                final int timepoint, final int channel, final int angle,
 		                final String resolutionLevelsAsStr, final String versionAsStr,
@@ -147,6 +260,8 @@ public class ReadFullImage implements Command {
 			this.resolutionLevelsAsStr = resolutionLevelsAsStr;
 			this.versionAsStr = versionAsStr;
 			//this.timeout = serverTimeout;
+			//the lazy reading pauses between the accesses, the DatasetServer is to wait for them
+			if (lazyLoading) this.serverTimeout = serverTimeout;
 			this.verboseLog = verboseLog;
 			this.accessRegime = "read";
 			this.minX=0;
@@ -175,7 +290,25 @@ public class ReadFullImage implements Command {
 				throw new IOException("Cannot read at res level "+resolutionLevelsAsStr
 						+" because the dataset is not having this one.");
 
-			return this.readWithAType();
+			if (lazyLoading) {
+				final Dataset lazyImg = this.readLazilyWithAType(maxCachedBlocks);
+				//the image is read long after this command has finished, as long as it is browsed
+				if (keepServersAlive) this.dataStoreService.keepAliveWhileUsed(lastUsedRequest);
+				return lazyImg;
+			}
+
+			if (keepServersAlive) this.dataStoreService.startKeepAlive();
+			try {
+				if (!asyncTransport) return this.readWithAType();
+				try (BlockTransport t = new AsyncBlockTransport(2, maxTransfersInFlight, DEFAULT_TIMEOUT_PERIOD)) {
+					this.transport = t;
+					return this.readWithAType();
+				} finally {
+					this.transport = null;
+				}
+			} finally {
+				if (keepServersAlive) this.dataStoreService.stopKeepAlive();
+			}
 		}
 	}
 }
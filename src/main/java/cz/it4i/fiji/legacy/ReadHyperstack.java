@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2023 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.legacy;
+
+import net.imagej.Dataset;
+import net.imagej.DefaultDataset;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import cz.it4i.fiji.datastore.rest_client.WireCompression;
+import cz.it4i.fiji.datastore.service.DataStoreService;
+import cz.it4i.fiji.legacy.util.Imglib2Types;
+import cz.it4i.fiji.rest.util.DatasetInfo;
+import org.scijava.Context;
+import org.scijava.log.LogLevel;
+import org.scijava.log.LogService;
+import org.scijava.log.Logger;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+
+@Plugin(type = Command.class, headless = true, menuPath = "Plugins>HPC DataStore>Read hyperstack")
+public class ReadHyperstack implements Command {
+	@Parameter(label = "URL of a DatasetsRegisterService:", persistKey = "datasetserverurl")
+	public String URL;
+
+	@Parameter(label = "UUID of a dataset on that service:", persistKey = "datasetdatasetid")
+	public String datasetID;
+
+	@Parameter(label="first time point:", min="0",
+			description="In units of the respective dataset.",
+			persistKey="datasettimepoint")
+	public int firstTimepoint = 0;
+
+	@Parameter(label="last time point:", min="0",
+			description="In units of the respective dataset.",
+			persistKey="datasetlasttimepoint")
+	public int lastTimepoint = 0;
+
+	@Parameter(label="first channel:", min="0",
+			description="In units of the respective dataset.",
+			persistKey="datasetchannel")
+	public int firstChannel = 0;
+
+	@Parameter(label="last channel:", min="0",
+			description="In units of the respective dataset.",
+			persistKey="datasetlastchannel")
+	public int lastChannel = 0;
+
+	@Parameter(label="first angle:", min="0",
+			description="In units of the respective dataset.",
+			persistKey="datasetangle")
+	public int firstAngle = 0;
+
+	@Parameter(label="last angle:", min="0",
+			description="In units of the respective dataset.",
+			persistKey="datasetlastangle")
+	public int lastAngle = 0;
+
+	@Parameter(label = "Selected down-resolution:",
+			persistKey="datasetreslevel")
+	public String resolutionLevelsAsStr = "[1, 1, 1]";
+
+	@Parameter(label = "Selected version:",
+			description = "provide number, or keyword: latest, mixedLatest",
+			persistKey="datasetversion")
+	public String versionAsStr = "latest";
+
+	@Parameter(label = "Parallel stacks:", min = "1", required = false,
+			description = "How many stacks (time points, channels, angles) are read at the same time.",
+			persistKey = "datasetparallelstacks")
+	public int parallelStacks = 2;
+
+	@Parameter(label = "Parallel connections per stack:", min = "1", required = false,
+			description = "How many connections to the DatasetServer can be transferring one stack at the same time.",
+			persistKey = "datasetparallelconnections")
+	public int parallelConnections = 1;
+
+	@Parameter(label = "Batched block requests:", required = false,
+			description = "Lists the blocks in the request body instead of in the URL, the DatasetServer must support it.",
+			persistKey = "datasetbatchedrequests")
+	public boolean batchedRequests = false;
+
+	@Parameter(label = "Wire compression:", choices = { "raw", "gzip", "lz4" }, required = false,
+			description = "Asks the DatasetServer to compress the blocks on the wire, a DatasetServer that cannot do it sends them raw.",
+			persistKey = "datasetwirecompression")
+	public String wireCompressionAsStr = "raw";
+
+	@Parameter(label = "Wire compression level:", min = "-1", max = "17", required = false,
+			description = "-1 lets the codec decide, otherwise 1-9 for gzip, or 1-17 for the slower high-compression lz4.",
+			persistKey = "datasetwirecompressionlevel")
+	public int wireCompressionLevel = -1;
+
+	@Parameter(label = "Verbose reporting:", required = false,
+			description = "The change takes effect always during transfers and for future use of this dialog, not for the current use.",
+			persistKey="datasetverboselog")
+	public boolean verboseLog = false;
+
+	@Parameter(type = ItemIO.OUTPUT)
+	public Dataset outDatasetImg;
+
+	@Parameter
+	public LogService log;
+
+	@Override
+	public void run() {
+		try {
+			//the context of the command outlives it, its metrics are watched over JMX
+			DataStoreService.publishMetricsOf(log.getContext());
+			final HyperstackReader reader = new HyperstackReader(log.getContext());
+			reader.parallelStacks = parallelStacks;
+			reader.parallelConnections = parallelConnections;
+			reader.batchedRequests = batchedRequests;
+			reader.wireCompression = WireCompression.fromName(wireCompressionAsStr);
+			reader.wireCompressionLevel = wireCompressionLevel;
+			outDatasetImg = reader.readNow(URL,datasetID,
+					firstTimepoint,lastTimepoint, firstChannel,lastChannel, firstAngle,lastAngle,
+					resolutionLevelsAsStr,versionAsStr, verboseLog);
+			log.info("transfer is finished");
+		} catch (IOException e) {
+			log.error("Problem reading hyperstack: "+e.getMessage());
+		}
+	}
+
+
+	public static
+	Dataset from(final String url, final String datasetID,
+	             final int firstTimepoint, final int lastTimepoint,
+	             final int firstChannel, final int lastChannel,
+	             final int firstAngle, final int lastAngle,
+	             final String resolutionLevelsAsStr, final String versionAsStr)
+	throws IOException {
+		return new HyperstackReader().readNow(url, datasetID,
+				firstTimepoint,lastTimepoint, firstChannel,lastChannel, firstAngle,lastAngle,
+				resolutionLevelsAsStr, versionAsStr, false);
+	}
+
+	public static
+	Dataset from(final String url, final String datasetID,
+	             final int firstTimepoint, final int lastTimepoint,
+	             final int firstChannel, final int lastChannel,
+	             final int firstAngle, final int lastAngle,
+	             final String resolutionLevelsAsStr, final String versionAsStr,
+	             final int parallelStacks, final int parallelConnections)
+	throws IOException {
+		final HyperstackReader reader = new HyperstackReader();
+		reader.parallelStacks = parallelStacks;
+		reader.parallelConnections = parallelConnections;
+		return reader.readNow(url, datasetID,
+				firstTimepoint,lastTimepoint, firstChannel,lastChannel, firstAngle,lastAngle,
+				resolutionLevelsAsStr, versionAsStr, false);
+	}
+
+
+	/**
+	 * Reads the stacks of all the requested time points, channels and angles into one
+	 * 5D image X,Y,Z,C,T, where the angles are interleaved into the channel axis (all
+	 * channels of the first angle, then all channels of the second angle, etc.). The dataset
+	 * info is retrieved only once, and all stacks are read from the same DatasetServer
+	 * (one lease per resolution level and version), several stacks at the same time.
+	 */
+	static class HyperstackReader {
+		/** intended for use in solo (without a valid scijava context) application */
+		HyperstackReader() {
+			this(new Context(LogService.class,DataStoreService.class));
+		}
+
+		/** PREFERRED whenever appropriate context is available */
+		HyperstackReader(final Context useThisCtx) {
+			this.ctx = useThisCtx;
+		}
+
+		final Context ctx;
+		int parallelStacks = 2;
+		int parallelConnections = 1;
+		boolean batchedRequests = false;
+		WireCompression wireCompression = WireCompression.RAW;
+		int wireCompressionLevel = WireCompression.DEFAULT_LEVEL;
+
+		Dataset readNow(final String url, final String datasetID,
+		                final int firstTimepoint, final int lastTimepoint,
+		                final int firstChannel, final int lastChannel,
+		                final int firstAngle, final int lastAngle,
+		                final String resolutionLevelsAsStr, final String versionAsStr,
+		                final boolean verboseLog)
+		throws IOException {
+			final Logger myLogger = ctx.getService(LogService.class)
+					.subLogger("HPC LegacyImage Read", verboseLog ? LogLevel.INFO : LogLevel.ERROR);
+			if (ctx.getService(DataStoreService.class) == null)
+				throw new RuntimeException("Missing DataStoreService (is null) when reading hyperstack.");
+
+			myLogger.info("Reading "+datasetID+" from "+url);
+			final DatasetInfo di = DatasetInfo.createFrom(url, datasetID);
+			myLogger.info(di.toString());
+
+			final int tpMin = di.timepointIds.stream().reduce(Math::min).orElse(0);
+			final int tpMax = di.timepointIds.stream().reduce(Math::max).orElse(0);
+			checkRangeOrThrow("time points", firstTimepoint, lastTimepoint, tpMin, tpMax);
+			checkRangeOrThrow("channels", firstChannel, lastChannel, 0, di.channels-1);
+			checkRangeOrThrow("angles", firstAngle, lastAngle, 0, di.angles-1);
+
+			final int noOfTimepoints = lastTimepoint-firstTimepoint+1;
+			final int noOfChannels = lastChannel-firstChannel+1;
+			final int noOfAngles = lastAngle-firstAngle+1;
+
+			//the first stack reader holds the lease, the others share it
+			final List<StackTransferrer> readers = new ArrayList<>(noOfTimepoints*noOfChannels*noOfAngles);
+			for (int t = firstTimepoint; t <= lastTimepoint; ++t)
+				for (int a = firstAngle; a <= lastAngle; ++a)
+					for (int c = firstChannel; c <= lastChannel; ++c) {
+						final StackTransferrer r = new StackTransferrer(ctx, myLogger, di);
+						r.setup(url,datasetID, t,c,a, resolutionLevelsAsStr,versionAsStr, "read", verboseLog);
+						r.parallelConnections = parallelConnections;
+						r.batchedRequests = batchedRequests;
+						r.wireCompression = wireCompression;
+						r.wireCompressionLevel = wireCompressionLevel;
+						if (!readers.isEmpty()) r.shareServerWith(readers.get(0));
+						readers.add(r);
+					}
+
+			return readAll(readers, di.voxelType, noOfChannels*noOfAngles, noOfTimepoints, myLogger);
+		}
+
+		<T extends NativeType<T> & RealType<T>>
+		Dataset readAll(final List<StackTransferrer> readers, final String voxelType,
+		                final int noOfViews, final int noOfTimepoints, final Logger myLogger)
+		throws IOException {
+			final Imglib2Types.TypeHandler<T> th;
+			try {
+				@SuppressWarnings("unchecked")
+				final Imglib2Types.TypeHandler<T> handler = Imglib2Types.getTypeHandler(voxelType);
+				th = handler;
+			} catch (NoSuchElementException e) {
+				throw new IOException("Unrecognized voxel type: " + e.getMessage());
+			}
+
+			final StackTransferrer first = readers.get(0);
+			final Img<T> img = th.createPlanarImgFactory().create(
+					first.sizeX(), first.sizeY(), first.sizeZ(), noOfViews, noOfTimepoints);
+
+			final long startTime = System.currentTimeMillis();
+			final List<Callable<Void>> stacks = new ArrayList<>(readers.size());
+			for (int i = 0; i < readers.size(); ++i) {
+				final StackTransferrer r = readers.get(i);
+				final long view = i % noOfViews;
+				final long time = i / noOfViews;
+				//the stack is a view of the PlanarImg, its blocks are still copied row by row into the planes
+				stacks.add(() -> {
+					r.readInto(Views.hyperSlice(Views.hyperSlice(img, 4, time), 3, view), th);
+					return null;
+				});
+			}
+			StackTransferrer.runAll(stacks, parallelStacks);
+			myLogger.info("Read "+readers.size()+" stacks in "+(System.currentTimeMillis()-startTime)+" ms");
+
+			final ImgPlus<T> imgPlus = new ImgPlus<>(img, "Retrieved hyperstack of "+first.datasetID,
+					new AxisType[] { Axes.X, Axes.Y, Axes.Z, Axes.CHANNEL, Axes.TIME });
+			return new DefaultDataset(ctx, imgPlus);
+		}
+
+		static void checkRangeOrThrow(final String what, final int first, final int last,
+		                              final int min, final int max)
+		throws IOException {
+			if (first > last || first < min || last > max)
+				throw new IOException("Cannot read "+what+" "+first+" to "+last
+						+" because the dataset is having only "+min+" to "+max);
+		}
+	}
+}
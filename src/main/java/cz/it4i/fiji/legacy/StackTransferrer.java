@@ -0,0 +1,98 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2023 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.legacy;
+
+import cz.it4i.fiji.legacy.common.ImagePlusTransferrer;
+import cz.it4i.fiji.legacy.common.TransferStatistics;
+import cz.it4i.fiji.rest.util.DatasetInfo;
+import org.scijava.Context;
+import org.scijava.log.Logger;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Transfers one stack (one timepoint,channel,angle) of a hyperstack, the dataset info
+ * is shared among all stacks and so is the DatasetServer (see shareServerWith()).
+ */
+class StackTransferrer extends ImagePlusTransferrer {
+	StackTransferrer(final Context ctx, final Logger logger, final DatasetInfo di) {
+		this.setContext(ctx);
+		this.myLogger = logger;
+		this.di = di;
+	}
+
+	void setup(final String url, final String datasetID,
+	           final int timepoint, final int channel, final int angle,
+	           final String resolutionLevelsAsStr, final String versionAsStr,
+	           final String accessRegime, final boolean verboseLog)
+	throws IOException {
+		this.URL = url;
+		this.datasetID = datasetID;
+		this.timepoint = timepoint;
+		this.channel = channel;
+		this.angle = angle;
+		this.resolutionLevelsAsStr = resolutionLevelsAsStr;
+		this.versionAsStr = versionAsStr;
+		this.verboseLog = verboseLog;
+		this.accessRegime = accessRegime;
+		this.minX=0;
+		this.maxX=Integer.MAX_VALUE;
+		this.minY=0;
+		this.maxY=Integer.MAX_VALUE;
+		this.minZ=0;
+		this.maxZ=Integer.MAX_VALUE;
+
+		matchResLevel();
+		rangeSpatialX();
+		rangeSpatialY();
+		rangeSpatialZ();
+
+		if (currentResLevel == null)
+			throw new IOException("Cannot "+accessRegime+" at res level "+resolutionLevelsAsStr
+					+" because the dataset is not having this one.");
+	}
+
+	int sizeX() { return maxX-minX+1; }
+	int sizeY() { return maxY-minY+1; }
+	int sizeZ() { return maxZ-minZ+1; }
+
+	/** Bytes (headers and data of the blocks) of the latest transfer of this stack */
+	long transferredBytes() {
+		return statistics.bytes(TransferStatistics.Phase.HEADER) + statistics.bytes(TransferStatistics.Phase.PAYLOAD);
+	}
+
+	/** runs the 'stacks' with at most 'parallelStacks' of them at the same time and waits
+	    for all of them, the first failure is re-thrown and the remaining stacks are cancelled */
+	static void runAll(final List<Callable<Void>> stacks, final int parallelStacks)
+	throws IOException {
+		final ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelStacks, stacks.size())));
+		try {
+			final List<Future<Void>> results = new ArrayList<>(stacks.size());
+			for (Callable<Void> stack : stacks)
+				results.add( workers.submit(stack) );
+			for (Future<Void> result : results)
+				result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while transferring the stacks", e);
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException)cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new IOException("Problem transferring the stacks: "+cause.getMessage(), cause);
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+}
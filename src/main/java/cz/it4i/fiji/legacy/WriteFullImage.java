@@ -14,17 +14,29 @@ import org.scijava.plugin.Plugin;
 
 import static cz.it4i.fiji.legacy.common.ImagePlusTransferrer.DEFAULT_TIMEOUT_PERIOD;
 import static cz.it4i.fiji.legacy.common.ImagePlusTransferrer.createResStr;
+import cz.it4i.fiji.datastore.rest_client.WireCompression;
 import cz.it4i.fiji.datastore.service.DataStoreService;
+import cz.it4i.fiji.legacy.common.BandwidthThrottle;
 import cz.it4i.fiji.legacy.common.ImagePlusTransferrer;
 import cz.it4i.fiji.rest.util.DatasetInfo;
 import net.imglib2.img.Img;
-import net.imglib2.view.Views;
+import cz.it4i.fiji.legacy.util.AveragingPyramid;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import org.scijava.Context;
 import org.scijava.log.LogLevel;
 import org.scijava.log.LogService;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 @Plugin(type = Command.class, headless = true, menuPath = "Plugins>HPC DataStore>Write full image")
 public class WriteFullImage implements Command {
@@ -61,6 +73,56 @@ public class WriteFullImage implements Command {
 			persistKey="datasetversion")
 	public String versionAsStr = "latest";
 
+	@Parameter(label = "Parallel connections:", min = "1", required = false,
+			description = "How many connections to the DatasetServer can be transferring at the same time.",
+			persistKey = "datasetparallelconnections")
+	public int parallelConnections = 1;
+
+	@Parameter(label = "Streaming uploads:", required = false,
+			description = "Sends the image over a few long streamed requests instead of many short ones.",
+			persistKey = "datasetstreaminguploads")
+	public boolean streamingUploads = false;
+
+	@Parameter(label = "Batched block requests:", required = false,
+			description = "Lists the blocks in the request body instead of in the URL, the DatasetServer must support it.",
+			persistKey = "datasetbatchedrequests")
+	public boolean batchedRequests = false;
+
+	@Parameter(label = "Wire compression:", choices = { "raw", "gzip", "lz4" }, required = false,
+			description = "Sends the blocks compressed on the wire, they are sent raw if the DatasetServer refuses it.",
+			persistKey = "datasetwirecompression")
+	public String wireCompressionAsStr = "raw";
+
+	@Parameter(label = "Wire compression level:", min = "-1", max = "17", required = false,
+			description = "-1 lets the codec decide, otherwise 1-9 for gzip, or 1-17 for the slower high-compression lz4.",
+			persistKey = "datasetwirecompressionlevel")
+	public int wireCompressionLevel = -1;
+
+	@Parameter(label = "Sparse writes:", required = false,
+			description = "Sends the all-zero blocks as missing (only the block header), they read back as zeros.",
+			persistKey = "datasetsparsewrites")
+	public boolean sparseWrites = false;
+
+	@Parameter(label = "Incremental writes:", required = false,
+			description = "Sends only the blocks that have changed since they were last written from this computer into the same existing version.",
+			persistKey = "datasetincrementalwrites")
+	public boolean incrementalWrites = false;
+
+	@Parameter(label = "Adaptive transfers:", required = false,
+			description = "Tunes the size of the requests and the number of connections during the transfer, up to 8 connections or the parallel connections above if more.",
+			persistKey = "datasetadaptivetransfers")
+	public boolean adaptiveTransfers = false;
+
+	@Parameter(label = "Parallel resolution levels:", required = false,
+			description = "Uploads all resolution levels at the same time, each to its own DatasetServer.",
+			persistKey = "datasetparallellevels")
+	public boolean parallelLevels = false;
+
+	@Parameter(label = "Max upload bandwidth [MB/s]:", min = "0", required = false,
+			description = "The total bandwidth of all uploads, 0 means unlimited.",
+			persistKey = "datasetmaxuploadbandwidth")
+	public int maxUploadMBps = 0;
+
 	/*
 	@Parameter(label = "Server alive timeout [miliseconds]:", min = "1", stepSize = "1000",
 			description = "How long inactivity period has to pass before the connection gets closed...",
@@ -83,11 +145,26 @@ public class WriteFullImage implements Command {
 	@Override
 	public void run() {
 		try {
-			new LocalWriter(log.getContext()).writeNow((Img)inDatasetImg.getImgPlus().getImg(),
+			//the context of the command outlives it, its metrics are watched over JMX
+			DataStoreService.publishMetricsOf(log.getContext());
+			final LocalWriter writer = new LocalWriter(log.getContext());
+			writer.parallelConnections = parallelConnections;
+			writer.batchedRequests = batchedRequests;
+			writer.wireCompression = WireCompression.fromName(wireCompressionAsStr);
+			writer.wireCompressionLevel = wireCompressionLevel;
+			writer.adaptiveTransfers = adaptiveTransfers;
+			writer.streamingUploads = streamingUploads;
+			writer.sparseWrites = sparseWrites;
+			writer.incrementalWrites = incrementalWrites;
+			writer.parallelLevels = parallelLevels;
+			if (maxUploadMBps > 0) writer.uploadThrottle = new BandwidthThrottle(maxUploadMBps * 1048576L);
+			writer.writeNow((Img)inDatasetImg.getImgPlus().getImg(),
 					URL,datasetID,
 					timepoint,channel,angle,
 					resolutionLevelsAsStr,uploadResPyramids,versionAsStr,
 					DEFAULT_TIMEOUT_PERIOD /*timeout*/,verboseLog);
+			if (sparseWrites) log.info("sparse writes saved "+writer.sparseSavedBytes+" Bytes");
+			if (incrementalWrites) log.info("incremental writes saved "+writer.unchangedSavedBytes+" Bytes");
 			log.info("transfer is finished");
 		} catch (IOException | IllegalArgumentException e) {
 			log.error("Problem writing full image: "+e.getMessage());
@@ -126,6 +203,19 @@ public class WriteFullImage implements Command {
 				resolutionLevelsAsStr, versionAsStr, serverTimeout, verboseLog);
 	}
 
+	public static
+	void to(final Img<? extends RealType<?>> image, final String url, final String datasetID,
+	        final int timepoint, final int channel, final int angle,
+	        final String resolutionLevelsAsStr, final String versionAsStr,
+	        final int serverTimeout, final boolean verboseLog,
+	        final int parallelConnections)
+	throws IOException,IllegalArgumentException {
+		final LocalWriter writer = new LocalWriter();
+		writer.parallelConnections = parallelConnections;
+		writer.writeNow((Img)image, url, datasetID, timepoint, channel, angle,
+				resolutionLevelsAsStr, versionAsStr, serverTimeout, verboseLog);
+	}
+
 
 	public static
 	void toWithoutPyramids(final Img<? extends RealType<?>> image, final String url, final String datasetID,
@@ -171,6 +261,46 @@ public class WriteFullImage implements Command {
 			this.setContext(useThisCtx);
 		}
 
+		/** a writer of the 'level', into the same dataset and with the same settings as the 'other' */
+		LocalWriter(final LocalWriter other, final DatasetInfo.ResolutionLevel level) {
+			this.mainLogger = other.mainLogger;
+			this.myLogger = other.myLogger;
+			this.dataStoreService = other.dataStoreService;
+			this.di = other.di;
+			this.URL = other.URL;
+			this.datasetID = other.datasetID;
+			this.timepoint = other.timepoint;
+			this.channel = other.channel;
+			this.angle = other.angle;
+			this.versionAsStr = other.versionAsStr;
+			this.verboseLog = other.verboseLog;
+			this.accessRegime = other.accessRegime;
+			this.parallelConnections = other.parallelConnections;
+			this.batchedRequests = other.batchedRequests;
+			this.wireCompression = other.wireCompression;
+			this.wireCompressionLevel = other.wireCompressionLevel;
+			this.adaptiveTransfers = other.adaptiveTransfers;
+			this.streamingUploads = other.streamingUploads;
+			this.sparseWrites = other.sparseWrites;
+			this.incrementalWrites = other.incrementalWrites;
+			this.uploadThrottle = other.uploadThrottle;
+
+			this.currentResLevel = level;
+			this.resolutionLevelsAsStr = level.resolutions.toString();
+			this.minX=0;
+			this.maxX=Integer.MAX_VALUE;
+			this.minY=0;
+			this.maxY=Integer.MAX_VALUE;
+			this.minZ=0;
+			this.maxZ=Integer.MAX_VALUE;
+			rangeSpatialX();
+			rangeSpatialY();
+			rangeSpatialZ();
+		}
+
+		/** if true, the resolution levels are uploaded at the same time, see writeLevelsConcurrently() */
+		boolean parallelLevels = false;
+
 		<T extends RealType<T>>
 		void writeNow(final Img<T> img, final String url, final String datasetID,
 		              final int timepoint, final int channel, final int angle,
@@ -240,14 +370,13 @@ public class WriteFullImage implements Command {
 				throw new IOException("Cannot write to res level "+resolutionLevelsAsStr
 						+" because the dataset is not having this one.");
 
-			this.writeWithAType(image);
-
+			//plan: find upper res levels, each will be averaged from the coarsest already
+			//planned level (or this one) from which it can be reached with integer-scaling
+			final List<DatasetInfo.ResolutionLevel> pyramidLevels = new ArrayList<>();
+			final List<Integer> pyramidSources = new ArrayList<>();
+			final List<long[]> pyramidFactors = new ArrayList<>();
 			if (uploadResPyramids)
 			{
-				//prevent from creating new version with every next resolution
-				if (versionAsStr.startsWith("new")) this.versionAsStr = "latest";
-
-				//plan: find upper res levels, for each create downscaled image and upload it
 				int resLevelIdx = 0;
 				while (resLevelIdx < di.resolutionLevels.size()
 						&& di.resolutionLevels.get(resLevelIdx) != currentResLevel) ++resLevelIdx;
@@ -255,48 +384,156 @@ public class WriteFullImage implements Command {
 					throw new RuntimeException("Failed re-matching the resolution level, that's odd...");
 				myLogger.info("Starting to upload down-scaled versions from level "+ resLevelIdx +".");
 
-				//base downscale factors:
-				final int rx = currentResLevel.resolutions.get(0);
-				final int ry = currentResLevel.resolutions.get(1);
-				final int rz = currentResLevel.resolutions.get(2);
+				if (image.numDimensions() != 2 && image.numDimensions() != 3)
+				{
+					myLogger.error("Can't handle image with not 2 or 3 dimensions, this image: "+image);
+					resLevelIdx = di.resolutionLevels.size();
+				}
 
 				//these remaining res levels we're gonna write too
 				++resLevelIdx;
-				while (resLevelIdx < di.resolutionLevels.size())
+				for (; resLevelIdx < di.resolutionLevels.size(); ++resLevelIdx)
 				{
-					currentResLevel = di.resolutionLevels.get(resLevelIdx);
+					final DatasetInfo.ResolutionLevel level = di.resolutionLevels.get(resLevelIdx);
+					int source = pyramidLevels.size();
+					long[] factors = null;
+					for (; source >= 0 && factors == null; --source)
+						factors = integerScaling(source == 0 ? currentResLevel : pyramidLevels.get(source-1),
+								level, image.numDimensions());
+
+					if (factors == null) {
+						myLogger.info("Cannot reach res level "+resLevelIdx+" from any lower one with integer-scaling.");
+					} else {
+						pyramidLevels.add(level);
+						pyramidSources.add(source+1);
+						pyramidFactors.add(factors);
+					}
+				}
+			}
+
+			//the first down-scaled level is being computed while this one is uploaded,
+			//and so on with the next levels
+			try (AveragingPyramid<TNR> pyramid = new AveragingPyramid<>(image,
+					pyramidSources, pyramidFactors, Runtime.getRuntime().availableProcessors()))
+			{
+				if (parallelLevels && !pyramidLevels.isEmpty())
+				{
+					//the "new" version is created by the first write, the others must then write into it
+					final boolean versionIsCreated = versionAsStr.startsWith("new");
+					if (versionIsCreated) {
+						myLogger.info("Writing "+resolutionLevelsAsStr+" alone first, it creates the new version.");
+						this.writeWithAType(image);
+						this.versionAsStr = "latest";
+					}
+					writeLevelsConcurrently(versionIsCreated ? null : image, pyramidLevels, pyramid);
+					return;
+				}
+
+				this.writeWithAType(image);
+
+				//prevent from creating new version with every next resolution
+				if (uploadResPyramids && versionAsStr.startsWith("new")) this.versionAsStr = "latest";
+
+				for (int i = 0; i < pyramidLevels.size(); ++i)
+				{
+					final Img<TNR> scaledImage = pyramid.next();
+					currentResLevel = pyramidLevels.get(i);
 					this.resolutionLevelsAsStr = currentResLevel.resolutions.toString();
-					myLogger.info("==> Writing also: "+this.resolutionLevelsAsStr);
+					myLogger.info("==> Writing also: "+this.resolutionLevelsAsStr
+							+", averaged by "+Arrays.toString(pyramidFactors.get(i)));
 
 					rangeSpatialX();
 					rangeSpatialY();
 					rangeSpatialZ();
 
-					//downscale factor w.r.t to the base factor
-					final int dx = currentResLevel.resolutions.get(0) / rx;
-					final int dy = currentResLevel.resolutions.get(1) / ry;
-					final int dz = currentResLevel.resolutions.get(2) / rz;
-
-					//check the scaling is integer, or skip this scaling
-					if (dx*rx != currentResLevel.resolutions.get(0)
-						|| dy*ry != currentResLevel.resolutions.get(1)
-						|| dz*rz != currentResLevel.resolutions.get(2))
-					{
-						myLogger.info("Cannot reach res level "+resLevelIdx+" from "+ resLevelIdx +" with integer-scaling.");
-					} else {
-						if (image.numDimensions() == 3) {
-							myLogger.info("Doing 3D pyramid, downscale factor: "+dx+","+dy+","+dz);
-							writeWithAType(Views.subsample(image, dx, dy, dz), image.firstElement());
-						} else if (image.numDimensions() == 2) {
-							myLogger.info("Doing 2D pyramid, downscale factor: "+dx+","+dy);
-							writeWithAType(Views.subsample(image, dx, dy), image.firstElement());
-						} else {
-							myLogger.error("Can't handle image with not 2 or 3 dimensions, this image: "+image);
-						}
-					}
-					++resLevelIdx;
+					writeWithAType(scaledImage, image.firstElement());
 				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while building the resolution pyramid.");
+			}
+		}
+
+		/**
+		 * Uploads the levels at the same time, each level by its own writer over its own
+		 * DatasetServer. The DatasetServers of all levels are requested up front, so that
+		 * they are starting all at the same time; a level starts uploading as soon as its
+		 * DatasetServer is running and the 'pyramid' has the level. The upload bandwidth
+		 * is shared via the uploadThrottle (if any).
+		 *
+		 * @param image  the image of the current level, or null if it is written already
+		 */
+		<TNR extends NativeType<TNR> & RealType<TNR>>
+		void writeLevelsConcurrently(final Img<TNR> image,
+		                             final List<DatasetInfo.ResolutionLevel> pyramidLevels,
+		                             final AveragingPyramid<TNR> pyramid)
+		throws IOException, InterruptedException
+		{
+			final List<LocalWriter> writers = new ArrayList<>(pyramidLevels.size()+1);
+			if (image != null) writers.add(new LocalWriter(this, currentResLevel));
+			for (DatasetInfo.ResolutionLevel level : pyramidLevels)
+				writers.add(new LocalWriter(this, level));
+			final List<CompletableFuture<String>> servers = new ArrayList<>(writers.size());
+			for (LocalWriter w : writers)
+				servers.add( w.requestDatasetServerAsync() );
+			myLogger.info("==> Writing "+writers.size()+" resolution levels concurrently"
+					+(uploadThrottle != null ? ", with the "+uploadThrottle : ""));
+
+			final ExecutorService uploaders = Executors.newFixedThreadPool(writers.size());
+			try {
+				final List<Future<?>> uploads = new ArrayList<>(writers.size());
+				int i = 0;
+				if (image != null) uploads.add( upload(uploaders, writers.get(i), servers.get(i++), image) );
+				while (i < writers.size())
+					uploads.add( upload(uploaders, writers.get(i), servers.get(i++), pyramid.next()) );
+				for (Future<?> u : uploads)
+					u.get();
+			} catch (ExecutionException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof IOException) throw (IOException)cause;
+				if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+				throw new IOException("Problem writing the resolution levels: "+cause.getMessage(), cause);
+			} finally {
+				uploaders.shutdownNow();
+			}
+
+			for (LocalWriter w : writers) {
+				sparseSavedBytes += w.sparseSavedBytes;
+				unchangedSavedBytes += w.unchangedSavedBytes;
+			}
+		}
+
+		static <TNR extends NativeType<TNR> & RealType<TNR>>
+		Future<?> upload(final ExecutorService uploaders, final LocalWriter writer,
+		                 final CompletableFuture<String> server, final Img<TNR> image) {
+			return uploaders.submit(() -> {
+				try {
+					server.join();
+				} catch (CompletionException e) {
+					throw new IOException("Cannot get a DatasetServer for the res level "
+							+writer.resolutionLevelsAsStr+": "+e.getCause().getMessage(), e.getCause());
+				}
+				writer.writeFrom(image, image.firstElement());
+				writer.myLogger.info("DONE writing "+writer.resolutionLevelsAsStr);
+				return null;
+			});
+		}
+
+		/**
+		 * @return the downscale factors (in the first 'n' dimensions) to get
+		 * from the 'finer' to the 'coarser' level, or null if not integer
+		 */
+		static long[] integerScaling(final DatasetInfo.ResolutionLevel finer,
+		                             final DatasetInfo.ResolutionLevel coarser, final int n)
+		{
+			final long[] factors = new long[n];
+			for (int d = 0; d < 3; ++d) {
+				final int f = finer.resolutions.get(d);
+				final int c = coarser.resolutions.get(d);
+				if (c % f != 0) return null;
+				if (d < n) factors[d] = c / f;
 			}
+			return factors;
 		}
 	}
 }
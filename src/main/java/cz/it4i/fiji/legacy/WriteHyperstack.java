@@ -0,0 +1,382 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2023 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.legacy;
+
+import net.imagej.Dataset;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import cz.it4i.fiji.datastore.rest_client.WireCompression;
+import cz.it4i.fiji.datastore.service.DataStoreService;
+import cz.it4i.fiji.legacy.util.AveragingPyramid;
+import cz.it4i.fiji.rest.util.DatasetInfo;
+import org.scijava.Context;
+import org.scijava.log.LogLevel;
+import org.scijava.log.LogService;
+import org.scijava.log.Logger;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+@Plugin(type = Command.class, headless = true, menuPath = "Plugins>HPC DataStore>Write hyperstack")
+public class WriteHyperstack implements Command {
+	@Parameter(label = "URL of a DatasetsRegisterService:", persistKey = "datasetserverurl")
+	public String URL;
+
+	@Parameter(label = "UUID of a dataset on that service:", persistKey = "datasetdatasetid")
+	public String datasetID;
+
+	@Parameter(label="first time point:", min="0",
+			description="The time point of the first frame of the image, in units of the respective dataset.",
+			persistKey="datasettimepoint")
+	public int firstTimepoint = 0;
+
+	@Parameter(label="first channel:", min="0",
+			description="The channel of the first channel of the image, in units of the respective dataset.",
+			persistKey="datasetchannel")
+	public int firstChannel = 0;
+
+	@Parameter(label="first angle:", min="0",
+			description="The angle of the first channel of the image, in units of the respective dataset.",
+			persistKey="datasetangle")
+	public int firstAngle = 0;
+
+	@Parameter(label="channels per angle:", min="0", required = false,
+			description="The channels of the image are holding this many channels of one angle, then of the next angle, etc.; 0 means all are of one angle.",
+			persistKey="datasetchannelsperangle")
+	public int channelsPerAngle = 0;
+
+	@Parameter(label = "Selected down-resolution:",
+			persistKey="datasetreslevel")
+	public String resolutionLevelsAsStr = "[1, 1, 1]";
+
+	@Parameter(label = "Write also lower resolutions:", required = false)
+	public boolean uploadResPyramids = true;
+
+	@Parameter(label = "Selected version:",
+			description = "provide number, or keyword: latest, new",
+			persistKey="datasetversion")
+	public String versionAsStr = "latest";
+
+	@Parameter(label = "Parallel stacks:", min = "1", required = false,
+			description = "How many stacks (time points, channels, angles) are written at the same time.",
+			persistKey = "datasetparallelstacks")
+	public int parallelStacks = 2;
+
+	@Parameter(label = "Parallel connections per stack:", min = "1", required = false,
+			description = "How many connections to the DatasetServer can be transferring one stack at the same time.",
+			persistKey = "datasetparallelconnections")
+	public int parallelConnections = 1;
+
+	@Parameter(label = "Streaming uploads:", required = false,
+			description = "Sends the image over a few long streamed requests instead of many short ones.",
+			persistKey = "datasetstreaminguploads")
+	public boolean streamingUploads = false;
+
+	@Parameter(label = "Batched block requests:", required = false,
+			description = "Lists the blocks in the request body instead of in the URL, the DatasetServer must support it.",
+			persistKey = "datasetbatchedrequests")
+	public boolean batchedRequests = false;
+
+	@Parameter(label = "Wire compression:", choices = { "raw", "gzip", "lz4" }, required = false,
+			description = "Sends the blocks compressed on the wire, they are sent raw if the DatasetServer refuses it.",
+			persistKey = "datasetwirecompression")
+	public String wireCompressionAsStr = "raw";
+
+	@Parameter(label = "Wire compression level:", min = "-1", max = "17", required = false,
+			description = "-1 lets the codec decide, otherwise 1-9 for gzip, or 1-17 for the slower high-compression lz4.",
+			persistKey = "datasetwirecompressionlevel")
+	public int wireCompressionLevel = -1;
+
+	@Parameter(label = "Sparse writes:", required = false,
+			description = "Sends the all-zero blocks as missing (only the block header), they read back as zeros.",
+			persistKey = "datasetsparsewrites")
+	public boolean sparseWrites = false;
+
+	@Parameter(label = "Incremental writes:", required = false,
+			description = "Sends only the blocks that have changed since they were last written from this computer into the same existing version.",
+			persistKey = "datasetincrementalwrites")
+	public boolean incrementalWrites = false;
+
+	@Parameter(label = "Verbose reporting:", required = false,
+			description = "The change takes effect always during transfers and for future use of this dialog, not for the current use.",
+			persistKey="datasetverboselog")
+	public boolean verboseLog = false;
+
+	@Parameter
+	public Dataset inDatasetImg;
+
+	@Parameter
+	public LogService log;
+
+	@Override
+	public void run() {
+		try {
+			//the context of the command outlives it, its metrics are watched over JMX
+			DataStoreService.publishMetricsOf(log.getContext());
+			final HyperstackWriter writer = new HyperstackWriter(log.getContext());
+			writer.parallelStacks = parallelStacks;
+			writer.parallelConnections = parallelConnections;
+			writer.streamingUploads = streamingUploads;
+			writer.batchedRequests = batchedRequests;
+			writer.wireCompression = WireCompression.fromName(wireCompressionAsStr);
+			writer.wireCompressionLevel = wireCompressionLevel;
+			writer.sparseWrites = sparseWrites;
+			writer.incrementalWrites = incrementalWrites;
+			final String report = writer.writeNow(toXYZCT((ImgPlus)inDatasetImg.getImgPlus()),
+					URL,datasetID, firstTimepoint,firstChannel,firstAngle,channelsPerAngle,
+					resolutionLevelsAsStr,uploadResPyramids,versionAsStr, verboseLog);
+			log.info(report);
+			log.info("transfer is finished");
+		} catch (IOException | IllegalArgumentException e) {
+			log.error("Problem writing hyperstack: "+e.getMessage());
+		}
+	}
+
+
+	/**
+	 * Writes all stacks of the 'image', whose axes are X,Y,Z,C,T (the missing ones are
+	 * considered to be of size 1), see the parameters of this command for the rest.
+	 * Returns the throughput report.
+	 */
+	public static
+	String to(final ImgPlus<? extends RealType<?>> image, final String url, final String datasetID,
+	          final int firstTimepoint, final int firstChannel, final int firstAngle,
+	          final int channelsPerAngle,
+	          final String resolutionLevelsAsStr, final String versionAsStr)
+	throws IOException,IllegalArgumentException {
+		return new HyperstackWriter().writeNow(toXYZCT((ImgPlus)image), url,datasetID,
+				firstTimepoint,firstChannel,firstAngle,channelsPerAngle,
+				resolutionLevelsAsStr,true,versionAsStr, false);
+	}
+
+	/**
+	 * Writes all stacks of the 'image', whose five dimensions are X,Y,Z,C,T, see the
+	 * parameters of this command for the rest. Returns the throughput report.
+	 */
+	public static
+	String to(final RandomAccessibleInterval<? extends RealType<?>> image, final String url, final String datasetID,
+	          final int firstTimepoint, final int firstChannel, final int firstAngle,
+	          final int channelsPerAngle,
+	          final String resolutionLevelsAsStr, final boolean uploadResPyramids, final String versionAsStr,
+	          final int parallelStacks, final int parallelConnections)
+	throws IOException,IllegalArgumentException {
+		final HyperstackWriter writer = new HyperstackWriter();
+		writer.parallelStacks = parallelStacks;
+		writer.parallelConnections = parallelConnections;
+		return writer.writeNow((RandomAccessibleInterval)image, url,datasetID,
+				firstTimepoint,firstChannel,firstAngle,channelsPerAngle,
+				resolutionLevelsAsStr,uploadResPyramids,versionAsStr, false);
+	}
+
+
+	static final AxisType[] XYZCT = { Axes.X, Axes.Y, Axes.Z, Axes.CHANNEL, Axes.TIME };
+
+	/** returns a 5D view X,Y,Z,C,T of the 'image', whose axes may come in any order
+	    (e.g. X,Y,C,Z,T of an ImagePlus) and the missing ones are added with size 1 */
+	static <T> RandomAccessibleInterval<T> toXYZCT(final ImgPlus<T> image) {
+		final List<AxisType> axes = new ArrayList<>(5);
+		for (int d = 0; d < image.numDimensions(); ++d) {
+			final AxisType a = image.axis(d).type();
+			if (!Arrays.asList(XYZCT).contains(a))
+				throw new IllegalArgumentException("Cannot write an image with the axis "+a+", only with X,Y,Z,C,T.");
+			axes.add(a);
+		}
+
+		RandomAccessibleInterval<T> view = image;
+		for (AxisType a : XYZCT)
+			if (!axes.contains(a)) {
+				view = Views.addDimension(view, 0, 0);
+				axes.add(a);
+			}
+		//bring the axes into the order by swapping the neighbouring ones
+		for (int d = 0; d < XYZCT.length; ++d)
+			for (int from = axes.indexOf(XYZCT[d]); from > d; --from) {
+				view = Views.permute(view, from, from-1);
+				axes.add(from-1, axes.remove(from));
+			}
+		return view;
+	}
+
+
+	/**
+	 * Writes every stack, a 3D X,Y,Z slice, of a 5D image X,Y,Z,C,T into its timepoint,
+	 * channel and angle -- where the angles are interleaved into the channel axis the same
+	 * way as in ReadHyperstack. The dataset info is retrieved only once, the stacks of one
+	 * resolution level are written to the same DatasetServer (one lease per resolution
+	 * level and version), several stacks at the same time.
+	 */
+	static class HyperstackWriter {
+		/** intended for use in solo (without a valid scijava context) application */
+		HyperstackWriter() {
+			this(new Context(LogService.class,DataStoreService.class));
+		}
+
+		/** PREFERRED whenever appropriate context is available */
+		HyperstackWriter(final Context useThisCtx) {
+			this.ctx = useThisCtx;
+		}
+
+		final Context ctx;
+		int parallelStacks = 2;
+		int parallelConnections = 1;
+		boolean streamingUploads = false;
+		boolean batchedRequests = false;
+		WireCompression wireCompression = WireCompression.RAW;
+		int wireCompressionLevel = WireCompression.DEFAULT_LEVEL;
+		boolean sparseWrites = false;
+		boolean incrementalWrites = false;
+
+		<T extends NativeType<T> & RealType<T>>
+		String writeNow(final RandomAccessibleInterval<T> image, final String url, final String datasetID,
+		                final int firstTimepoint, final int firstChannel, final int firstAngle,
+		                final int channelsPerAngle,
+		                final String resolutionLevelsAsStr, final boolean uploadResPyramids,
+		                final String versionAsStr, final boolean verboseLog)
+		throws IOException,IllegalArgumentException {
+			if (image.numDimensions() != 5)
+				throw new IllegalArgumentException("Expected a 5D image X,Y,Z,C,T, got "+image.numDimensions()+"D.");
+			final T type = Util.getTypeFromInterval(image);
+			if (!(type instanceof NativeType))
+				throw new IllegalArgumentException("Provided type ("+type.getClass().getSimpleName()
+						+ ") is not derived from NativeType.");
+
+			final Logger myLogger = ctx.getService(LogService.class)
+					.subLogger("HPC LegacyImage Write", verboseLog ? LogLevel.INFO : LogLevel.ERROR);
+			if (ctx.getService(DataStoreService.class) == null)
+				throw new RuntimeException("Missing DataStoreService (is null) when writing hyperstack.");
+
+			myLogger.info("Reading "+datasetID+" from "+url);
+			final DatasetInfo di = DatasetInfo.createFrom(url, datasetID);
+			myLogger.info(di.toString());
+
+			final int noOfViews = (int)image.dimension(3);
+			final int noOfTimepoints = (int)image.dimension(4);
+			final int noOfChannels = channelsPerAngle > 0 ? channelsPerAngle : noOfViews;
+			if (noOfViews % noOfChannels != 0)
+				throw new IllegalArgumentException("The "+noOfViews+" channels of the image cannot be split into "
+						+noOfChannels+" channels per angle.");
+			final int noOfAngles = noOfViews / noOfChannels;
+			final int tpMax = di.timepointIds.stream().reduce(Math::max).orElse(0);
+			if (firstTimepoint+noOfTimepoints-1 > tpMax
+					|| firstChannel+noOfChannels > di.channels || firstAngle+noOfAngles > di.angles)
+				throw new IllegalArgumentException("The image of "+noOfTimepoints+" time points, "
+						+noOfChannels+" channels and "+noOfAngles+" angles does not fit into the dataset "
+						+"from the time point "+firstTimepoint+", channel "+firstChannel+" and angle "+firstAngle);
+
+			//the levels to be written, starting from the given one
+			final List<DatasetInfo.ResolutionLevel> levels = new ArrayList<>();
+			for (DatasetInfo.ResolutionLevel l : di.resolutionLevels)
+				if (l.resolutions.toString().equals(resolutionLevelsAsStr)) levels.add(l);
+			if (levels.isEmpty())
+				throw new IOException("Cannot write to res level "+resolutionLevelsAsStr
+						+" because the dataset is not having this one.");
+			final DatasetInfo.ResolutionLevel baseLevel = levels.get(0);
+			if (uploadResPyramids)
+				for (int i = di.resolutionLevels.indexOf(baseLevel)+1; i < di.resolutionLevels.size(); ++i) {
+					final DatasetInfo.ResolutionLevel l = di.resolutionLevels.get(i);
+					if (isIntegerScaling(baseLevel, l)) levels.add(l);
+					else myLogger.info("Cannot reach res level "+l.resolutions+" from "+resolutionLevelsAsStr
+							+" with integer-scaling.");
+				}
+
+			final long startTime = System.nanoTime();
+			long bytes = 0;
+			long savedBytes = 0;
+			long unchangedBytes = 0;
+			int noOfStacks = 0;
+
+			//all stacks at all levels must write into the same version, a "new" one is created now
+			final StackTransferrer versionResolver = new StackTransferrer(ctx, myLogger, di);
+			versionResolver.setup(url,datasetID, firstTimepoint, firstChannel, firstAngle,
+					baseLevel.resolutions.toString(), versionAsStr, "write", verboseLog);
+			final String version = versionResolver.resolveNewVersion();
+
+			//every stack of a level is averaged from the same stack of the previous level, if it can
+			final List<RandomAccessibleInterval<T>> previousStacks = new ArrayList<>(noOfTimepoints*noOfViews);
+			for (int t = 0; t < noOfTimepoints; ++t)
+				for (int v = 0; v < noOfViews; ++v)
+					previousStacks.add( Views.hyperSlice(Views.hyperSlice(image, 4, t), 3, v) );
+			DatasetInfo.ResolutionLevel previousLevel = baseLevel;
+
+			for (DatasetInfo.ResolutionLevel level : levels) {
+				final boolean fromPrevious = isIntegerScaling(previousLevel, level);
+				final DatasetInfo.ResolutionLevel sourceLevel = fromPrevious ? previousLevel : baseLevel;
+				final long[] factors = new long[3];
+				for (int d = 0; d < 3; ++d)
+					factors[d] = level.resolutions.get(d) / sourceLevel.resolutions.get(d);
+				final boolean downscaled = factors[0] > 1 || factors[1] > 1 || factors[2] > 1;
+				myLogger.info("==> Writing "+noOfTimepoints*noOfViews+" stacks at "+level.resolutions
+						+ (downscaled ? ", averaged by "+Arrays.toString(factors)+" from "+sourceLevel.resolutions : ""));
+
+				//the first stack writer holds the lease of this level, the others share it
+				final List<StackTransferrer> writers = new ArrayList<>(noOfTimepoints*noOfViews);
+				final List<Callable<Void>> stacks = new ArrayList<>(noOfTimepoints*noOfViews);
+				for (int t = 0; t < noOfTimepoints; ++t)
+					for (int v = 0; v < noOfViews; ++v) {
+						final StackTransferrer w = new StackTransferrer(ctx, myLogger, di);
+						w.setup(url,datasetID, firstTimepoint+t, firstChannel+v%noOfChannels, firstAngle+v/noOfChannels,
+								level.resolutions.toString(), version, "write", verboseLog);
+						w.parallelConnections = parallelConnections;
+						w.streamingUploads = streamingUploads;
+						w.batchedRequests = batchedRequests;
+						w.wireCompression = wireCompression;
+						w.wireCompressionLevel = wireCompressionLevel;
+						w.sparseWrites = sparseWrites;
+						w.incrementalWrites = incrementalWrites;
+						if (!writers.isEmpty()) w.shareServerWith(writers.get(0));
+						writers.add(w);
+
+						final int s = t*noOfViews + v;
+						final RandomAccessibleInterval<T> stack = fromPrevious ? previousStacks.get(s)
+								: Views.hyperSlice(Views.hyperSlice(image, 4, t), 3, v);
+						stacks.add(() -> {
+							//the same downscaling as of WriteFullImage, see AveragingPyramid
+							final RandomAccessibleInterval<T> scaledStack = downscaled
+									? AveragingPyramid.averaged(stack, factors, type) : stack;
+							w.writeFrom(scaledStack, type);
+							previousStacks.set(s, scaledStack);
+							return null;
+						});
+					}
+				StackTransferrer.runAll(stacks, parallelStacks);
+				previousLevel = level;
+
+				for (StackTransferrer w : writers) {
+					bytes += w.transferredBytes();
+					savedBytes += w.sparseSavedBytes;
+					unchangedBytes += w.unchangedSavedBytes;
+				}
+				noOfStacks += writers.size();
+			}
+
+			final double seconds = (System.nanoTime()-startTime) / 1e9;
+			return String.format("Wrote %d stacks at %d resolution levels, %d Bytes in %.3f s = %.2f MB/s",
+					noOfStacks, levels.size(), bytes, seconds, seconds > 0 ? bytes/1048576.0/seconds : 0)
+					+ (sparseWrites ? String.format(", sparse writes saved %d Bytes", savedBytes) : "")
+					+ (incrementalWrites ? String.format(", incremental writes saved %d Bytes", unchangedBytes) : "");
+		}
+
+		static boolean isIntegerScaling(final DatasetInfo.ResolutionLevel base, final DatasetInfo.ResolutionLevel level) {
+			for (int d = 0; d < 3; ++d)
+				if (level.resolutions.get(d) % base.resolutions.get(d) != 0) return false;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2023 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.legacy.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Downloads the blocks with the asynchronous (non-blocking) Apache HttpAsyncClient, which
+ * is also what the CXF asynchronous HTTP transport is built on. A few I/O threads serve all
+ * the transfers in flight, and the responses are parsed as they arrive, straight into
+ * pooled direct buffers, from which the blocks are handed over to the handlers. Hence,
+ * no thread is waiting per connection and no intermediate byte[] copy of a block is made.
+ */
+public class AsyncBlockTransport implements BlockTransport {
+	public AsyncBlockTransport(final int ioThreads, final int maxConnections, final int timeoutMillis) {
+		client = HttpAsyncClients.custom()
+				.setDefaultIOReactorConfig(IOReactorConfig.custom()
+						.setIoThreadCount(ioThreads)
+						.setConnectTimeout(timeoutMillis)
+						.setSoTimeout(timeoutMillis)
+						.build())
+				.setMaxConnTotal(maxConnections)
+				.setMaxConnPerRoute(maxConnections)
+				.build();
+		client.start();
+	}
+
+	final CloseableHttpAsyncClient client;
+
+	/** the buffers for the pixel data of the blocks, at most one is taken per transfer in flight */
+	final Queue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+
+	ByteBuffer takeBuffer(final int length) {
+		ByteBuffer b = freeBuffers.poll();
+		if (b == null || b.capacity() < length) b = ByteBuffer.allocateDirect(length);
+		b.clear();
+		b.limit(length);
+		return b;
+	}
+
+	void returnBuffer(final ByteBuffer b) {
+		freeBuffers.offer(b);
+	}
+
+	@Override
+	public CompletableFuture<Void> download(final String url, final byte[] body,
+	                                        final int noOfBlocks, final int bytesPerPixel,
+	                                        final BlockHandler handler) {
+		final CompletableFuture<Void> result = new CompletableFuture<>();
+		final HttpAsyncRequestProducer request = body == null
+				? HttpAsyncMethods.createGet(url)
+				: HttpAsyncMethods.createPost(url, body, ContentType.APPLICATION_OCTET_STREAM);
+		final BlockStreamConsumer consumer = new BlockStreamConsumer(url, noOfBlocks, bytesPerPixel, handler);
+
+		client.execute(request, consumer, new FutureCallback<Void>() {
+			@Override
+			public void completed(final Void nothing) {
+				result.complete(null);
+			}
+
+			@Override
+			public void failed(final Exception e) {
+				//a failure of the handler itself is reported as it is, not as the I/O problem
+				if (consumer.handlerFailure != null) result.completeExceptionally(consumer.handlerFailure);
+				else result.completeExceptionally(e instanceof IOException ? e
+						: new IOException("Failed downloading from "+url+": "+e.getMessage(), e));
+			}
+
+			@Override
+			public void cancelled() {
+				result.completeExceptionally(new IOException("Cancelled downloading from "+url));
+			}
+		});
+		return result;
+	}
+
+	@Override
+	public void close() throws IOException {
+		client.close();
+		freeBuffers.clear();
+	}
+
+	/**
+	 * Parses the stream of blocks as it arrives: a header with x,y,z size of the block,
+	 * followed by its data, or a header -1,-1,-1 for a missing block.
+	 */
+	class BlockStreamConsumer extends AbstractAsyncResponseConsumer<Void> {
+		BlockStreamConsumer(final String url, final int noOfBlocks, final int bytesPerPixel,
+		                    final BlockHandler handler) {
+			this.url = url;
+			this.noOfBlocks = noOfBlocks;
+			this.bytesPerPixel = bytesPerPixel;
+			this.handler = handler;
+		}
+
+		final String url;
+		final int noOfBlocks;
+		final int bytesPerPixel;
+		final BlockHandler handler;
+
+		final ByteBuffer header = ByteBuffer.allocate(12);
+		/** the data of the current block, or null while its header is being read */
+		ByteBuffer payload = null;
+		int bx, by, bz;
+		int blocksDone = 0;
+		volatile Throwable handlerFailure = null;
+
+		@Override
+		protected void onResponseReceived(final HttpResponse response) throws IOException {
+			final int status = response.getStatusLine().getStatusCode();
+			if (status != 200)
+				throw new IOException("DatasetServer responded with "+status+" to "+url);
+		}
+
+		@Override
+		protected void onEntityEnclosed(final HttpEntity entity, final ContentType contentType) {
+			//nothing to prepare, the content is parsed as it comes
+		}
+
+		@Override
+		protected void onContentReceived(final ContentDecoder decoder, final IOControl ioControl)
+		throws IOException {
+			while (true) {
+				final ByteBuffer target = payload != null ? payload : header;
+				final int read = decoder.read(target);
+				if (target.hasRemaining()) {
+					if (read <= 0) return; //wait for more data, or the end
+					continue;
+				}
+
+				if (payload == null) {
+					header.flip();
+					bx = header.getInt();
+					by = header.getInt();
+					bz = header.getInt();
+					header.clear();
+					if (blocksDone >= noOfBlocks)
+						throw new IOException("DatasetServer sent more than the "+noOfBlocks+" blocks asked from "+url);
+
+					if (bx == -1 && by == -1 && bz == -1) {
+						handle(null);
+						continue;
+					}
+					if (bx < 0 || by < 0 || bz < 0)
+						throw new IOException("DatasetServer sent a block of invalid size "+bx+" x "+by+" x "+bz);
+					payload = takeBuffer(bx*by*bz * bytesPerPixel);
+				} else {
+					payload.flip();
+					try {
+						handle(payload);
+					} finally {
+						returnBuffer(payload);
+						payload = null;
+					}
+				}
+			}
+		}
+
+		void handle(final ByteBuffer data) throws IOException {
+			try {
+				handler.block(blocksDone++, bx,by,bz, data);
+			} catch (IOException e) {
+				throw e;
+			} catch (Throwable e) {
+				//nothing, not even an Error (e.g. a failed assertion), must escape into
+				//the I/O thread of the client, the download would never complete then
+				handlerFailure = e;
+				throw new IOException("Failed processing block from "+url+": "+e.getMessage(), e);
+			}
+		}
+
+		@Override
+		protected Void buildResult(final HttpContext context) throws IOException {
+			if (blocksDone != noOfBlocks || payload != null)
+				throw new EOFException("DatasetServer closed the connection after "
+						+blocksDone+" blocks, expected "+noOfBlocks+" blocks from "+url);
+			return null;
+		}
+
+		@Override
+		protected void releaseResources() {
+			if (payload != null) {
+				returnBuffer(payload);
+				payload = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2023 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.legacy.common;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the total rate of the bytes written through all streams that it throttles,
+ * so several transferrers (and their connections) can share one bandwidth budget.
+ * Every write reserves its time slot on a common timeline and waits until the slot
+ * comes; a throttle that was idle allows only a short burst before it slows down.
+ */
+public class BandwidthThrottle {
+	/** the idle time that can be made up by a faster burst later */
+	static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	/** the longer writes are throttled in pieces of this size */
+	static final int MAX_PIECE = 1 << 16;
+
+	public BandwidthThrottle(final long bytesPerSecond) {
+		if (bytesPerSecond <= 0)
+			throw new IllegalArgumentException("The bandwidth must be positive, got "+bytesPerSecond+" B/s");
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	final long bytesPerSecond;
+	/** the moment (in System.nanoTime()) when the next bytes may be written */
+	private long nextSlot = System.nanoTime();
+
+	/** waits until the 'bytes' may be written */
+	public void acquire(final int bytes) throws InterruptedIOException {
+		final long slot;
+		synchronized (this) {
+			final long now = System.nanoTime();
+			if (nextSlot < now - BURST_NANOS) nextSlot = now - BURST_NANOS;
+			slot = nextSlot;
+			nextSlot += bytes * 1_000_000_000L / bytesPerSecond;
+		}
+		final long wait = slot - System.nanoTime();
+		if (wait <= 0) return;
+		try {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while throttling the bandwidth");
+		}
+	}
+
+	/** the 'os' whose writes are throttled by this throttle */
+	public OutputStream throttled(final OutputStream os) {
+		return new FilterOutputStream(os) {
+			@Override
+			public void write(final int b) throws IOException {
+				acquire(1);
+				out.write(b);
+			}
+
+			@Override
+			public void write(final byte[] b, int off, int len) throws IOException {
+				while (len > 0) {
+					final int piece = Math.min(len, MAX_PIECE);
+					acquire(piece);
+					out.write(b, off, piece);
+					off += piece;
+					len -= piece;
+				}
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "throttle at "+bytesPerSecond+" B/s";
+	}
+}
@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2023 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.legacy.common;
+
+import cz.it4i.fiji.datastore.rest_client.DatasetIndex;
+import net.jpountz.xxhash.XXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Content hashes of the blocks of one dataset, version and resolution level, as they were
+ * last uploaded successfully from this computer. The manifest is kept in a file under the
+ * DatasetIndex.getPath(), one line "x/y/z/t/c/a/ hash" per block (the block is given as the
+ * URL segment of its grid coordinates, see ImagePlusTransferrer.blockURL()).
+ *
+ * The manifest is valid only as long as this computer is the single writer of the dataset:
+ * changes made to the dataset by others are not seen here. Writes of this computer that do
+ * not hash their blocks must discard() the manifest, and a manifest file rewritten by another
+ * process on this computer is loaded anew.
+ */
+public class BlockHashManifest {
+	static final String DIRECTORY = "manifests";
+
+	/** one instance per file, so that the transferrers of the same level share it */
+	static final Map<Path,BlockHashManifest> openManifests = new ConcurrentHashMap<>();
+
+	public static BlockHashManifest of(final String datasetID, final String version, final List<Integer> resolutions) {
+		final Path file = fileOf(datasetID, version, resolutions);
+		//the file may have been rewritten (or removed) by another process since it was read
+		return openManifests.compute(file, (f,m) -> m != null && m.isUpToDate() ? m : new BlockHashManifest(f));
+	}
+
+	/**
+	 * Forgets the manifest of the given dataset, version and resolution level, both in memory
+	 * and on the disk, because its blocks are being written without being hashed. For the
+	 * "latest" version, the manifests of all versions are forgotten; a "new" version has none.
+	 */
+	public static void discard(final String datasetID, final String version, final List<Integer> resolutions)
+	throws IOException {
+		final String[] versions;
+		if (version.matches("[0-9]+")) versions = new String[] { version };
+		else if (!version.equals("latest")) return;
+		else {
+			final Path anyVersion = fileOf(datasetID, "*", resolutions);
+			final Path dir = anyVersion.getParent();
+			if (!Files.isDirectory(dir)) return;
+			final String prefix = datasetID+"-v";
+			final String suffix = anyVersion.getFileName().toString().substring(prefix.length()+1);
+			try (Stream<Path> files = Files.list(dir)) {
+				versions = files.map(f -> f.getFileName().toString())
+						.filter(n -> n.startsWith(prefix) && n.endsWith(suffix))
+						.map(n -> n.substring(prefix.length(), n.length()-suffix.length()))
+						.toArray(String[]::new);
+			}
+		}
+		for (String v : versions) {
+			final Path file = fileOf(datasetID, v, resolutions);
+			final BlockHashManifest m = openManifests.remove(file);
+			if (m != null) synchronized (m) { m.hashes.clear(); }
+			Files.deleteIfExists(file);
+		}
+	}
+
+	static Path fileOf(final String datasetID, final String version, final List<Integer> resolutions) {
+		return DatasetIndex.getPath().resolve(DIRECTORY).resolve(datasetID+"-v"+version
+				+"-"+resolutions.get(0)+"x"+resolutions.get(1)+"x"+resolutions.get(2)+".hashes");
+	}
+
+	BlockHashManifest(final Path file) {
+		this.file = file;
+		lastModified = lastModifiedOf(file);
+		if (lastModified == null) return;
+		try (BufferedReader br = Files.newBufferedReader(file)) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				final int space = line.indexOf(' ');
+				if (space > 0) hashes.put(line.substring(0,space), Long.parseUnsignedLong(line.substring(space+1), 16));
+			}
+		} catch (IOException | NumberFormatException e) {
+			//an unreadable manifest only makes all blocks to look changed
+			hashes.clear();
+		}
+	}
+
+	final Path file;
+	final Map<String,Long> hashes = new HashMap<>();
+	/** of the file when it was last read or written here, null if there was none */
+	FileTime lastModified;
+
+	static FileTime lastModifiedOf(final Path file) {
+		try {
+			return Files.getLastModifiedTime(file);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	synchronized boolean isUpToDate() {
+		final FileTime now = lastModifiedOf(file);
+		return now == null ? lastModified == null : now.equals(lastModified);
+	}
+
+	static final XXHash64 hasher = XXHashFactory.fastestInstance().hash64();
+
+	/** the content hash of the first 'length' bytes of the block 'data' */
+	public static long hash(final byte[] data, final int length) {
+		return hasher.hash(data, 0, length, 0);
+	}
+
+	public synchronized boolean isUnchanged(final String block, final long hash) {
+		final Long lastHash = hashes.get(block);
+		return lastHash != null && lastHash == hash;
+	}
+
+	/** notes the blocks that were just uploaded successfully, and saves the manifest */
+	public synchronized void update(final Map<String,Long> uploadedHashes) throws IOException {
+		hashes.putAll(uploadedHashes);
+		save();
+	}
+
+	/** forgets the blocks that are about to be uploaded (as the upload may fail half-way), and saves the manifest */
+	public synchronized void forget(final Collection<String> blocks) throws IOException {
+		if (!hashes.keySet().removeAll(blocks)) return;
+		save();
+	}
+
+	void save() throws IOException {
+		Files.createDirectories(file.getParent());
+		final Path tmpFile = file.resolveSibling(file.getFileName()+".tmp");
+		try (BufferedWriter bw = Files.newBufferedWriter(tmpFile)) {
+			for (Map.Entry<String,Long> e : hashes.entrySet()) {
+				bw.write(e.getKey()+" "+Long.toHexString(e.getValue()));
+				bw.newLine();
+			}
+		}
+		//never leave a half-written manifest behind
+		Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		lastModified = lastModifiedOf(file);
+	}
+}
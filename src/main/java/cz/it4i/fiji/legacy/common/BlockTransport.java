@@ -0,0 +1,37 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2023 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.legacy.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A way of downloading the blocks from a DatasetServer that can keep many transfers
+ * in flight at the same time, see {@link ImagePlusTransferrer#transport}.
+ */
+public interface BlockTransport extends Closeable {
+	/**
+	 * Starts downloading 'noOfBlocks' blocks from the 'url' (with GET, or with POST of the
+	 * 'body' if it is not null) and returns immediately. The blocks are handed over to the
+	 * 'handler' one by one, in the order as they arrive. The returned future completes after
+	 * the last block was handled, or exceptionally when the transfer has failed.
+	 */
+	CompletableFuture<Void> download(String url, byte[] body, int noOfBlocks, int bytesPerPixel,
+	                                 BlockHandler handler);
+
+	interface BlockHandler {
+		/**
+		 * The 'blockIdx'-th block of the transfer has arrived, its pixel data is in the 'data'
+		 * (from the position 0 up to the limit) and is valid only during this call; the 'data'
+		 * is null if the server has signalled that the block is missing.
+		 */
+		void block(int blockIdx, int bx, int by, int bz, ByteBuffer data) throws IOException;
+	}
+}
@@ -139,6 +139,11 @@ abstract class ImagePlusDialogHandler extends DynamicCommand {
 	public int timeout = 30000;
 	*/
 
+	@Parameter(label = "Parallel connections:", min = "1", required = false,
+			description = "How many connections to the DatasetServer can be transferring at the same time.",
+			persistKey = "datasetparallelconnections")
+	public int parallelConnections = 1;
+
 	@Parameter(label = "Verbose reporting:", required = false,
 			description = "The change takes effect always during transfers and for future use of this dialog, not for the current use.",
 			persistKey="datasetverboselog")
@@ -460,6 +465,7 @@ abstract class ImagePlusDialogHandler extends DynamicCommand {
 				+" channel="+channel
 				+" angle="+angle
 				//+" timeout="+timeout
+				+" parallelconnections="+parallelConnections
 				+" verboselog="+verboseLog+"\");";
 				//+" showruncmd="+showRunCmd+"\");";
 	}
@@ -7,28 +7,59 @@
  ******************************************************************************/
 package cz.it4i.fiji.legacy.common;
 
+import static net.imglib2.cache.img.ReadOnlyCachedCellImgOptions.options;
+
 import net.imagej.Dataset;
 import net.imagej.DefaultDataset;
 import net.imagej.ImgPlus;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.DiskCachedCellImgOptions.CacheType;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.SingleCellArrayImg;
 import net.imglib2.img.Img;
-import net.imglib2.view.Views;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.net.URL;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.LinkedList;
 import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
 import cz.it4i.fiji.legacy.util.Imglib2Types;
-import cz.it4i.fiji.legacy.util.TimeProfiling;
+import cz.it4i.fiji.datastore.rest_client.BatchedBlocks;
+import cz.it4i.fiji.datastore.rest_client.DataBlockRoutines;
+import cz.it4i.fiji.datastore.rest_client.WireCompression;
 import cz.it4i.fiji.datastore.service.DataStoreService;
 import cz.it4i.fiji.datastore.service.DataStoreRequest;
+import cz.it4i.fiji.rest.util.DatasetInfo;
 import org.scijava.plugin.Parameter;
 
 public class ImagePlusTransferrer extends ImagePlusDialogHandler {
@@ -44,11 +75,13 @@ public class ImagePlusTransferrer extends ImagePlusDialogHandler {
 
 	public static final int DEFAULT_TIMEOUT_PERIOD = 10000;
 
+	/** how long the DatasetServer waits for a next request before it stops itself */
+	public int serverTimeout = DEFAULT_TIMEOUT_PERIOD;
+
 	// ----------------------------------------------
 	// common attributes to transfers, irrespective of the transfer direction:
 	final int[] blockSize = new int[3];                  //x,y,z size of a normal/inner block
 	final int[] shortedBlockSize = new int[3];           //x,y,z size of a block in the diagonal corner
-	final boolean[] shortedBlockFlag = new boolean[3];   //aux flag to signal if a block is inner/edge for each spatial axis
 
 	void setupBlockSizes(final Imglib2Types.TypeHandler<?> th) {
 		for (int d = 0; d < 3; ++d) {
@@ -56,7 +89,8 @@ public class ImagePlusTransferrer extends ImagePlusDialogHandler {
 			shortedBlockSize[d] = currentResLevel.dimensions[d] % blockSize[d];
 			if (shortedBlockSize[d] == 0) shortedBlockSize[d] = blockSize[d];
 		}
-		fullBlockByteSize = blockSize[0]*blockSize[1]*blockSize[2] * th.nativeAndRealType.getBitsPerPixel()/8;
+		bytesPerPixel = th.nativeAndRealType.getBitsPerPixel()/8;
+		fullBlockByteSize = blockSize[0]*blockSize[1]*blockSize[2] * bytesPerPixel;
 
 		myLogger.info("inner block sizes: "+blockSize[0]+","+blockSize[1]+","+blockSize[2]
 				+" ("+fullBlockByteSize+" Bytes)");
@@ -77,66 +111,281 @@ public class ImagePlusTransferrer extends ImagePlusDialogHandler {
 
 	// ----------------------------------------------
 	// transfer controls
+	int bytesPerPixel;
 	int fullBlockByteSize;
 	int maxOneReadTransferByteSize  = 1 << 25; //32 MB
 	int maxOneWriteTransferByteSize = 1 << 23; //8 MB
-	//NB: server fails to receive larger, consider using here HttpURLConnection.setFixedLengthStreamingMode
+	//NB: server fails to receive larger non-streamed POST bodies, see streamingUploads;
+	//a streamed transfer must still be over before the read timeout and the server lease
+	//(DEFAULT_TIMEOUT_PERIOD) run out, even on a slow link
+	int maxOneStreamedWriteTransferByteSize = 1 << 25; //32 MB
+
+	/** the longest URL (in characters) of one transfer, it is the URL that lists the blocks;
+	    the servers commonly refuse request lines longer than 4 KB (e.g. Vert.x with 4096) */
+	public int maxURLLength = 4000;
+
+	/** if true, the uploads are sent with a fixed-length streaming mode, which lifts the
+	    limit on the size of one transfer, so a region goes over fewer and longer requests */
+	public boolean streamingUploads = false;
+
+	/** if true, the blocks of a transfer are listed in the request body (see BatchedBlocks)
+	    instead of in the URL, which removes the limit on the number of blocks per transfer;
+	    the DatasetServer must support this */
+	public boolean batchedRequests = false;
+
+	/** the compression of the blocks on the wire: the downloads ask for it (and are decoded
+	    according to what the DatasetServer has actually sent), the uploads are sent compressed
+	    unless the DatasetServer refuses it, then they are sent raw; the 'transport' is always raw */
+	public WireCompression wireCompression = WireCompression.RAW;
+	/** the level of the wireCompression, WireCompression.DEFAULT_LEVEL lets the codec decide */
+	public int wireCompressionLevel = WireCompression.DEFAULT_LEVEL;
+	/** set once the DatasetServer has refused the compressed uploads */
+	volatile boolean compressedUploadsRefused = false;
+
+	/** if true, the all-zero blocks are uploaded as missing (only the header -1,-1,-1 is sent),
+	    they read back as zeros; the body length is then not known ahead and it is sent in chunks */
+	public boolean sparseWrites = false;
+	/** the data bytes that the sparseWrites did not have to send, over all writes of this transferrer */
+	public long sparseSavedBytes = 0;
+
+	/** if true, only the blocks whose content has changed since their last successful upload
+	    from this computer (see BlockHashManifest) are uploaded; this is possible only when
+	    writing into an existing version, otherwise all blocks are uploaded */
+	public boolean incrementalWrites = false;
+	/** the bytes that the incrementalWrites did not have to send, over all writes of this transferrer */
+	public long unchangedSavedBytes = 0;
+	/** if not null, only the blocks (x,y,z pixel coordinates) that it accepts are transferred */
+	Predicate<int[]> blockFilter = null;
+
+	/** if not null, the uploads (as they go on the wire) are not faster than it allows,
+	    the throttle may be shared by several transferrers to bound their total bandwidth */
+	public BandwidthThrottle uploadThrottle = null;
+
+	/** how many block buffers the encoder may fill ahead per one uploading connection */
+	int uploadBuffersPerConnection = 2;
+
+	/** how many times a failed transfer is tried again (possibly on a re-acquired
+	    DatasetServer) before the whole transfer is given up */
+	public int maxRetriesPerTransfer = 3;
+	/** the waiting before the first retry, it doubles with every next retry */
+	int retryDelayMillis = 1000;
 
 	static class OneTransfer {
-		public OneTransfer(final String URL, final int noOfBlocks) {
+		public OneTransfer(final String baseURL, final String URL, final List<int[]> blocks,
+		                   final long byteSize, final byte[] coordinates) {
+			this.baseURL = baseURL;
 			this.URL = URL;
-			this.noOfBlocks = noOfBlocks;
+			this.noOfBlocks = blocks.size();
+			this.blocks = blocks;
+			this.byteSize = byteSize;
+			this.coordinates = coordinates;
 		}
+		/** URL of the DatasetServer this transfer is aimed at */
+		public final String baseURL;
 		public final String URL;
 		public final int noOfBlocks;
+		/** x,y,z pixel coordinates of the blocks in the order as they appear in the URL (or in the body) */
+		public final List<int[]> blocks;
+		/** size of all blocks of this transfer, including their headers */
+		public final long byteSize;
+		/** the blocks listed in the batched format, to be sent in the body ahead
+		    of the blocks; or null if the blocks are listed in the URL */
+		public final byte[] coordinates;
 
 		@Override
 		public String toString() {
-			return (this.noOfBlocks+" blocks as "+this.URL);
+			return (this.noOfBlocks+" blocks ("+this.byteSize+" Bytes) as "+this.URL);
 		}
 	}
 	final List<OneTransfer> transferPlan = new LinkedList<>();
-	DataStoreRequest lastUsedRequest;
+	protected volatile DataStoreRequest lastUsedRequest;
 
-	void setupTransferPlan(final int maxTransferByteSize) {
-		final String baseURL = requestDatasetServer();
-		int maxBlocks = maxTransferByteSize / fullBlockByteSize; //to prevent from long transfers (and long URIs)
-		if (maxBlocks > 256) maxBlocks = 256;                    //to prevent from long URIs
+	/** the DatasetServer that the current transfers are aimed at, which can be shared
+	    by several transferrers with the same request, see shareServerWith() */
+	static class ServerLease {
+		volatile String baseURL;
+	}
+	ServerLease lease = new ServerLease();
+
+	/** makes this transferrer use (and re-acquire) the same DatasetServer as the 'other' one,
+	    which must be transferring at the same resolution level, version and access regime */
+	public void shareServerWith(final ImagePlusTransferrer other) {
+		this.lease = other.lease;
+	}
+
+	/** 'batchPath' is used for the batched requests, see BatchedBlocks.READ_PATH or WRITE_PATH */
+	void setupTransferPlan(final long maxTransferByteSize, final String batchPath) {
+		//the fixed plan is used from now on, even if the previous transfer was adaptive
+		tuner = null;
+		remainingBlocks = null;
 
-		if (maxBlocks == 0)
+		final String baseURL = requestDatasetServer();
+		lease.baseURL = baseURL;
+		if (maxTransferByteSize < fullBlockByteSize+12)
 			throw new IllegalStateException("Given max transfer size "+maxTransferByteSize
 					+" Bytes cannot host blocks of max size "+fullBlockByteSize+" Bytes");
 
 		transferPlan.clear();
-		StringBuilder currentURL = null;
-		int currentBlocksCnt = maxBlocks;
+		final Queue<int[]> blocks = allBlocks();
+		OneTransfer t;
+		while ((t = cutTransfer(blocks,baseURL,maxTransferByteSize,batchPath)) != null)
+			transferPlan.add(t);
+	}
 
-		//iterate over the blocks and build up the request URLs
+	/** x,y,z pixel coordinates of all blocks of the current region, in the order of transferring */
+	Queue<int[]> allBlocks() {
+		final Queue<int[]> blocks = new ArrayDeque<>();
 		for (int z = minZ; z <= maxZ; z += blockSize[2])
 			for (int y = minY; y <= maxY; y += blockSize[1])
-				for (int x = minX; x <= maxX; x += blockSize[0]) {
-					//time to start a new URL?
-					if (currentBlocksCnt == maxBlocks) {
-						//save old?
-						if (currentURL != null)
-							transferPlan.add( new OneTransfer(currentURL.toString(),currentBlocksCnt) );
-
-						//start new
-						currentURL = new StringBuilder(baseURL);
-						currentBlocksCnt = 0;
-					}
+				for (int x = minX; x <= maxX; x += blockSize[0])
+					if (blockFilter == null || blockFilter.test(new int[] {x,y,z}))
+						blocks.add( new int[] {x,y,z} );
+		return blocks;
+	}
 
-					currentURL.append(x/blockSize[0]+"/"
-							+ y/blockSize[1]+"/"
-							+ z/blockSize[2]+"/"
-							+ timepoint+"/"
-							+ channel+"/"
-							+ angle+"/");
-					++currentBlocksCnt;
-				}
+	/** takes the blocks from the head of the queue as long as they fit into 'maxTransferByteSize'
+	    (and into the URL), and returns them as one transfer; or null if the queue is empty */
+	OneTransfer cutTransfer(final Queue<int[]> blocks, final String baseURL,
+	                        final long maxTransferByteSize, final String batchPath) {
+		if (blocks.isEmpty()) return null;
+
+		final List<int[]> currentBlocks = new ArrayList<>();
+		long currentBytes = 0;
+		int currentURLLength = baseURL.length();
+		while (!blocks.isEmpty()) {
+			final int[] pos = blocks.peek();
+			final int blockURLLength = batchedRequests ? 0 : blockURL(pos[0],pos[1],pos[2]).length();
+			final long blockBytes = expectedBlockBytes(pos[0],pos[1],pos[2]);
+
+			//time to start a new URL? (to prevent from long transfers and long URIs)
+			if (!currentBlocks.isEmpty()
+					&& (currentBytes+blockBytes > maxTransferByteSize
+					|| currentURLLength+blockURLLength > maxURLLength)) break;
+
+			currentBlocks.add( blocks.poll() );
+			currentBytes += blockBytes;
+			currentURLLength += blockURLLength;
+		}
+		return createTransfer(baseURL,currentBlocks,batchPath);
+	}
+
+	// ----------------------------------------------
+	/** if true, the size of one transfer and the number of connections transferring at the
+	    same time are tuned during the transfer (see TransferTuner), instead of following
+	    the fixed transfer plan */
+	public boolean adaptiveTransfers = false;
+	/** the adaptive transfers may use up to this many connections, or 'parallelConnections' if more */
+	int maxAdaptiveConnections = 8;
+	/** the adaptive transfers start with this size, and may grow up to the max below */
+	int initialAdaptiveTransferByteSize = 1 << 21; //2 MB
+	int maxAdaptiveTransferByteSize = 1 << 28;     //256 MB
+	/** the current tuning, or null if the fixed transfer plan is used */
+	TransferTuner tuner = null;
+
+	/** if not null, the reading goes through this transport, which keeps up to 'maxTransfersInFlight'
+	    transfers in flight from a few threads; otherwise every connection is served by its own
+	    thread (and the adaptive transfers are available only then) */
+	public BlockTransport transport = null;
+	public int maxTransfersInFlight = 16;
+
+	/** counters and histograms of the latest readWithAType() or writeWithAType() */
+	public TransferStatistics statistics = new TransferStatistics("none");
+	/** the blocks that are yet to be transferred adaptively */
+	Queue<int[]> remainingBlocks;
+
+	/** the transfers are given to the connections one by one, as they are asked for */
+	interface TransferSource {
+		/** returns the next transfer, or null if there's none left */
+		OneTransfer next();
+	}
+
+	static TransferSource sourceOf(final Collection<OneTransfer> transfers) {
+		return new ConcurrentLinkedQueue<>(transfers)::poll;
+	}
+
+	/** prepares the adaptive transfers of the current region, which are cut only when asked for */
+	void setupAdaptiveTransfers(final long maxTransferByteSize) {
+		lease.baseURL = requestDatasetServer();
+		remainingBlocks = allBlocks();
+		final long minTransferByteSize = fullBlockByteSize+12;
+		tuner = new TransferTuner(initialAdaptiveTransferByteSize, minTransferByteSize,
+				Math.max(minTransferByteSize, maxTransferByteSize),
+				parallelConnections, Math.max(parallelConnections, maxAdaptiveConnections));
+		myLogger.info("Adaptive transfers start with "+tuner.transferByteSize()+" Bytes per transfer over "
+				+tuner.streams()+" connections, and may use up to "+tuner.maxStreams+" connections");
+	}
+
+	/** the source of the transfers of the current region, either the fixed plan or the adaptive one */
+	TransferSource currentTransfers(final String batchPath) {
+		if (tuner == null) {
+			final TransferSource source = sourceOf(transferPlan);
+			transferPlan.clear();
+			return source;
+		}
+		return () -> {
+			synchronized (remainingBlocks) {
+				return cutTransfer(remainingBlocks, lease.baseURL, tuner.transferByteSize(), batchPath);
+			}
+		};
+	}
+
+	/** how many connections the transfers of the current region may use at most */
+	int maxConnections() {
+		return tuner != null ? tuner.maxStreams : Math.max(1, Math.min(parallelConnections, transferPlan.size()));
+	}
+
+	void reportAdaptiveTransfers() {
+		if (tuner != null) myLogger.info(tuner.report());
+	}
 
-		//add also the last one
-		transferPlan.add( new OneTransfer(currentURL.toString(),currentBlocksCnt) );
+	/** the URL segment that asks for the block that starts at x,y,z pixel */
+	String blockURL(final int x, final int y, final int z) {
+		return x/blockSize[0]+"/"
+				+ y/blockSize[1]+"/"
+				+ z/blockSize[2]+"/"
+				+ timepoint+"/"
+				+ channel+"/"
+				+ angle+"/";
+	}
+
+	/** the size of the block that starts at x,y,z pixel, including its header */
+	long expectedBlockBytes(final int x, final int y, final int z) {
+		return 12 + (long)expectedBlockSize(x,0,maxX)
+				* expectedBlockSize(y,1,maxY) * expectedBlockSize(z,2,maxZ) * bytesPerPixel;
+	}
+
+	/** creates a transfer of the given blocks from/to the DatasetServer at 'baseURL' */
+	OneTransfer createTransfer(final String baseURL, final List<int[]> blocks, final String batchPath) {
+		long byteSize = 0;
+		for (int[] pos : blocks)
+			byteSize += expectedBlockBytes(pos[0],pos[1],pos[2]);
+
+		if (!batchedRequests) {
+			final StringBuilder url = new StringBuilder(baseURL);
+			for (int[] pos : blocks)
+				url.append(blockURL(pos[0],pos[1],pos[2]));
+			return new OneTransfer(baseURL,url.toString(),blocks,byteSize,null);
+		}
+
+		final List<long[]> gridPositions = new ArrayList<>(blocks.size());
+		for (int[] pos : blocks)
+			gridPositions.add( new long[] {pos[0]/blockSize[0], pos[1]/blockSize[1], pos[2]/blockSize[2]} );
+		return new OneTransfer(baseURL,baseURL+batchPath,blocks,byteSize,
+				BatchedBlocks.encodeCoordinates(gridPositions, timepoint,channel,angle));
+	}
+
+	/** the streamed transfers are made as long as possible, yet the region is still split
+	    so that every of the 'parallelConnections' has got some transfer to work on */
+	long streamedTransferByteSize() {
+		final long regionBytes = (long)(maxX-minX+1) * (maxY-minY+1) * (maxZ-minZ+1) * bytesPerPixel;
+		final long perConnection = regionBytes / Math.max(1, parallelConnections) + fullBlockByteSize+12;
+		return Math.min(maxOneStreamedWriteTransferByteSize, perConnection);
+	}
+
+	/** returns the expected size of a block that starts at 'pos' along the axis 'd',
+	    which is the normal block size unless the block sticks over the 'max' boundary */
+	int expectedBlockSize(final int pos, final int d, final int max) {
+		return pos+blockSize[d] > max+1 ? shortedBlockSize[d] : blockSize[d];
 	}
 
 	void printTransferPlan() {
@@ -170,112 +419,11 @@ public class ImagePlusTransferrer extends ImagePlusDialogHandler {
 			@SuppressWarnings("unchecked")
 			final Imglib2Types.TypeHandler<T> th = Imglib2Types.getTypeHandler(di.voxelType);
 			final Img<T> img = th.createPlanarImgFactory().create(maxX-minX+1,maxY-minY+1,maxZ-minZ+1);
-
-			//the expected block sizes for sanity checking of the incoming blocks
-			setupBlockSizes(th);
-			setupTransferPlan(maxOneReadTransferByteSize);
-			printTransferPlan();
-
-			//shared buffers to be re-used (to reduce calls to the operator 'new')
-			byte[] pxData = new byte[0];
-			final byte[] header = new byte[12];
-			final ByteBuffer wrapperOfHeader = ByteBuffer.wrap(header);
-
-			long totalHeaders = 0;
-			long totalData = 0;
-
-			InputStream dataSrc = null;
-			int remainingBlocks = 0;
-
-			long timeTotal = TimeProfiling.tic();
-
-			//iterate over the blocks and read them in into the image
-			for (int z = minZ; z <= maxZ; z += blockSize[2])
-				for (int y = minY; y <= maxY; y += blockSize[1])
-					for (int x = minX; x <= maxX; x += blockSize[0]) {
-						//start a new data transfer connection
-						if (remainingBlocks == 0) {
-							//earlier connection? -> finish it up
-							if (dataSrc != null) dataSrc.close();
-							//NB: might close/clean-up the connection completely
-
-							OneTransfer t = transferPlan.remove(0);
-							dataStoreService.serverIsUsedNow(lastUsedRequest);
-							myLogger.info("=========================");
-							myLogger.info("Downloading "+t);
-							dataSrc = new URL(t.URL).openStream();
-							remainingBlocks = t.noOfBlocks;
-						}
-						--remainingBlocks;
-
-						//calculate the expected sizes of the current block
-						shortedBlockFlag[0] = x+blockSize[0] > maxX+1;
-						shortedBlockFlag[1] = y+blockSize[1] > maxY+1;
-						shortedBlockFlag[2] = z+blockSize[2] > maxZ+1;
-						final int ex = shortedBlockFlag[0] ? shortedBlockSize[0] : blockSize[0];
-						final int ey = shortedBlockFlag[1] ? shortedBlockSize[1] : blockSize[1];
-						final int ez = shortedBlockFlag[2] ? shortedBlockSize[2] : blockSize[2];
-
-						myLogger.info("block at ["+x+","+y+","+z+"] px");
-						myLogger.info(" +- shorted block in x,y,z: "
-								+ shortedBlockFlag[0]+","+shortedBlockFlag[1]+","+shortedBlockFlag[2]);
-						myLogger.info(" +- I  expect  size: "+ex+" x "+ey+" x "+ez);
-
-						//retrieve the block header (which contains block size)
-						int readSoFar = 0;
-						while (readSoFar < 12) {
-							//make sure data is available, and read only afterwards
-							busyWaitOrThrowOnTimeOut(dataSrc);
-							readSoFar += dataSrc.read(header,readSoFar,12-readSoFar);
-						}
-						wrapperOfHeader.rewind();
-						final int bx = wrapperOfHeader.getInt();
-						final int by = wrapperOfHeader.getInt();
-						final int bz = wrapperOfHeader.getInt();
-						final int blockLength = bx*by*bz * th.nativeAndRealType.getBitsPerPixel()/8;
-
-						myLogger.info(" +- block says size: "+bx+" x "+by+" x "+bz
-								+ " -> "+blockLength+" Bytes");
-						totalHeaders += 12;
-
-						if (bx == -1 && by == -1 && bz == -1) {
-							//server signals that this block is missing, we skip it for now...
-							myLogger.info(" -> skipped");
-							continue;
-						}
-
-						//check if the incoming block size fits the currently expected block size
-						checkBlockSizeAndPassOrThrow(bx,ex,'x');
-						checkBlockSizeAndPassOrThrow(by,ey,'y');
-						checkBlockSizeAndPassOrThrow(bz,ez,'z');
-
-						//make sure the buffer can accommodate the incoming data
-						if (blockLength > pxData.length)
-							pxData = new byte[blockLength];
-
-						//(eventually) read the buffer (aka block) fully
-						readSoFar = 0;
-						while (readSoFar < blockLength) {
-							busyWaitOrThrowOnTimeOut(dataSrc);
-							readSoFar += dataSrc.read(pxData,readSoFar,blockLength-readSoFar);
-						}
-						myLogger.info(" +- read "+readSoFar+" Bytes");
-						totalData += readSoFar;
-
-						//copy the just-obtained buffer into the image block
-						th.blockIntoImgInterval(pxData, bx*by*bz, Views.interval(img,
-								new long[]{x-minX,      y-minY,      z-minZ},
-								new long[]{x-minX+bx-1, y-minY+by-1, z-minZ+bz-1}));
-					}
-			myLogger.info("Whole transfer took "
-					+TimeProfiling.seconds(TimeProfiling.tac(timeTotal))
-					+" seconds.");
+			readInto(img, th);
 
 			outDatasetImg = new DefaultDataset(this.getContext(),
 					new ImgPlus<>(img,"Retrieved image at "+timepoint+","+channel+","+angle) );
 			myLogger.info("Created image: \""+outDatasetImg.getName()+"\"");
-			myLogger.info("Transferred "+totalData+" Bytes ("+(totalData>>20)
-					+" MB) in pixels plus "+totalHeaders+" Bytes in headers");
 
 		} catch (NoSuchElementException e) {
 			myLogger.error("Unrecognized voxel type: " + e.getMessage());
@@ -289,122 +437,369 @@ public class ImagePlusTransferrer extends ImagePlusDialogHandler {
 		return outDatasetImg;
 	}
 
-
+	/** reads the current region, at the current timepoint,channel,angle, into the 'target'
+	    whose origin corresponds to the minX,minY,minZ pixel of the region */
 	public <T extends NativeType<T> & RealType<T>>
-	void writeWithAType(final Img<T> img) {
-		writeWithAType(img, img.firstElement());
+	void readInto(final RandomAccessibleInterval<T> target, final Imglib2Types.TypeHandler<T> th)
+	throws IOException, InterruptedException {
+		//the expected block sizes for sanity checking of the incoming blocks
+		setupBlockSizes(th);
+		if (adaptiveTransfers && transport == null) setupAdaptiveTransfers(maxAdaptiveTransferByteSize);
+		else setupTransferPlan(maxOneReadTransferByteSize, BatchedBlocks.READ_PATH);
+		printTransferPlan();
+
+		//iterate over the transfers and read their blocks in into the image
+		statistics = new TransferStatistics("read");
+		if (transport != null) readTransferPlanVia(transport, target, th);
+		else readTransferPlan(target, th);
+		statistics.finish();
+
+		myLogger.info(statistics.report());
+		reportAdaptiveTransfers();
 	}
 
-	public <T extends NativeType<T> & RealType<T>>
-	void writeWithAType(final RandomAccessibleInterval<T> rai, final T ofThisType) {
+	/** reads all blocks of the current transfers (the transferPlan, or the adaptive ones) into
+	    the given image, using up to 'parallelConnections' connections at the same time (or as
+	    many as the tuner allows) */
+	<T extends NativeType<T> & RealType<T>>
+	void readTransferPlan(final RandomAccessibleInterval<T> img, final Imglib2Types.TypeHandler<T> th)
+	throws IOException, InterruptedException {
+		final int connections = maxConnections();
+		final TransferSource pendingTransfers = currentTransfers(BatchedBlocks.READ_PATH);
+		final AtomicBoolean readingFailed = new AtomicBoolean(false);
+		if (connections == 1) {
+			new BlockReader<>(img,th).readAll(pendingTransfers, readingFailed);
+			return;
+		}
+
+		myLogger.info("Downloading over "+(tuner != null ? "up to " : "")+connections+" parallel connections");
+		final ExecutorService workers = Executors.newFixedThreadPool(connections);
 		try {
-			@SuppressWarnings("unchecked")
-			final Imglib2Types.TypeHandler<T> th = Imglib2Types.getTypeHandler(ofThisType);
+			final List<Future<Void>> results = new ArrayList<>(connections);
+			for (int i = 0; i < connections; ++i) {
+				final BlockReader<T> reader = new BlockReader<>(img,th);
+				results.add( workers.submit(() -> reader.readAll(pendingTransfers, readingFailed)) );
+			}
+			for (Future<Void> result : results)
+				waitForResult(result);
+		} finally {
+			workers.shutdownNow();
+		}
+	}
 
-			//sanity check already at the client
-			@SuppressWarnings("unchecked")
-			final Imglib2Types.TypeHandler<T> thServer = Imglib2Types.getTypeHandler(di.voxelType);
-			if (!thServer.nativeAndRealType.equals(th.nativeAndRealType))
-				throw new IllegalArgumentException("Connecting to a server for a type "+thServer.httpType
-						+" with a Dataset of a type "+th.httpType);
+	/** waits for the worker's result and re-throws the worker's exception, if any */
+	static <R> R waitForResult(final Future<R> result)
+	throws IOException, InterruptedException {
+		try {
+			return result.get();
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException)cause;
+			if (cause instanceof InterruptedException) throw (InterruptedException)cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw new IOException("Transfer failed: "+cause.getMessage(), cause);
+		}
+	}
 
-			//the expected block sizes for reporting
-			setupBlockSizes(th);
-			setupTransferPlan(maxOneWriteTransferByteSize);
-			printTransferPlan();
+	/**
+	 * Downloads blocks of the transfers, one transfer (one connection) after another,
+	 * into the given image. Every reader has its own buffers and statistics, so several
+	 * readers can be working simultaneously on the same queue of transfers -- the transfers
+	 * are carrying different blocks, and the readers thus write into disjoint intervals
+	 * of the image.
+	 */
+	class BlockReader<T extends NativeType<T> & RealType<T>> {
+		BlockReader(final RandomAccessibleInterval<T> img, final Imglib2Types.TypeHandler<T> th) {
+			this.img = img;
+			this.th = th;
+		}
 
-			//shared buffers to be re-used (to reduce calls to the operator 'new')
-			byte[] pxData = new byte[0];
-			final byte[] header = new byte[12];
-			final ByteBuffer wrapperOfHeader = ByteBuffer.wrap(header); //convenience wrapper to write block sizes into a byte array
-
-			long totalHeaders = 0;
-			long totalData = 0;
-
-			HttpURLConnection connection = null;
-			OutputStream dataTgt = null;
-			int remainingBlocks = 0;
-
-			long timeTotal = TimeProfiling.tic();
-
-			//iterate over the blocks and read them in into the image
-			for (int z = minZ; z <= maxZ; z += blockSize[2])
-				for (int y = minY; y <= maxY; y += blockSize[1])
-					for (int x = minX; x <= maxX; x += blockSize[0]) {
-						//start a new data transfer connection
-						if (remainingBlocks == 0) {
-							//earlier connection? -> finish it up
-							if (connection != null) {
-								dataStoreService.serverIsUsedNow(lastUsedRequest);
-								myLogger.info("=== transferring starts");
-								connection.getInputStream();
-								myLogger.info("=== transferring ends");
-								dataTgt.close(); //might close/clean-up the connection completely
-							}
-
-							OneTransfer t = transferPlan.remove(0);
-							myLogger.info("=========================");
-							myLogger.info("Uploading "+t);
-							connection = (HttpURLConnection) new URL(t.URL).openConnection();
-							connection.setRequestMethod("POST");
-							connection.setRequestProperty("Content-Type","application/octet-stream"); //to prevent from 415 err code (Unsupported Media Type)
-							connection.setDoOutput(true);
-							connection.connect();
-							dataTgt = connection.getOutputStream();
-							remainingBlocks = t.noOfBlocks;
-						}
-						--remainingBlocks;
-
-						//calculate the expected sizes of the current block
-						shortedBlockFlag[0] = x+blockSize[0] > maxX+1;
-						shortedBlockFlag[1] = y+blockSize[1] > maxY+1;
-						shortedBlockFlag[2] = z+blockSize[2] > maxZ+1;
-						final int ex = shortedBlockFlag[0] ? shortedBlockSize[0] : blockSize[0];
-						final int ey = shortedBlockFlag[1] ? shortedBlockSize[1] : blockSize[1];
-						final int ez = shortedBlockFlag[2] ? shortedBlockSize[2] : blockSize[2];
-						final int blockLength = ex*ey*ez * th.nativeAndRealType.getBitsPerPixel()/8;
-
-						myLogger.info("block at ["+x+","+y+","+z+"] px");
-						myLogger.info(" +- shorted block in x,y,z: "
-								+ shortedBlockFlag[0]+","+shortedBlockFlag[1]+","+shortedBlockFlag[2]);
-						myLogger.info(" +- I report size: "+ex+" x "+ey+" x "+ez
-								+ " -> "+blockLength+" Bytes");
-
-						//write the block header (which contains block size)
-						wrapperOfHeader.rewind();
-						wrapperOfHeader.putInt(ex);
-						wrapperOfHeader.putInt(ey);
-						wrapperOfHeader.putInt(ez);
-						try {
-							dataTgt.write(header, 0, 12);
-						} catch (IOException e) {
-							throw new IOException("Failed writing full block header",e);
-						}
-						totalHeaders += 12;
-
-						//make sure the buffer can accommodate the outgoing data
-						if (blockLength > pxData.length)
-							pxData = new byte[blockLength];
-
-						//copy the current image block into the buffer
-						th.imgIntervalIntoBlock( Views.interval(rai,
-								new long[]{x-minX,      y-minY,      z-minZ},
-								new long[]{x-minX+ex-1, y-minY+ey-1, z-minZ+ez-1}),
-								ex*ey*ez, pxData);
-
-						//(eventually) write the buffer (aka block) fully
-						dataTgt.write(pxData,0,blockLength);
-						//dataTgt.flush(); leave this decision on the subsystems...
-						myLogger.info(" +- wrote "+blockLength+" Bytes");
-						totalData += blockLength;
+		final RandomAccessibleInterval<T> img;
+		final Imglib2Types.TypeHandler<T> th;
+
+		//own buffers to be re-used (to reduce calls to the operator 'new')
+		byte[] pxData = new byte[0];
+		final byte[] header = new byte[12];
+		final ByteBuffer wrapperOfHeader = ByteBuffer.wrap(header);
+		final int[] blockDims = new int[3];
+		final long[] blockOffset = new long[3];
+
+		final TransferStatistics.Connection connectionStats = statistics.newConnection();
+
+		/** how long it took until the first Bytes of the current transfer have arrived */
+		long latencyNanos = 0;
+
+		/** keeps taking transfers until there's none left or until any reader has failed */
+		Void readAll(final TransferSource transfers, final AtomicBoolean readingFailed)
+		throws IOException, InterruptedException {
+			try {
+				while (!readingFailed.get()) {
+					if (tuner != null) tuner.acquireStream();
+					try {
+						final OneTransfer t = transfers.next();
+						if (t == null) break;
+						final long start = System.nanoTime();
+						read(t);
+						final long duration = System.nanoTime()-start;
+						connectionStats.transferDone(duration);
+						if (tuner != null) tuner.transferDone(t.byteSize, latencyNanos, duration);
+					} finally {
+						if (tuner != null) tuner.releaseStream();
 					}
-			myLogger.info("Whole transfer took "
-					+TimeProfiling.seconds(TimeProfiling.tac(timeTotal))
-					+" seconds.");
-			myLogger.info("=== transferring "+totalData+" Bytes ("+(totalData>>20)
-					+" MB) in pixels plus "+totalHeaders+" Bytes in headers");
-			connection.getInputStream();
-			myLogger.info("=== transferring ends");
+				}
+			} catch (IOException | InterruptedException | RuntimeException e) {
+				//make the other readers stop soon too
+				readingFailed.set(true);
+				throw e;
+			}
+			return null;
+		}
+
+		/** how many blocks of the current transfer have been read completely */
+		int blocksDone = 0;
+
+		/** reads the transfer, and if it fails, re-reads only its not-yet-read
+		    blocks (from a re-acquired DatasetServer if need be) */
+		void read(final OneTransfer transfer)
+		throws IOException, InterruptedException {
+			OneTransfer t = transfer;
+			for (int attempt = 1; ; ++attempt) {
+				blocksDone = 0;
+				try {
+					readOnce(t);
+					return;
+				} catch (IOException e) {
+					if (attempt > maxRetriesPerTransfer) throw e;
+					if (blocksDone == t.noOfBlocks) return; //failed only when closing
+					myLogger.warn("Downloading failed after "+blocksDone+" of "+t.noOfBlocks
+							+" blocks ("+e.getMessage()+"), retry #"+attempt);
+					final String baseURL = reacquireDatasetServer(t.baseURL, attempt);
+					t = createTransfer(baseURL, new ArrayList<>(t.blocks.subList(blocksDone,t.noOfBlocks)),
+							BatchedBlocks.READ_PATH);
+				}
+			}
+		}
+
+		void readOnce(final OneTransfer t)
+		throws IOException, InterruptedException {
+			dataStoreService.serverIsUsedNow(lastUsedRequest);
+			myLogger.info("=========================");
+			myLogger.info("Downloading "+t);
+			final long requestStart = System.nanoTime();
+			final HttpURLConnection connection = (HttpURLConnection)new URL(t.URL).openConnection();
+			connection.setConnectTimeout(DEFAULT_TIMEOUT_PERIOD);
+			connection.setReadTimeout(DEFAULT_TIMEOUT_PERIOD);
+			acceptWireCompression(connection);
+			if (t.coordinates != null) {
+				//batched request: the list of the wanted blocks goes in the body
+				connection.setRequestMethod("POST");
+				connection.setRequestProperty("Content-Type","application/octet-stream");
+				connection.setDoOutput(true);
+				connection.setFixedLengthStreamingMode(t.coordinates.length);
+				try (OutputStream coordsTgt = connection.getOutputStream()) {
+					coordsTgt.write(t.coordinates);
+				}
+			}
+			try (InputStream dataSrc = decodedInputStream(connection)) {
+				latencyNanos = System.nanoTime() - requestStart;
+				statistics.record(TransferStatistics.Phase.CONNECTION_SETUP, latencyNanos, 0);
+				for (int[] pos : t.blocks) {
+					readBlock(dataSrc, pos[0],pos[1],pos[2]);
+					++blocksDone;
+				}
+			} catch (SocketTimeoutException e) {
+				throw new IOException("Gave up waiting for incoming data, DatasetServer was silent for more than "
+						+DEFAULT_TIMEOUT_PERIOD+" ms on "+t.URL, e);
+			}
+		}
+
+		void readBlock(final InputStream dataSrc, final int x, final int y, final int z)
+		throws IOException {
+			//calculate the expected sizes of the current block
+			final int ex = expectedBlockSize(x,0,maxX);
+			final int ey = expectedBlockSize(y,1,maxY);
+			final int ez = expectedBlockSize(z,2,maxZ);
+
+			//retrieve the block header (which contains block size)
+			final long headerStart = System.nanoTime();
+			readFully(dataSrc, header, 12);
+			wrapperOfHeader.rewind();
+			final int bx = wrapperOfHeader.getInt();
+			final int by = wrapperOfHeader.getInt();
+			final int bz = wrapperOfHeader.getInt();
+			final int blockLength = bx*by*bz * th.nativeAndRealType.getBitsPerPixel()/8;
+			final long payloadStart = System.nanoTime();
+			statistics.record(TransferStatistics.Phase.HEADER, payloadStart-headerStart, 12);
+
+			if (bx == -1 && by == -1 && bz == -1) {
+				//server signals that this block is missing, we skip it for now...
+				connectionStats.blockDone(payloadStart-headerStart, 12);
+				return;
+			}
+
+			//check if the incoming block size fits the currently expected block size
+			checkBlockSizeAndPassOrThrow(bx,ex,'x');
+			checkBlockSizeAndPassOrThrow(by,ey,'y');
+			checkBlockSizeAndPassOrThrow(bz,ez,'z');
+
+			//make sure the buffer can accommodate the incoming data
+			if (blockLength > pxData.length)
+				pxData = new byte[blockLength];
+
+			//(eventually) read the buffer (aka block) fully
+			readFully(dataSrc, pxData, blockLength);
+			final long conversionStart = System.nanoTime();
+			statistics.record(TransferStatistics.Phase.PAYLOAD, conversionStart-payloadStart, blockLength);
+
+			//copy the just-obtained buffer into the image block
+			blockDims[0] = bx;      blockDims[1] = by;      blockDims[2] = bz;
+			blockOffset[0] = x-minX; blockOffset[1] = y-minY; blockOffset[2] = z-minZ;
+			th.blockIntoImg(pxData, blockDims, img, blockOffset);
+			final long blockEnd = System.nanoTime();
+			statistics.record(TransferStatistics.Phase.CONVERSION, blockEnd-conversionStart, blockLength);
+			connectionStats.blockDone(blockEnd-headerStart, 12+blockLength);
+		}
+	}
+
+
+	// ----------------------------------------------
+	/**
+	 * Reads all blocks of the current transferPlan into the given image via the 'transport',
+	 * keeping up to 'maxTransfersInFlight' transfers running at the same time. The transfers
+	 * that have failed (on an IOException) are re-tried, with only their not-yet-read blocks,
+	 * in the next round on a re-acquired DatasetServer.
+	 */
+	<T extends NativeType<T> & RealType<T>>
+	void readTransferPlanVia(final BlockTransport transport, final RandomAccessibleInterval<T> img,
+	                         final Imglib2Types.TypeHandler<T> th)
+	throws IOException, InterruptedException {
+		TransferSource pendingTransfers = currentTransfers(BatchedBlocks.READ_PATH);
+		myLogger.info("Downloading with up to "+maxTransfersInFlight+" transfers in flight");
+
+		for (int attempt = 1; ; ++attempt) {
+			final Semaphore inFlight = new Semaphore(maxTransfersInFlight);
+			final List<BlocksIntoImg<T>> transfers = new ArrayList<>();
+			OneTransfer t;
+			while ((t = pendingTransfers.next()) != null) {
+				inFlight.acquire();
+				dataStoreService.serverIsUsedNow(lastUsedRequest);
+				final BlocksIntoImg<T> handler = new BlocksIntoImg<>(t, img, th);
+				handler.result = transport.download(t.URL, t.coordinates, t.noOfBlocks, bytesPerPixel, handler);
+				handler.result.whenComplete((nothing,e) -> inFlight.release());
+				transfers.add(handler);
+			}
+
+			final List<OneTransfer> failedTransfers = new ArrayList<>();
+			IOException lastFailure = null;
+			for (BlocksIntoImg<T> handler : transfers) {
+				try {
+					waitForResult(handler.result);
+				} catch (IOException e) {
+					if (handler.blocksDone == handler.transfer.noOfBlocks) continue; //failed only when closing
+					lastFailure = e;
+					failedTransfers.add(handler.transfer);
+				}
+			}
+			if (failedTransfers.isEmpty()) return;
+			if (attempt > maxRetriesPerTransfer)
+				throw new IOException("Gave up downloading "+failedTransfers.size()+" transfers after "
+						+maxRetriesPerTransfer+" retries: "+lastFailure.getMessage(), lastFailure);
+
+			myLogger.warn(failedTransfers.size()+" transfers failed ("+lastFailure.getMessage()+"), retry #"+attempt);
+			final String baseURL = reacquireDatasetServer(failedTransfers.get(0).baseURL, attempt);
+			final List<OneTransfer> retriedTransfers = new ArrayList<>(failedTransfers.size());
+			for (BlocksIntoImg<T> handler : transfers)
+				if (failedTransfers.contains(handler.transfer))
+					retriedTransfers.add( createTransfer(baseURL, new ArrayList<>(handler.transfer.blocks
+							.subList(handler.blocksDone, handler.transfer.noOfBlocks)), BatchedBlocks.READ_PATH) );
+			pendingTransfers = sourceOf(retriedTransfers);
+		}
+	}
+
+	/**
+	 * Copies the blocks of one transfer, as they are coming from the transport, into the
+	 * image. The transfers are carrying different blocks, so the handlers of the transfers
+	 * in flight are writing into disjoint intervals of the image.
+	 */
+	class BlocksIntoImg<T extends NativeType<T> & RealType<T>> implements BlockTransport.BlockHandler {
+		BlocksIntoImg(final OneTransfer transfer, final RandomAccessibleInterval<T> img,
+		              final Imglib2Types.TypeHandler<T> th) {
+			this.transfer = transfer;
+			this.img = img;
+			this.th = th;
+		}
+
+		final OneTransfer transfer;
+		final RandomAccessibleInterval<T> img;
+		final Imglib2Types.TypeHandler<T> th;
+		final int[] blockDims = new int[3];
+		final long[] blockOffset = new long[3];
+
+		CompletableFuture<Void> result;
+		/** how many blocks of the transfer have been copied into the image */
+		volatile int blocksDone = 0;
+		long lastArrival = System.nanoTime();
+
+		@Override
+		public void block(final int blockIdx, final int bx, final int by, final int bz, final ByteBuffer data) {
+			final long arrival = System.nanoTime();
+			//the transport parses the headers, the waiting for the block is accounted as its payload
+			if (blockIdx == 0) statistics.record(TransferStatistics.Phase.CONNECTION_SETUP, arrival-lastArrival, 0);
+			else statistics.record(TransferStatistics.Phase.PAYLOAD, arrival-lastArrival, data != null ? data.limit() : 0);
+			statistics.record(TransferStatistics.Phase.HEADER, 0, 12);
+
+			if (data != null) {
+				final int[] pos = transfer.blocks.get(blockIdx);
+				checkBlockSizeAndPassOrThrow(bx,expectedBlockSize(pos[0],0,maxX),'x');
+				checkBlockSizeAndPassOrThrow(by,expectedBlockSize(pos[1],1,maxY),'y');
+				checkBlockSizeAndPassOrThrow(bz,expectedBlockSize(pos[2],2,maxZ),'z');
+
+				blockDims[0] = bx;             blockDims[1] = by;             blockDims[2] = bz;
+				blockOffset[0] = pos[0]-minX; blockOffset[1] = pos[1]-minY; blockOffset[2] = pos[2]-minZ;
+				th.blockIntoImg(data, blockDims, img, blockOffset);
+				statistics.record(TransferStatistics.Phase.CONVERSION, System.nanoTime()-arrival, data.limit());
+			}
+			++blocksDone;
+			lastArrival = System.nanoTime();
+		}
+	}
+
+
+	// ----------------------------------------------
+	/**
+	 * Returns an image whose cells map 1:1 to the blocks of the dataset, a block is
+	 * downloaded only when its cell is accessed for the first time. At most 'maxCachedBlocks'
+	 * blocks are held strongly in the memory, the least recently used ones beyond this are
+	 * evictable. The requested range must start at a block boundary.
+	 */
+	public <T extends NativeType<T> & RealType<T>>
+	Dataset readLazilyWithAType(final int maxCachedBlocks) {
+		//future return value
+		Dataset outDatasetImg = null;
+
+		try {
+			@SuppressWarnings("unchecked")
+			final Imglib2Types.TypeHandler<T> th = Imglib2Types.getTypeHandler(di.voxelType);
+			setupBlockSizes(th);
+			if (minX % blockSize[0] != 0 || minY % blockSize[1] != 0 || minZ % blockSize[2] != 0)
+				throw new IllegalStateException("Lazy reading requires the range to start at block boundaries, "
+						+"the blocks are "+blockSize[0]+" x "+blockSize[1]+" x "+blockSize[2]+" pixels.");
+			lease.baseURL = requestDatasetServer();
+			if (lease.baseURL == null)
+				throw new IOException("Failed to start a DatasetServer for "+datasetID);
+
+			final Img<T> img = new ReadOnlyCachedCellImgFactory().create(
+					new long[] {maxX-minX+1, maxY-minY+1, maxZ-minZ+1},
+					th.nativeAndRealType, new LazyBlockLoader<>(th),
+					options().cellDimensions(blockSize)
+							.cacheType(CacheType.BOUNDED)
+							.maxCacheSize(maxCachedBlocks));
+
+			outDatasetImg = new DefaultDataset(this.getContext(),
+					new ImgPlus<>(img,"Lazily retrieved image at "+timepoint+","+channel+","+angle) );
+			myLogger.info("Created lazy image: \""+outDatasetImg.getName()+"\" caching up to "
+					+maxCachedBlocks+" blocks");
 
 		} catch (NoSuchElementException e) {
 			myLogger.error("Unrecognized voxel type: " + e.getMessage());
@@ -413,22 +808,555 @@ public class ImagePlusTransferrer extends ImagePlusDialogHandler {
 			myLogger.error("Problem accessing the dataset: "+e.getMessage());
 			this.cancel("Problem accessing the dataset: "+e.getMessage());
 		}
+
+		return outDatasetImg;
+	}
+
+	/**
+	 * Fills one cell of the lazy image with its block. The DatasetServer URL is resolved
+	 * for every block anew because, between two accesses of the image, the DatasetServer
+	 * may have timed out and a new one must be requested. A failed download is retried
+	 * (on a re-acquired DatasetServer) as with the BlockReader. Missing blocks are left zero.
+	 */
+	class LazyBlockLoader<T extends NativeType<T> & RealType<T>> implements CellLoader<T> {
+		LazyBlockLoader(final Imglib2Types.TypeHandler<T> th) {
+			this.th = th;
+		}
+
+		final Imglib2Types.TypeHandler<T> th;
+
+		@Override
+		public void load(final SingleCellArrayImg<T, ?> cell) throws Exception {
+			final int[] cellSize = new int[3];
+			final long[] cellOffset = new long[3];
+			final StringBuilder blockURL = new StringBuilder();
+			final int[] imgMin = {minX, minY, minZ};
+			for (int d = 0; d < 3; ++d) {
+				cellSize[d] = (int)cell.dimension(d);
+				cellOffset[d] = cell.min(d);
+				blockURL.append((imgMin[d]+cell.min(d)) / blockSize[d]).append('/');
+			}
+			blockURL.append(timepoint).append('/').append(channel).append('/').append(angle);
+
+			String serverURL = dataStoreService.getActiveServingUrl(lastUsedRequest);
+			lease.baseURL = serverURL;
+			for (int attempt = 1; ; ++attempt) {
+				try {
+					loadOnce(serverURL+blockURL, cell, cellSize, cellOffset);
+					return;
+				} catch (IOException e) {
+					if (attempt > maxRetriesPerTransfer) throw e;
+					myLogger.warn("Downloading the block "+blockURL+" failed ("+e.getMessage()+"), retry #"+attempt);
+					serverURL = reacquireDatasetServer(serverURL, attempt);
+				}
+			}
+		}
+
+		void loadOnce(final String blockURL, final SingleCellArrayImg<T, ?> cell,
+		              final int[] cellSize, final long[] cellOffset)
+		throws IOException {
+			final HttpURLConnection connection = (HttpURLConnection)new URL(blockURL).openConnection();
+			connection.setConnectTimeout(DEFAULT_TIMEOUT_PERIOD);
+			connection.setReadTimeout(DEFAULT_TIMEOUT_PERIOD);
+			acceptWireCompression(connection);
+			try (InputStream dataSrc = decodedInputStream(connection)) {
+				final byte[] header = new byte[12];
+				readFully(dataSrc, header, 12);
+				final ByteBuffer wrapperOfHeader = ByteBuffer.wrap(header);
+				final int bx = wrapperOfHeader.getInt();
+				final int by = wrapperOfHeader.getInt();
+				final int bz = wrapperOfHeader.getInt();
+				if (bx == -1 && by == -1 && bz == -1) return;
+
+				checkBlockSizeAndPassOrThrow(bx,cellSize[0],'x');
+				checkBlockSizeAndPassOrThrow(by,cellSize[1],'y');
+				checkBlockSizeAndPassOrThrow(bz,cellSize[2],'z');
+
+				final byte[] pxData = new byte[bx*by*bz * bytesPerPixel];
+				readFully(dataSrc, pxData, pxData.length);
+				th.blockIntoImg(pxData, cellSize, cell, cellOffset);
+			} catch (SocketTimeoutException e) {
+				throw new IOException("Gave up waiting for the block "+blockURL+", DatasetServer was silent for more than "
+						+DEFAULT_TIMEOUT_PERIOD+" ms", e);
+			}
+		}
+	}
+
+
+	public <T extends NativeType<T> & RealType<T>>
+	void writeWithAType(final Img<T> img) {
+		writeWithAType(img, img.firstElement());
+	}
+
+	public <T extends NativeType<T> & RealType<T>>
+	void writeWithAType(final RandomAccessibleInterval<T> rai, final T ofThisType) {
+		try {
+			writeFrom(rai, ofThisType);
+		} catch (NoSuchElementException e) {
+			myLogger.error("Unrecognized voxel type: " + e.getMessage());
+			this.cancel("Unrecognized voxel type: " + e.getMessage());
+		} catch (IOException | InterruptedException | IllegalStateException e) {
+			myLogger.error("Problem accessing the dataset: "+e.getMessage());
+			this.cancel("Problem accessing the dataset: "+e.getMessage());
+		}
 		myLogger.info("DONE writing image.");
 	}
 
+	/** writes the 'rai', whose origin corresponds to the minX,minY,minZ pixel of the current
+	    region, into the current timepoint,channel,angle */
+	public <T extends NativeType<T> & RealType<T>>
+	void writeFrom(final RandomAccessibleInterval<T> rai, final T ofThisType)
+	throws IOException, InterruptedException {
+		@SuppressWarnings("unchecked")
+		final Imglib2Types.TypeHandler<T> th = Imglib2Types.getTypeHandler(ofThisType);
+
+		//sanity check already at the client
+		@SuppressWarnings("unchecked")
+		final Imglib2Types.TypeHandler<T> thServer = Imglib2Types.getTypeHandler(di.voxelType);
+		if (!thServer.nativeAndRealType.equals(th.nativeAndRealType))
+			throw new IllegalArgumentException("Connecting to a server for a type "+thServer.httpType
+					+" with a Dataset of a type "+th.httpType);
+
+		//the expected block sizes for reporting
+		setupBlockSizes(th);
+
+		final BlockHashManifest manifest = incrementalWrites ? manifestOfCurrentVersion() : null;
+		final Map<String,Long> changedBlocks = manifest != null ? hashChangedBlocks(rai, th, manifest) : null;
+		if (changedBlocks != null) {
+			if (changedBlocks.isEmpty()) {
+				statistics = new TransferStatistics("write");
+				recordUnchangedBlocks(changedBlocks);
+				statistics.finish();
+				unchangedSavedBytes += statistics.unchangedBytes();
+				myLogger.info("No block has changed since the last upload, nothing to write.");
+				return;
+			}
+			blockFilter = pos -> changedBlocks.containsKey(blockURL(pos[0],pos[1],pos[2]));
+			//the blocks being sent are unknown on the server until they all are sent
+			manifest.forget(changedBlocks.keySet());
+		} else {
+			//the blocks written without hashing would otherwise look unchanged to a later incremental write
+			BlockHashManifest.discard(datasetID, versionAsStr, currentResLevel.resolutions);
+		}
+
+		try {
+			if (adaptiveTransfers) setupAdaptiveTransfers(streamingUploads
+					? Math.min(maxAdaptiveTransferByteSize, maxOneStreamedWriteTransferByteSize)
+					: maxOneWriteTransferByteSize);
+			else setupTransferPlan(streamingUploads ? streamedTransferByteSize() : maxOneWriteTransferByteSize,
+					BatchedBlocks.WRITE_PATH);
+			printTransferPlan();
+		} finally {
+			blockFilter = null;
+		}
+
+		//encode the blocks and stream them out to the server
+		statistics = new TransferStatistics("write");
+		if (changedBlocks != null) recordUnchangedBlocks(changedBlocks);
+		writeTransferPlan(rai, th);
+		statistics.finish();
+		sparseSavedBytes += statistics.savedBytes();
+		unchangedSavedBytes += statistics.unchangedBytes();
+		if (manifest != null) manifest.update(changedBlocks);
+
+		myLogger.info(statistics.report());
+		reportAdaptiveTransfers();
+	}
+
+	/** the manifest of the version that is written into, or null if it is not an existing version */
+	BlockHashManifest manifestOfCurrentVersion() throws IOException {
+		String version = versionAsStr;
+		if (version.equals("latest")) {
+			//the latest version may have been just created by this very writing
+			final List<Integer> versions = DatasetInfo.createFrom(URL, datasetID).versions;
+			version = versions == null || versions.isEmpty() ? null : String.valueOf(Collections.max(versions));
+		}
+		if (version == null || !version.matches("[0-9]+")) {
+			myLogger.warn("Incremental writes need an existing version, all blocks are written into "+versionAsStr);
+			return null;
+		}
+		return BlockHashManifest.of(datasetID, version, currentResLevel.resolutions);
+	}
+
+	/** returns the content hashes of the blocks of the current region that differ from the 'manifest' */
+	<T extends NativeType<T> & RealType<T>>
+	Map<String,Long> hashChangedBlocks(final RandomAccessibleInterval<T> rai, final Imglib2Types.TypeHandler<T> th,
+	                                   final BlockHashManifest manifest) {
+		final Map<String,Long> changedBlocks = new HashMap<>();
+		final byte[] pixels = new byte[fullBlockByteSize];
+		int noOfBlocks = 0;
+		for (int[] pos : allBlocks()) {
+			final int x = pos[0], y = pos[1], z = pos[2];
+			final int ex = expectedBlockSize(x,0,maxX);
+			final int ey = expectedBlockSize(y,1,maxY);
+			final int ez = expectedBlockSize(z,2,maxZ);
+			th.imgIntoBlock(rai, new long[]{x-minX, y-minY, z-minZ}, new int[]{ex,ey,ez}, pixels);
+
+			final String block = blockURL(x,y,z);
+			final long hash = BlockHashManifest.hash(pixels, ex*ey*ez * bytesPerPixel);
+			if (!manifest.isUnchanged(block, hash)) changedBlocks.put(block, hash);
+			++noOfBlocks;
+		}
+		myLogger.info(changedBlocks.size()+" of "+noOfBlocks+" blocks have changed since the last upload");
+		return changedBlocks;
+	}
+
+	void recordUnchangedBlocks(final Map<String,Long> changedBlocks) {
+		for (int[] pos : allBlocks())
+			if (!changedBlocks.containsKey(blockURL(pos[0],pos[1],pos[2])))
+				statistics.recordUnchangedBlock(expectedBlockBytes(pos[0],pos[1],pos[2]));
+	}
+
+	/**
+	 * Uploads all blocks of the current transfers (the transferPlan, or the adaptive ones).
+	 * The blocks of the transfers that have failed (on an IOException) are uploaded again
+	 * to a re-acquired DatasetServer, in transfers of at most maxOneWriteTransferByteSize.
+	 * A transfer is considered done only after the server has responded to it, that is,
+	 * the retries start from the last transfer that has been completed, and another failure
+	 * makes only one of the (shorter) retried transfers to be sent again.
+	 */
+	<T extends NativeType<T> & RealType<T>>
+	void writeTransferPlan(final RandomAccessibleInterval<T> rai, final Imglib2Types.TypeHandler<T> th)
+	throws IOException, InterruptedException {
+		int connections = maxConnections();
+		TransferSource transfers = currentTransfers(BatchedBlocks.WRITE_PATH);
+
+		for (int attempt = 1; ; ++attempt) {
+			final List<OneTransfer> failedTransfers = uploadTransfers(rai, th, transfers, connections);
+			if (failedTransfers.isEmpty()) return;
+			if (attempt > maxRetriesPerTransfer)
+				throw new IOException("Gave up uploading "+failedTransfers.size()+" transfers after "
+						+maxRetriesPerTransfer+" retries: "+lastUploadFailure.getMessage(), lastUploadFailure);
+
+			myLogger.warn(failedTransfers.size()+" transfers failed ("
+					+lastUploadFailure.getMessage()+"), retry #"+attempt);
+			//the refused compression is not a fault of the DatasetServer, the same one is retried raw
+			final String baseURL = lastUploadFailure instanceof CompressionRefusedException
+					? failedTransfers.get(0).baseURL
+					: reacquireDatasetServer(failedTransfers.get(0).baseURL, attempt);
+			final List<OneTransfer> retriedTransfers = new ArrayList<>(failedTransfers.size());
+			for (OneTransfer t : failedTransfers) {
+				final Queue<int[]> blocks = new ArrayDeque<>(t.blocks);
+				OneTransfer retried;
+				while ((retried = cutTransfer(blocks, baseURL, maxOneWriteTransferByteSize, BatchedBlocks.WRITE_PATH)) != null)
+					retriedTransfers.add(retried);
+			}
+			transfers = sourceOf(retriedTransfers);
+			connections = Math.min(connections, retriedTransfers.size());
+		}
+	}
+
+	/** the most recent reason why an upload has failed */
+	volatile IOException lastUploadFailure;
+
+	/** the DatasetServer has answered a compressed upload with 415 Unsupported Media Type */
+	static class CompressionRefusedException extends IOException {
+		CompressionRefusedException(final String msg, final Throwable cause) {
+			super(msg, cause);
+		}
+	}
 
-	private void busyWaitOrThrowOnTimeOut(final InputStream dataSrc)
+	/**
+	 * Uploads the given transfers as a two-stage pipeline:
+	 * This (calling) thread is the encoder that converts image blocks into buffers,
+	 * which are taken from a small pool of recycled buffers (to keep the memory bounded),
+	 * and hands the ready buffers over to the uploaders. There are 'connections' uploaders,
+	 * each streams the buffers of its transfers (its connections) to the server and returns
+	 * the buffers back to the pool. The encoding of next blocks thus overlaps with the network
+	 * transfer of the previous ones. Every transfer is given to an uploader that is idle at
+	 * that moment, and only as many uploaders as the tuner allows (if any) are busy at a time.
+	 * <p>
+	 * Returns the transfers that have failed, or that were not started at all because
+	 * some other transfer had failed meanwhile (and the server is likely gone).
+	 */
+	<T extends NativeType<T> & RealType<T>>
+	List<OneTransfer> uploadTransfers(final RandomAccessibleInterval<T> rai, final Imglib2Types.TypeHandler<T> th,
+	                                  final TransferSource transfers, final int connections)
 	throws IOException, InterruptedException {
-		int tries = 0;
-		long waitTime = 20;
+		final int buffers = connections * Math.max(2, uploadBuffersPerConnection);
+
+		final BlockingQueue<EncodedBlock> freeBuffers = new ArrayBlockingQueue<>(buffers);
+		for (int i = 0; i < buffers; ++i)
+			freeBuffers.add( new EncodedBlock(fullBlockByteSize) );
+		myLogger.info("Uploading over "+connections+" connections with "+buffers+" buffers of "
+				+(fullBlockByteSize+12)+" Bytes");
+
+		final AtomicBoolean pipelineFailed = new AtomicBoolean(false);
+		final AtomicBoolean retryNeeded = new AtomicBoolean(false);
+		final Queue<OneTransfer> failedTransfers = new ConcurrentLinkedQueue<>();
+		final List<BlockUploader> uploaders = new ArrayList<>(connections);
+		final BlockingQueue<BlockUploader> idleUploaders = new ArrayBlockingQueue<>(connections);
+		final ExecutorService workers = Executors.newFixedThreadPool(connections);
+		final List<Future<?>> results = new ArrayList<>(connections);
+		try {
+			for (int i = 0; i < connections; ++i) {
+				final BlockUploader uploader = new BlockUploader(i, freeBuffers, pipelineFailed,
+						retryNeeded, failedTransfers, idleUploaders);
+				uploaders.add(uploader);
+				idleUploaders.add(uploader);
+				results.add( workers.submit(uploader) );
+			}
+
+			//the encoder stage: the transfers are dealt to the idle uploaders
+			OneTransfer t;
+			encoding:
+			while ((t = transfers.next()) != null) {
+				if (retryNeeded.get()) {
+					//no point in starting new transfers now, they will be retried altogether
+					failedTransfers.add(t);
+					continue;
+				}
+				if (tuner != null) tuner.acquireStream();
+				final BlockUploader uploader = idleUploaders.take();
+				int blockIdx = 0;
+				for (int[] pos : t.blocks) {
+					final EncodedBlock b = takeFreeBuffer(freeBuffers, pipelineFailed);
+					if (b == null) break encoding;
+
+					final long encodingStart = System.nanoTime();
+					final int x = pos[0], y = pos[1], z = pos[2];
+					final int ex = expectedBlockSize(x,0,maxX);
+					final int ey = expectedBlockSize(y,1,maxY);
+					final int ez = expectedBlockSize(z,2,maxZ);
+
+					//the block header (which contains block size)
+					b.wrapperOfHeader.rewind();
+					b.wrapperOfHeader.putInt(ex);
+					b.wrapperOfHeader.putInt(ey);
+					b.wrapperOfHeader.putInt(ez);
+
+					//copy the current image block into the buffer
+					b.pixelsLength = ex*ey*ez * bytesPerPixel;
+					th.imgIntoBlock(rai, new long[]{x-minX, y-minY, z-minZ}, new int[]{ex,ey,ez}, b.pixels);
+					if (sparseWrites && DataBlockRoutines.isAllZero(b.pixels, b.pixelsLength)) {
+						b.wrapperOfHeader.rewind();
+						b.wrapperOfHeader.putInt(-1).putInt(-1).putInt(-1);
+						statistics.recordSparseBlock(b.pixelsLength);
+						b.pixelsLength = 0;
+					}
+					statistics.record(TransferStatistics.Phase.CONVERSION,
+							System.nanoTime() - encodingStart, ex*ey*ez * bytesPerPixel);
+
+					b.transfer = t;
+					b.opensTransfer = blockIdx == 0;
+					b.closesTransfer = ++blockIdx == t.noOfBlocks;
+					uploader.readyBuffers.put(b);
+				}
+			}
+
+			//signal the end of the work, and wait for the uploaders to finish it
+			for (BlockUploader uploader : uploaders)
+				uploader.readyBuffers.put(EncodedBlock.END_OF_TRANSFERS);
+			for (Future<?> result : results)
+				waitForResult(result);
+
+			for (BlockUploader uploader : uploaders)
+				if (uploader.failure != null) throw uploader.failure;
+			return new ArrayList<>(failedTransfers);
+		} finally {
+			workers.shutdownNow();
+		}
+	}
 
-		while (dataSrc.available() == 0 && tries < 10) {
-			Thread.sleep(waitTime);
-			waitTime += 0.84*waitTime; //...nearly doubling-waiting time
-			++tries;
+	/** waits until some buffer is free, or returns null if the pipeline has failed meanwhile */
+	private static EncodedBlock takeFreeBuffer(final BlockingQueue<EncodedBlock> freeBuffers,
+	                                           final AtomicBoolean pipelineFailed)
+	throws InterruptedException {
+		EncodedBlock b = null;
+		while (b == null && !pipelineFailed.get())
+			b = freeBuffers.poll(100, TimeUnit.MILLISECONDS);
+		return b;
+	}
+
+	/** one recyclable buffer of the upload pipeline, holds one block ready to be sent */
+	static class EncodedBlock {
+		EncodedBlock(final int pixelsCapacity) {
+			pixels = new byte[pixelsCapacity];
+		}
+
+		/** a marker (poison pill) to tell the uploaders there will be no more blocks */
+		static final EncodedBlock END_OF_TRANSFERS = new EncodedBlock(0);
+
+		final byte[] header = new byte[12];
+		final ByteBuffer wrapperOfHeader = ByteBuffer.wrap(header);
+		final byte[] pixels;
+		int pixelsLength;
+
+		OneTransfer transfer;
+		boolean opensTransfer, closesTransfer;
+	}
+
+	/**
+	 * The uploader stage of the pipeline: streams the ready buffers into the connections
+	 * of its transfers and returns the buffers back to the pool. A transfer that fails on
+	 * an IOException is noted for a retry and its remaining buffers are only recycled.
+	 * Once any uploader fails otherwise, all uploaders only keep recycling the buffers (so
+	 * that the encoder is never left waiting) until the end of transfers is signalled.
+	 * Whenever a transfer is over, the uploader offers itself to the encoder again.
+	 */
+	class BlockUploader implements Callable<Void> {
+		BlockUploader(final int id, final BlockingQueue<EncodedBlock> freeBuffers,
+		              final AtomicBoolean pipelineFailed, final AtomicBoolean retryNeeded,
+		              final Queue<OneTransfer> failedTransfers,
+		              final BlockingQueue<BlockUploader> idleUploaders) {
+			this.id = id;
+			this.freeBuffers = freeBuffers;
+			this.pipelineFailed = pipelineFailed;
+			this.retryNeeded = retryNeeded;
+			this.failedTransfers = failedTransfers;
+			this.idleUploaders = idleUploaders;
+		}
+
+		final int id;
+		final BlockingQueue<EncodedBlock> readyBuffers = new LinkedBlockingQueue<>();
+		final BlockingQueue<EncodedBlock> freeBuffers;
+		final AtomicBoolean pipelineFailed;
+		final AtomicBoolean retryNeeded;
+		final Queue<OneTransfer> failedTransfers;
+		final BlockingQueue<BlockUploader> idleUploaders;
+
+		HttpURLConnection connection = null;
+		long transferStart = 0;
+		/** the transfer that has failed, its remaining buffers are skipped */
+		OneTransfer failedTransfer = null;
+		OutputStream dataTgt = null;
+		/** the wire compression of the current transfer */
+		WireCompression compression = WireCompression.RAW;
+
+		final TransferStatistics.Connection connectionStats = statistics.newConnection();
+		IOException failure = null;
+
+		@Override
+		public Void call() throws InterruptedException {
+			EncodedBlock b;
+			while ((b = readyBuffers.take()) != EncodedBlock.END_OF_TRANSFERS) {
+				if (!pipelineFailed.get() && b.transfer != failedTransfer) {
+					try {
+						upload(b);
+					} catch (IOException e) {
+						myLogger.warn("Failed uploading "+b.transfer+": "+e.getMessage());
+						lastUploadFailure = e;
+						failedTransfer = b.transfer;
+						failedTransfers.add(b.transfer);
+						retryNeeded.set(true);
+						if (connection != null) connection.disconnect();
+						connection = null;
+					} catch (RuntimeException e) {
+						failure = new IOException("Failed uploading: "+e.getMessage(), e);
+						pipelineFailed.set(true);
+					}
+				}
+				freeBuffers.put(b);
+				if (b.closesTransfer) {
+					if (tuner != null) tuner.releaseStream();
+					idleUploaders.put(this);
+				}
+			}
+			if (connection != null) connection.disconnect();
+			return null;
+		}
+
+		void upload(final EncodedBlock b) throws IOException {
+			if (b.opensTransfer) {
+				myLogger.info("=========================");
+				myLogger.info("Uploading "+b.transfer);
+				transferStart = System.nanoTime();
+				connection = (HttpURLConnection) new URL(b.transfer.URL).openConnection();
+				connection.setConnectTimeout(DEFAULT_TIMEOUT_PERIOD);
+				connection.setReadTimeout(DEFAULT_TIMEOUT_PERIOD);
+				connection.setRequestMethod("POST");
+				connection.setRequestProperty("Content-Type","application/octet-stream"); //to prevent from 415 err code (Unsupported Media Type)
+				connection.setDoOutput(true);
+				compression = compressedUploadsRefused ? WireCompression.RAW : wireCompression;
+				if (compression != WireCompression.RAW)
+					connection.setRequestProperty(WireCompression.CONTENT_ENCODING, compression.encoding);
+				//without it, the whole body is buffered locally and sent only after it is complete
+				//(the length of a compressed or sparse body is not known in advance, it is sent in chunks)
+				if (streamingUploads) {
+					if (compression != WireCompression.RAW || sparseWrites) connection.setChunkedStreamingMode(1 << 16);
+					else connection.setFixedLengthStreamingMode(b.transfer.byteSize
+							+ (b.transfer.coordinates != null ? b.transfer.coordinates.length : 0));
+				}
+				connection.connect();
+				final OutputStream wire = uploadThrottle != null
+						? uploadThrottle.throttled(connection.getOutputStream()) : connection.getOutputStream();
+				dataTgt = compression.compress(wire, wireCompressionLevel);
+				if (b.transfer.coordinates != null) dataTgt.write(b.transfer.coordinates);
+				statistics.record(TransferStatistics.Phase.CONNECTION_SETUP, System.nanoTime()-transferStart, 0);
+			}
+
+			final long headerStart = System.nanoTime();
+			try {
+				dataTgt.write(b.header, 0, 12);
+			} catch (IOException e) {
+				throw new IOException("Failed writing full block header",e);
+			}
+			final long payloadStart = System.nanoTime();
+			statistics.record(TransferStatistics.Phase.HEADER, payloadStart-headerStart, 12);
+			//dataTgt.flush(); leave this decision on the subsystems...
+			dataTgt.write(b.pixels, 0, b.pixelsLength);
+			final long blockEnd = System.nanoTime();
+			statistics.record(TransferStatistics.Phase.PAYLOAD, blockEnd-payloadStart, b.pixelsLength);
+			connectionStats.blockDone(blockEnd-headerStart, 12+b.pixelsLength);
+
+			if (b.closesTransfer) {
+				dataStoreService.serverIsUsedNow(lastUsedRequest);
+				dataTgt.close(); //might close/clean-up the connection completely
+				final long responseStart = System.nanoTime();
+				try {
+					connection.getInputStream().close();
+				} catch (IOException e) {
+					if (compression != WireCompression.RAW
+							&& connection.getResponseCode() == HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+						compressedUploadsRefused = true;
+						throw new CompressionRefusedException("DatasetServer refused "+compression.encoding
+								+" compressed blocks, they are sent raw from now on", e);
+					}
+					throw e;
+				}
+				final long transferEnd = System.nanoTime();
+				statistics.record(TransferStatistics.Phase.RESPONSE, transferEnd-responseStart, 0);
+				connectionStats.transferDone(transferEnd-transferStart);
+				if (tuner != null) tuner.transferDone(b.transfer.byteSize,
+						transferEnd-responseStart, transferEnd-transferStart);
+				connection = null;
+			}
+		}
+	}
+
+
+	/** asks the DatasetServer for the wireCompression of the blocks it sends */
+	void acceptWireCompression(final HttpURLConnection connection) {
+		if (wireCompression != WireCompression.RAW)
+			connection.setRequestProperty(WireCompression.ACCEPT_ENCODING, wireCompression.encoding);
+	}
+
+	/** the response body of the 'connection' decoded according to its Content-Encoding */
+	static InputStream decodedInputStream(final HttpURLConnection connection)
+	throws IOException {
+		final InputStream is = connection.getInputStream();
+		try {
+			return WireCompression.decoding(connection.getContentEncoding(), is);
+		} catch (IOException e) {
+			is.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Blocks until exactly 'length' bytes are read into the 'buffer', the waiting
+	 * is bounded with the read timeout of the underlying connection.
+	 */
+	static void readFully(final InputStream dataSrc, final byte[] buffer, final int length)
+	throws IOException {
+		int readSoFar = 0;
+		while (readSoFar < length) {
+			final int justRead = dataSrc.read(buffer,readSoFar,length-readSoFar);
+			if (justRead < 0)
+				throw new EOFException("DatasetServer closed the connection after "
+						+readSoFar+" Bytes, expected "+length+" Bytes");
+			readSoFar += justRead;
 		}
-		if (dataSrc.available() == 0)
-			throw new IOException("Gave up waiting for incoming data");
 	}
 
 
@@ -446,12 +1374,11 @@ public class ImagePlusTransferrer extends ImagePlusDialogHandler {
 		myLogger.info("  at version "+versionAsStr);
 		myLogger.info("from dataset "+datasetID+" from "+URL+" for "+accessRegime);
 
-		lastUsedRequest = new DataStoreRequest(URL,datasetID,
-				currentResLevel.resolutions.get(0), currentResLevel.resolutions.get(1),
-				currentResLevel.resolutions.get(2), versionAsStr, accessRegime, DEFAULT_TIMEOUT_PERIOD /*timeout*/);
+		lastUsedRequest = currentRequest();
 		myLogger.info("1: "+lastUsedRequest.createRequestURL());
 
 		try {
+			//the transferrers sharing the lease all get the same one, see DataStoreService.requestConnection()
 			final String datasetServerUrl = dataStoreService.getActiveServingUrl(lastUsedRequest);
 			myLogger.info("2: "+datasetServerUrl);
 			return datasetServerUrl;
@@ -460,4 +1387,105 @@ public class ImagePlusTransferrer extends ImagePlusDialogHandler {
 			return null;
 		}
 	}
+
+	/**
+	 * Like requestDatasetServer() but returns immediately, the future completes with
+	 * the URL once the DatasetServer is running, or exceptionally if it has failed.
+	 */
+	protected CompletableFuture<String> requestDatasetServerAsync() {
+		lastUsedRequest = currentRequest();
+		myLogger.info("Asking for "+lastUsedRequest.createRequestURL());
+		return dataStoreService.getActiveServingUrlAsync(lastUsedRequest);
+	}
+
+	/** the request for a DatasetServer of the current res level, version and access regime */
+	DataStoreRequest currentRequest() {
+		return new DataStoreRequest(URL,datasetID,
+				currentResLevel.resolutions.get(0), currentResLevel.resolutions.get(1),
+				currentResLevel.resolutions.get(2), versionAsStr, accessRegime, serverTimeout);
+	}
+
+	/**
+	 * Waits a bit (longer with every next 'attempt') and then makes sure there's a running
+	 * DatasetServer, returns its URL. If the DatasetServer at the 'failedBaseURL' is still
+	 * the current one, it is forgotten and a new one is requested; otherwise someone else
+	 * (another connection, or another transferrer sharing the lease) has already re-acquired
+	 * it and the current one is returned.
+	 */
+	String reacquireDatasetServer(final String failedBaseURL, final int attempt)
+	throws IOException, InterruptedException {
+		Thread.sleep((long)retryDelayMillis << Math.min(attempt-1, 10));
+		synchronized (lease) {
+			if (!failedBaseURL.equals(lease.baseURL)) return lease.baseURL;
+
+			dataStoreService.forgetServingUrl(lastUsedRequest);
+			pinNewVersion(failedBaseURL);
+			final String datasetServerUrl = dataStoreService.getActiveServingUrl(lastUsedRequest);
+			myLogger.warn("Re-acquired DatasetServer: "+datasetServerUrl);
+			lease.baseURL = datasetServerUrl;
+			return datasetServerUrl;
+		}
+	}
+
+	/**
+	 * Turns the version "new" of this transferrer into a concrete one: a DatasetServer is
+	 * started for the "new", which creates the version, and the created version is used from
+	 * now on. Several transferrers given the returned version thus write into the same new
+	 * version, instead of each creating its own one. Other versions are returned as they are.
+	 */
+	public String resolveNewVersion() throws IOException {
+		if (!versionAsStr.startsWith("new")) return versionAsStr;
+
+		final String serverURL = requestDatasetServer();
+		if (serverURL == null)
+			throw new IOException("Failed to start a DatasetServer for a new version of "+datasetID);
+		//the next "new" must not get this DatasetServer, it would not create another version
+		dataStoreService.forgetServingUrl(lastUsedRequest);
+		versionAsStr = createdVersion(serverURL);
+		myLogger.info("Created the version "+versionAsStr);
+		return versionAsStr;
+	}
+
+	/**
+	 * Writing into the version "new" has created a new version already, the re-acquired
+	 * DatasetServer must keep writing into it (and not create yet another version),
+	 * so the request is changed to ask for that version explicitly. The version is the one
+	 * served by the DatasetServer at 'createdServerURL', which was started for the "new".
+	 */
+	void pinNewVersion(final String createdServerURL) throws IOException {
+		if (!"new".equals(lastUsedRequest.getVersion())) return;
+
+		final String version = createdVersion(createdServerURL);
+		myLogger.info("Continuing with the version "+version+" that was created by this transfer");
+		lastUsedRequest = new DataStoreRequest(URL,datasetID,
+				currentResLevel.resolutions.get(0), currentResLevel.resolutions.get(1),
+				currentResLevel.resolutions.get(2), version, accessRegime, serverTimeout);
+	}
+
+	/**
+	 * Returns the version served by the DatasetServer at 'serverURL' that was started for
+	 * the version "new". Its URL tells it (.../version/accessRegime/), and if it does not,
+	 * it is the only version that has appeared since the dataset info of this transfer
+	 * was obtained -- other clients may be creating versions too, the latest is not enough.
+	 */
+	String createdVersion(final String serverURL) throws IOException {
+		final String version = versionInServerURL(serverURL, accessRegime);
+		if (version != null) return version;
+
+		final List<Integer> created = new ArrayList<>(DatasetInfo.createFrom(URL, datasetID).versions);
+		if (di != null && di.versions != null) created.removeAll(di.versions);
+		if (created.size() != 1)
+			throw new IOException("Cannot tell which of the versions "+created
+					+" was created by this transfer at "+serverURL);
+		return String.valueOf(created.get(0));
+	}
+
+	/** the version segment of the DatasetServer URL .../version/accessRegime/, or null if there's none */
+	static String versionInServerURL(final String serverURL, final String accessRegime) {
+		final String[] segments = serverURL.split("\\?")[0].split("/");
+		for (int i = segments.length-1; i > 0; --i)
+			if (segments[i].equals(accessRegime))
+				return segments[i-1].matches("[0-9]+") ? segments[i-1] : null;
+		return null;
+	}
 }
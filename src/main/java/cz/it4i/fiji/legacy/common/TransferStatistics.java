@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2023 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.legacy.common;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of durations of the phases of one transfer (one reading or
+ * writing of an image), collected from all connections. Recording is cheap (a few
+ * lock-free increments, no strings are built), so it is always on. The report is
+ * built only when asked for with report().
+ */
+public class TransferStatistics {
+	public enum Phase {
+		/** opening of a connection until the server starts responding (reading) or accepting (writing) */
+		CONNECTION_SETUP("connection setup"),
+		/** reading or writing of the block headers */
+		HEADER("block header"),
+		/** reading or writing of the block data */
+		PAYLOAD("block payload"),
+		/** conversion between the blocks and the image */
+		CONVERSION("conversion"),
+		/** closing of an upload until the server has responded */
+		RESPONSE("server response");
+
+		Phase(final String label) {
+			this.label = label;
+		}
+
+		public final String label;
+	}
+
+	public TransferStatistics(final String direction) {
+		this.direction = direction;
+		for (Phase p : Phase.values()) phases.put(p, new PhaseStats());
+	}
+
+	final String direction;
+	final long startNanos = System.nanoTime();
+	volatile long endNanos = 0;
+
+	final Map<Phase,PhaseStats> phases = new EnumMap<>(Phase.class);
+	final List<Connection> connections = new ArrayList<>();
+
+	/** the all-zero blocks that were sent only as the "missing block" header, and their data bytes */
+	final LongAdder sparseBlocks = new LongAdder();
+	final LongAdder savedBytes = new LongAdder();
+	/** the blocks that were not sent since they have not changed, and their bytes (with headers) */
+	final LongAdder unchangedBlocks = new LongAdder();
+	final LongAdder unchangedBytes = new LongAdder();
+
+	static class PhaseStats {
+		final LongAdder count = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+		final Histogram histogram = new Histogram();
+	}
+
+	public void record(final Phase phase, final long nanos, final long bytes) {
+		final PhaseStats s = phases.get(phase);
+		s.count.increment();
+		s.nanos.add(nanos);
+		s.bytes.add(bytes);
+		s.histogram.record(nanos);
+	}
+
+	/** one all-zero block was sent as missing, its 'bytes' of data were not sent */
+	public void recordSparseBlock(final long bytes) {
+		sparseBlocks.increment();
+		savedBytes.add(bytes);
+	}
+
+	public long sparseBlocks() {
+		return sparseBlocks.sum();
+	}
+
+	public long savedBytes() {
+		return savedBytes.sum();
+	}
+
+	/** one block was not sent since it has not changed, its 'bytes' were not sent */
+	public void recordUnchangedBlock(final long bytes) {
+		unchangedBlocks.increment();
+		unchangedBytes.add(bytes);
+	}
+
+	public long unchangedBytes() {
+		return unchangedBytes.sum();
+	}
+
+	/** stops the clock of the whole transfer */
+	public void finish() {
+		endNanos = System.nanoTime();
+	}
+
+	public long count(final Phase phase) {
+		return phases.get(phase).count.sum();
+	}
+
+	public long nanos(final Phase phase) {
+		return phases.get(phase).nanos.sum();
+	}
+
+	public long bytes(final Phase phase) {
+		return phases.get(phase).bytes.sum();
+	}
+
+	/** the duration (of one occurrence) of the phase in nanoseconds that the 'quantile' (0..1) of occurrences did not exceed */
+	public long percentileNanos(final Phase phase, final double quantile) {
+		return phases.get(phase).histogram.percentile(quantile);
+	}
+
+	/** the duration of the whole transfer so far, or until finish() */
+	public long elapsedNanos() {
+		return (endNanos != 0 ? endNanos : System.nanoTime()) - startNanos;
+	}
+
+	// ----------------------------------------------
+	/** statistics of one connection (a reader or an uploader), it is to be used only from its thread */
+	public Connection newConnection() {
+		synchronized (connections) {
+			final Connection c = new Connection(connections.size());
+			connections.add(c);
+			return c;
+		}
+	}
+
+	public static class Connection {
+		Connection(final int id) {
+			this.id = id;
+		}
+
+		public final int id;
+		long transfers = 0;
+		long blocks = 0;
+		long bytes = 0;
+		long busyNanos = 0;
+		final Histogram blockNanos = new Histogram();
+
+		/** one block, its header and data, has been transferred and converted in 'nanos' */
+		public void blockDone(final long nanos, final long bytes) {
+			++blocks;
+			this.bytes += bytes;
+			blockNanos.record(nanos);
+		}
+
+		/** one transfer (one request) has been over in 'nanos' */
+		public void transferDone(final long nanos) {
+			++transfers;
+			busyNanos += nanos;
+		}
+	}
+
+	// ----------------------------------------------
+	public String report() {
+		final long blocks = count(Phase.HEADER);
+		final long bytes = bytes(Phase.HEADER) + bytes(Phase.PAYLOAD);
+		final StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Transfer report (%s): %d blocks, %d Bytes in %.3f s = %.2f MB/s%n",
+				direction, blocks, bytes, elapsedNanos()/1e9, megaBytesPerSecond(bytes, elapsedNanos())));
+		sb.append(String.format("  %-18s %8s %11s %10s %10s %10s%n",
+				"phase", "count", "total [s]", "p50 [ms]", "p99 [ms]", "MB/s"));
+		for (Phase p : Phase.values()) {
+			final long count = count(p);
+			if (count == 0) continue;
+			final long nanos = nanos(p);
+			final long pBytes = bytes(p);
+			sb.append(String.format("  %-18s %8d %11.3f %10.3f %10.3f %10s%n",
+					p.label, count, nanos/1e9,
+					percentileNanos(p,0.5)/1e6, percentileNanos(p,0.99)/1e6,
+					pBytes > 0 ? String.format("%.2f", megaBytesPerSecond(pBytes,nanos)) : "-"));
+		}
+		if (sparseBlocks() > 0)
+			sb.append(String.format("  sparse writes: %d all-zero blocks sent as missing, %d Bytes saved%n",
+					sparseBlocks(), savedBytes()));
+		if (unchangedBlocks.sum() > 0)
+			sb.append(String.format("  incremental writes: %d unchanged blocks not sent, %d Bytes saved%n",
+					unchangedBlocks.sum(), unchangedBytes.sum()));
+		synchronized (connections) {
+			for (Connection c : connections)
+				sb.append(String.format("  connection #%d: %d transfers, %d blocks, %d Bytes, busy %.3f s = %.2f MB/s,"
+						+ " per block p50 %.3f ms, p99 %.3f ms%n",
+						c.id, c.transfers, c.blocks, c.bytes, c.busyNanos/1e9, megaBytesPerSecond(c.bytes,c.busyNanos),
+						c.blockNanos.percentile(0.5)/1e6, c.blockNanos.percentile(0.99)/1e6));
+		}
+		return sb.toString();
+	}
+
+	static double megaBytesPerSecond(final long bytes, final long nanos) {
+		return nanos > 0 ? (bytes/1048576.0) / (nanos/1e9) : 0;
+	}
+
+	// ----------------------------------------------
+	/**
+	 * A lock-free histogram of non-negative values (durations in nanoseconds), it has
+	 * 8 buckets per every power of two, so the percentiles are within 1/16 of the value.
+	 */
+	static class Histogram {
+		static final int SUB_BITS = 3;
+		static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+		final AtomicLongArray counts = new AtomicLongArray(64 << SUB_BITS);
+
+		void record(final long value) {
+			counts.incrementAndGet(bucket(value));
+		}
+
+		static int bucket(final long value) {
+			if (value < SUB_BUCKETS) return (int)Math.max(value, 0);
+			final int msb = 63 - Long.numberOfLeadingZeros(value);
+			final int sub = (int)(value >>> (msb - SUB_BITS)) & (SUB_BUCKETS-1);
+			return ((msb - SUB_BITS + 1) << SUB_BITS) + sub;
+		}
+
+		static long lowerBound(final int bucket) {
+			final int octave = bucket >> SUB_BITS;
+			if (octave == 0) return bucket;
+			return (long)(SUB_BUCKETS + (bucket & (SUB_BUCKETS-1))) << (octave-1);
+		}
+
+		static long width(final int bucket) {
+			final int octave = bucket >> SUB_BITS;
+			return octave == 0 ? 1 : 1L << (octave-1);
+		}
+
+		/** the middle of the bucket in which the 'quantile' (0..1) of the values lies, or 0 if empty */
+		long percentile(final double quantile) {
+			long total = 0;
+			for (int i = 0; i < counts.length(); ++i) total += counts.get(i);
+			if (total == 0) return 0;
+
+			final long rank = Math.max(1, (long)Math.ceil(quantile * total));
+			long seen = 0;
+			for (int i = 0; i < counts.length(); ++i) {
+				seen += counts.get(i);
+				if (seen >= rank) return lowerBound(i) + width(i)/2;
+			}
+			return lowerBound(counts.length()-1);
+		}
+	}
+}
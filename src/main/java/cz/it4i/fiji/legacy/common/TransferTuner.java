@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2023 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.legacy.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Tunes the size of one transfer (in Bytes) and the number of connections that are
+ * transferring at the same time, while the transfers are running.
+ * <p>
+ * The finished transfers are reported with transferDone() and are evaluated in windows
+ * (a window is a few transfers). After every window, the throughput of the window is
+ * compared with the previous one: if it has improved, the same parameter is changed
+ * again in the same direction; if it has got worse, the last change is reverted and
+ * the other parameter is tried next; if there's no real difference, the other parameter
+ * is tried. When most of the time of the transfers is spent waiting for the first Bytes
+ * (that is, latency dominates), the transfers are made larger.
+ * <p>
+ * The connections are gated with acquireStream() and releaseStream(), which admit
+ * only as many transferring connections as is the current number of streams.
+ */
+public class TransferTuner {
+	public TransferTuner(final long initialTransferByteSize,
+	                     final long minTransferByteSize, final long maxTransferByteSize,
+	                     final int initialStreams, final int maxStreams) {
+		this.minTransferByteSize = minTransferByteSize;
+		this.maxTransferByteSize = Math.max(minTransferByteSize, maxTransferByteSize);
+		this.transferByteSize = clamp(initialTransferByteSize, minTransferByteSize, this.maxTransferByteSize);
+		this.maxStreams = Math.max(1, maxStreams);
+		this.streams = (int)clamp(initialStreams, 1, this.maxStreams);
+		this.streamPermits = new AdjustableSemaphore(streams);
+	}
+
+	final long minTransferByteSize, maxTransferByteSize;
+	public final int maxStreams;
+
+	private volatile long transferByteSize;
+	private volatile int streams;
+	private final AdjustableSemaphore streamPermits;
+
+	/** the change of throughput smaller than this fraction is considered no change */
+	double significantChange = 0.05;
+	/** latency dominates when the waiting for the first Bytes is longer than this fraction of the transfer */
+	double latencyDominates = 0.5;
+
+	public long transferByteSize() {
+		return transferByteSize;
+	}
+
+	public int streams() {
+		return streams;
+	}
+
+	public void acquireStream() throws InterruptedException {
+		streamPermits.acquire();
+	}
+
+	public void releaseStream() {
+		streamPermits.release();
+	}
+
+	// ----------------------------------------------
+	enum Knob { SIZE, STREAMS }
+
+	private Knob knob = Knob.SIZE;
+	private int sizeDirection = +1, streamsDirection = +1;
+	/** the last change made, to be able to revert it; null if there's none */
+	private Knob lastChange = null;
+
+	private long windowStart = System.nanoTime();
+	private long windowBytes = 0;
+	private long windowLatency = 0, windowDuration = 0;
+	private int windowTransfers = 0;
+	private double previousThroughput = 0;
+	private double bestThroughput = 0;
+
+	/** the evaluated windows, to be reported at the end */
+	private final List<String> history = new ArrayList<>();
+
+	/**
+	 * Reports one finished transfer of 'bytes' that has taken 'durationNanos',
+	 * out of which 'latencyNanos' was the waiting for the server to respond.
+	 * Returns true if the parameters have been changed now.
+	 */
+	public synchronized boolean transferDone(final long bytes, final long latencyNanos, final long durationNanos) {
+		windowBytes += bytes;
+		windowLatency += latencyNanos;
+		windowDuration += durationNanos;
+		if (++windowTransfers < Math.max(2, streams)) return false;
+
+		final long now = System.nanoTime();
+		final double throughput = windowBytes / Math.max(1e-9, (now-windowStart) / 1e9);
+		final double latencyShare = windowDuration > 0 ? (double)windowLatency / windowDuration : 0;
+		history.add(describe(throughput));
+		bestThroughput = Math.max(bestThroughput, throughput);
+
+		if (previousThroughput > 0 && throughput < previousThroughput * (1-significantChange) && lastChange != null) {
+			//got worse: revert (which leaves the knob going the opposite way
+			//from now on), and next time try the other knob
+			reverse(lastChange);
+			change(lastChange);
+			knob = other(lastChange);
+			lastChange = null;
+			//NB: previousThroughput is kept, it is what the reverted setting has achieved
+		} else {
+			final boolean improved = previousThroughput == 0 || throughput > previousThroughput * (1+significantChange);
+			if (!improved) knob = other(knob);
+			if (latencyShare > latencyDominates && transferByteSize < maxTransferByteSize) {
+				knob = Knob.SIZE;
+				sizeDirection = +1;
+			}
+			lastChange = change(knob) ? knob : null;
+			if (lastChange == null) {
+				//this knob is at its bound, try the opposite direction next time
+				reverse(knob);
+				knob = other(knob);
+			}
+			previousThroughput = throughput;
+		}
+
+		windowStart = now;
+		windowBytes = 0;
+		windowLatency = 0;
+		windowDuration = 0;
+		windowTransfers = 0;
+		return true;
+	}
+
+	/** changes the knob one step in its direction, returns false if it is at its bound already */
+	private boolean change(final Knob k) {
+		if (k == Knob.SIZE) {
+			final long newSize = clamp(sizeDirection > 0 ? transferByteSize * 2 : transferByteSize / 2,
+					minTransferByteSize, maxTransferByteSize);
+			if (newSize == transferByteSize) return false;
+			transferByteSize = newSize;
+		} else {
+			final int newStreams = (int)clamp(streams + streamsDirection, 1, maxStreams);
+			if (newStreams == streams) return false;
+			if (newStreams > streams) streamPermits.release();
+			else streamPermits.reducePermits(1);
+			streams = newStreams;
+		}
+		return true;
+	}
+
+	private void reverse(final Knob k) {
+		if (k == Knob.SIZE) sizeDirection = -sizeDirection;
+		else streamsDirection = -streamsDirection;
+	}
+
+	private static Knob other(final Knob k) {
+		return k == Knob.SIZE ? Knob.STREAMS : Knob.SIZE;
+	}
+
+	private static long clamp(final long value, final long min, final long max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	private String describe(final double throughput) {
+		return String.format("%.1f MB/s with %d Bytes per transfer over %d connections",
+				throughput / 1048576.0, transferByteSize, streams);
+	}
+
+	/** the parameters the tuning has ended up with, and the history of the tuning */
+	public synchronized String report() {
+		final StringBuilder sb = new StringBuilder("adaptive transfers ended with ")
+				.append(transferByteSize).append(" Bytes per transfer over ")
+				.append(streams).append(" connections, best seen ")
+				.append(String.format("%.1f MB/s", bestThroughput / 1048576.0));
+		for (String h : history) sb.append("\n  ").append(h);
+		return sb.toString();
+	}
+
+	/** a semaphore whose number of permits can be also lowered */
+	static class AdjustableSemaphore extends Semaphore {
+		AdjustableSemaphore(final int permits) {
+			super(permits);
+		}
+
+		@Override
+		public void reducePermits(final int reduction) {
+			super.reducePermits(reduction);
+		}
+	}
+}
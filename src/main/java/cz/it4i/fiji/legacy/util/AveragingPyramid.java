@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * IT4Innovations - National Supercomputing Center
+ * Copyright (c) 2017 - 2023 All Right Reserved, https://www.it4i.cz
+ *
+ * This file is subject to the terms and conditions defined in
+ * file 'LICENSE', which is part of this project.
+ ******************************************************************************/
+package cz.it4i.fiji.legacy.util;
+
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalDimensions;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds the coarser levels of a resolution pyramid by averaging, every level from an
+ * already built (finer) one, so the full-resolution image is traversed only once and
+ * the next levels only touch the much smaller previous ones. The levels are built in
+ * the background on the local cores: next() hands over one level and starts building
+ * the following one right away, which thus overlaps with whatever the caller does with
+ * the handed level (e.g. uploading it).
+ * <p>
+ * A coarser voxel is the average (as a double, rounded for the integer types) of its
+ * box of finer voxels, the boxes at the far borders average only what is inside the
+ * image. The levels have the same sizes as with Views.subsample().
+ * <p>
+ * A level is kept only while a level still to be built is averaged from it, so with the
+ * usual chain of sources (every level from the previous one) at most two levels are held:
+ * the one handed over last and the one being built from it.
+ */
+public class AveragingPyramid<T extends NativeType<T> & RealType<T>> implements AutoCloseable {
+	/**
+	 * @param base         the finest level
+	 * @param sources      for every next level, the index of the level it is averaged from
+	 *                     (0 is the 'base', 1 is the first next level, etc.)
+	 * @param factors      for every next level, the downscale factors w.r.t. its source level
+	 * @param threads      how many local cores build a level
+	 */
+	public AveragingPyramid(final Img<T> base, final List<Integer> sources, final List<long[]> factors,
+	                        final int threads) {
+		this.sources = sources;
+		this.factors = factors;
+		this.threads = Math.max(1, threads);
+		levels.add(base);
+		//one more thread to be the builder of the levels
+		workers = Executors.newFixedThreadPool(this.threads + 1);
+		if (!sources.isEmpty()) building = startBuilding(1);
+		releaseUnneededLevels();
+	}
+
+	final List<Integer> sources;
+	final List<long[]> factors;
+	final int threads;
+	final ExecutorService workers;
+
+	/** the levels built so far, only a level that was handed over can be a source,
+	    the levels that are no longer a source of any next level are null */
+	final List<Img<T>> levels = new ArrayList<>();
+	Future<Img<T>> building = null;
+
+	/** waits for the next level, starts building the one after it, and returns the former */
+	public Img<T> next() throws IOException, InterruptedException {
+		if (building == null) throw new IllegalStateException("No more levels to build.");
+		try {
+			final Img<T> level = building.get();
+			levels.add(level);
+			final int nextLevel = levels.size();
+			building = nextLevel <= sources.size() ? startBuilding(nextLevel) : null;
+			releaseUnneededLevels();
+			return level;
+		} catch (ExecutionException e) {
+			throw new IOException("Failed building a pyramid level: "+e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	@Override
+	public void close() {
+		workers.shutdownNow();
+	}
+
+	Future<Img<T>> startBuilding(final int level) {
+		final Img<T> src = levels.get(sources.get(level-1));
+		return workers.submit(() -> build(src, level));
+	}
+
+	/** forgets the levels from which none of the levels after the one being built is averaged */
+	void releaseUnneededLevels() {
+		final List<Integer> stillSources = sources.subList(Math.min(levels.size(), sources.size()), sources.size());
+		for (int i = 0; i < levels.size(); ++i)
+			if (!stillSources.contains(i)) levels.set(i, null);
+	}
+
+	Img<T> build(final Img<T> src, final int level) throws InterruptedException, ExecutionException {
+		final long[] f = factors.get(level-1);
+		final int n = src.numDimensions();
+		final long[] dims = downscaledSize(src, f);
+		final Img<T> dst = src.factory().create(dims);
+
+		//the slabs along the last dimension are averaged in parallel
+		final long slab = (dims[n-1] + threads-1) / threads;
+		final List<Future<Void>> slabs = new ArrayList<>(threads);
+		for (long from = 0; from < dims[n-1]; from += slab) {
+			final long[] min = new long[n], max = new long[n];
+			for (int d = 0; d < n-1; ++d) max[d] = dims[d]-1;
+			min[n-1] = from;
+			max[n-1] = Math.min(from+slab, dims[n-1]) - 1;
+			final Callable<Void> job = () -> {
+				average(src, f, Views.interval(dst, min, max));
+				return null;
+			};
+			slabs.add( workers.submit(job) );
+		}
+		for (Future<Void> s : slabs) s.get();
+		return dst;
+	}
+
+	/**
+	 * Averages the 'src' by the factors 'f' into a new image (of the 'type') on the calling
+	 * thread, for the callers that downscale many small images in parallel themselves.
+	 */
+	public static <T extends NativeType<T> & RealType<T>>
+	Img<T> averaged(final RandomAccessibleInterval<T> src, final long[] f, final T type) {
+		final long[] dims = downscaledSize(src, f);
+		final Img<T> dst = Util.getArrayOrCellImgFactory(new FinalDimensions(dims), type).create(dims);
+		average(src, f, dst);
+		return dst;
+	}
+
+	/** the size of a level averaged by the factors 'f', as with Views.subsample() */
+	static long[] downscaledSize(final Dimensions src, final long[] f) {
+		final long[] dims = new long[src.numDimensions()];
+		for (int d = 0; d < dims.length; ++d) dims[d] = (src.dimension(d) + f[d]-1) / f[d];
+		return dims;
+	}
+
+	/** sets every voxel of the 'dst' to the average of its box of 'src' voxels */
+	static <T extends RealType<T>>
+	void average(final RandomAccessibleInterval<T> src, final long[] f, final RandomAccessibleInterval<T> dst) {
+		final int n = src.numDimensions();
+		final long[] pos = new long[n], boxMin = new long[n], boxMax = new long[n];
+		final RandomAccess<T> in = src.randomAccess();
+		final Cursor<T> out = Views.flatIterable(dst).localizingCursor();
+		while (out.hasNext()) {
+			out.fwd();
+			out.localize(pos);
+			for (int d = 0; d < n; ++d) {
+				boxMin[d] = src.min(d) + pos[d]*f[d];
+				boxMax[d] = Math.min(boxMin[d]+f[d]-1, src.max(d));
+			}
+
+			//sweep the box, the first dimension the fastest
+			double sum = 0;
+			long count = 0;
+			in.setPosition(boxMin);
+			int d;
+			do {
+				sum += in.get().getRealDouble();
+				++count;
+				for (d = 0; d < n; ++d) {
+					if (in.getLongPosition(d) < boxMax[d]) {
+						in.fwd(d);
+						break;
+					}
+					in.setPosition(boxMin[d], d);
+				}
+			} while (d < n);
+			out.get().setReal(sum / count);
+		}
+	}
+}
@@ -7,53 +7,194 @@
  ******************************************************************************/
 package cz.it4i.fiji.legacy.util;
 
+import net.imglib2.Cursor;
+import net.imglib2.type.numeric.integer.GenericByteType;
+import net.imglib2.type.numeric.integer.GenericIntType;
+import net.imglib2.type.numeric.integer.GenericLongType;
+import net.imglib2.type.numeric.integer.GenericShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
 
+/**
+ * Converters between the blocks (big-endian buffers) and the voxels, one per primitive
+ * type of the storage. The values are moved with the primitive getters and setters of
+ * the voxel types (e.g. getLong()/setLong()), never through a double, so the signed and
+ * unsigned types of the same width share the same (lossless) processor.
+ */
 public class BufferProcessors {
-	public interface BufferProcessor {
-		void put(final ByteBuffer byteBuffer, final double value);
-		double get(final ByteBuffer byteBuffer);
+	public interface BufferProcessor<T> {
+		/** reads 'length' values from the buffer into the voxels visited by the cursor */
+		void bufferIntoVoxels(final ByteBuffer byteBuffer, final Cursor<? extends T> voxels, final int length);
+		/** writes 'length' values of the voxels visited by the cursor into the buffer */
+		void voxelsIntoBuffer(final Cursor<? extends T> voxels, final ByteBuffer byteBuffer, final int length);
+
+		/** the primitive array type (e.g. short[]) that the bulk copies below work with */
+		Class<?> arrayClass();
+		/** a typed view (e.g. ShortBuffer) of the whole block, for the bulk copies below;
+		    its element 0 is at the current position of the 'byteBuffer' */
+		Buffer asTypedBuffer(final ByteBuffer byteBuffer);
+		/** copies 'length' elements from the typed view of a block, starting at its element
+		    'blockPos', into the primitive array starting at its element 'arrayPos' */
+		void copyIntoArray(final Buffer block, final int blockPos, final Object array, final int arrayPos, final int length);
+		/** copies 'length' elements from the primitive array into the typed view of a block */
+		void copyFromArray(final Object array, final int arrayPos, final Buffer block, final int blockPos, final int length);
 	}
 
-	final static BufferProcessor BYTE_BUFFERS = new BufferProcessor() {
+	final static BufferProcessor<GenericByteType<?>> BYTE_BUFFERS = new BufferProcessor<GenericByteType<?>>() {
+		@Override
+		public void bufferIntoVoxels(ByteBuffer byteBuffer, Cursor<? extends GenericByteType<?>> voxels, int length) {
+			for (int i = 0; i < length; ++i) voxels.next().setByte(byteBuffer.get());
+		}
+		@Override
+		public void voxelsIntoBuffer(Cursor<? extends GenericByteType<?>> voxels, ByteBuffer byteBuffer, int length) {
+			for (int i = 0; i < length; ++i) byteBuffer.put(voxels.next().getByte());
+		}
 		@Override
-		public void put(ByteBuffer byteBuffer, double value) { byteBuffer.put((byte)value); }
+		public Class<?> arrayClass() { return byte[].class; }
 		@Override
-		public double get(ByteBuffer byteBuffer) { return byteBuffer.get(); }
+		public Buffer asTypedBuffer(ByteBuffer byteBuffer) { return byteBuffer.slice(); }
+		@Override
+		public void copyIntoArray(Buffer block, int blockPos, Object array, int arrayPos, int length) {
+			block.position(blockPos);
+			((ByteBuffer)block).get((byte[])array, arrayPos, length);
+		}
+		@Override
+		public void copyFromArray(Object array, int arrayPos, Buffer block, int blockPos, int length) {
+			block.position(blockPos);
+			((ByteBuffer)block).put((byte[])array, arrayPos, length);
+		}
 	};
 
-	final static BufferProcessor SHORT_BUFFERS = new BufferProcessor() {
+	final static BufferProcessor<GenericShortType<?>> SHORT_BUFFERS = new BufferProcessor<GenericShortType<?>>() {
+		@Override
+		public void bufferIntoVoxels(ByteBuffer byteBuffer, Cursor<? extends GenericShortType<?>> voxels, int length) {
+			for (int i = 0; i < length; ++i) voxels.next().setShort(byteBuffer.getShort());
+		}
 		@Override
-		public void put(ByteBuffer byteBuffer, double value) { byteBuffer.putShort((short)value); }
+		public void voxelsIntoBuffer(Cursor<? extends GenericShortType<?>> voxels, ByteBuffer byteBuffer, int length) {
+			for (int i = 0; i < length; ++i) byteBuffer.putShort(voxels.next().getShort());
+		}
 		@Override
-		public double get(ByteBuffer byteBuffer) { return byteBuffer.getShort(); }
+		public Class<?> arrayClass() { return short[].class; }
+		@Override
+		public Buffer asTypedBuffer(ByteBuffer byteBuffer) { return byteBuffer.duplicate().asShortBuffer(); }
+		@Override
+		public void copyIntoArray(Buffer block, int blockPos, Object array, int arrayPos, int length) {
+			block.position(blockPos);
+			((ShortBuffer)block).get((short[])array, arrayPos, length);
+		}
+		@Override
+		public void copyFromArray(Object array, int arrayPos, Buffer block, int blockPos, int length) {
+			block.position(blockPos);
+			((ShortBuffer)block).put((short[])array, arrayPos, length);
+		}
 	};
 
-	final static BufferProcessor INT_BUFFERS = new BufferProcessor() {
+	final static BufferProcessor<GenericIntType<?>> INT_BUFFERS = new BufferProcessor<GenericIntType<?>>() {
+		@Override
+		public void bufferIntoVoxels(ByteBuffer byteBuffer, Cursor<? extends GenericIntType<?>> voxels, int length) {
+			for (int i = 0; i < length; ++i) voxels.next().setInt(byteBuffer.getInt());
+		}
+		@Override
+		public void voxelsIntoBuffer(Cursor<? extends GenericIntType<?>> voxels, ByteBuffer byteBuffer, int length) {
+			for (int i = 0; i < length; ++i) byteBuffer.putInt(voxels.next().getInt());
+		}
+		@Override
+		public Class<?> arrayClass() { return int[].class; }
 		@Override
-		public void put(ByteBuffer byteBuffer, double value) { byteBuffer.putInt((int)value); }
+		public Buffer asTypedBuffer(ByteBuffer byteBuffer) { return byteBuffer.duplicate().asIntBuffer(); }
 		@Override
-		public double get(ByteBuffer byteBuffer) { return byteBuffer.getInt(); }
+		public void copyIntoArray(Buffer block, int blockPos, Object array, int arrayPos, int length) {
+			block.position(blockPos);
+			((IntBuffer)block).get((int[])array, arrayPos, length);
+		}
+		@Override
+		public void copyFromArray(Object array, int arrayPos, Buffer block, int blockPos, int length) {
+			block.position(blockPos);
+			((IntBuffer)block).put((int[])array, arrayPos, length);
+		}
 	};
 
-	final static BufferProcessor LONG_BUFFERS = new BufferProcessor() {
+	final static BufferProcessor<GenericLongType<?>> LONG_BUFFERS = new BufferProcessor<GenericLongType<?>>() {
+		@Override
+		public void bufferIntoVoxels(ByteBuffer byteBuffer, Cursor<? extends GenericLongType<?>> voxels, int length) {
+			for (int i = 0; i < length; ++i) voxels.next().setLong(byteBuffer.getLong());
+		}
+		@Override
+		public void voxelsIntoBuffer(Cursor<? extends GenericLongType<?>> voxels, ByteBuffer byteBuffer, int length) {
+			for (int i = 0; i < length; ++i) byteBuffer.putLong(voxels.next().getLong());
+		}
+		@Override
+		public Class<?> arrayClass() { return long[].class; }
 		@Override
-		public void put(ByteBuffer byteBuffer, double value) { byteBuffer.putLong((long)value); }
+		public Buffer asTypedBuffer(ByteBuffer byteBuffer) { return byteBuffer.duplicate().asLongBuffer(); }
 		@Override
-		public double get(ByteBuffer byteBuffer) { return byteBuffer.getLong(); }
+		public void copyIntoArray(Buffer block, int blockPos, Object array, int arrayPos, int length) {
+			block.position(blockPos);
+			((LongBuffer)block).get((long[])array, arrayPos, length);
+		}
+		@Override
+		public void copyFromArray(Object array, int arrayPos, Buffer block, int blockPos, int length) {
+			block.position(blockPos);
+			((LongBuffer)block).put((long[])array, arrayPos, length);
+		}
 	};
 
-	final static BufferProcessor FLOAT_BUFFERS = new BufferProcessor() {
+	final static BufferProcessor<FloatType> FLOAT_BUFFERS = new BufferProcessor<FloatType>() {
+		@Override
+		public void bufferIntoVoxels(ByteBuffer byteBuffer, Cursor<? extends FloatType> voxels, int length) {
+			for (int i = 0; i < length; ++i) voxels.next().set(byteBuffer.getFloat());
+		}
+		@Override
+		public void voxelsIntoBuffer(Cursor<? extends FloatType> voxels, ByteBuffer byteBuffer, int length) {
+			for (int i = 0; i < length; ++i) byteBuffer.putFloat(voxels.next().get());
+		}
 		@Override
-		public void put(ByteBuffer byteBuffer, double value) { byteBuffer.putFloat((float)value); }
+		public Class<?> arrayClass() { return float[].class; }
 		@Override
-		public double get(ByteBuffer byteBuffer) { return byteBuffer.getFloat(); }
+		public Buffer asTypedBuffer(ByteBuffer byteBuffer) { return byteBuffer.duplicate().asFloatBuffer(); }
+		@Override
+		public void copyIntoArray(Buffer block, int blockPos, Object array, int arrayPos, int length) {
+			block.position(blockPos);
+			((FloatBuffer)block).get((float[])array, arrayPos, length);
+		}
+		@Override
+		public void copyFromArray(Object array, int arrayPos, Buffer block, int blockPos, int length) {
+			block.position(blockPos);
+			((FloatBuffer)block).put((float[])array, arrayPos, length);
+		}
 	};
 
-	final static BufferProcessor DOUBLE_BUFFERS = new BufferProcessor() {
+	final static BufferProcessor<DoubleType> DOUBLE_BUFFERS = new BufferProcessor<DoubleType>() {
+		@Override
+		public void bufferIntoVoxels(ByteBuffer byteBuffer, Cursor<? extends DoubleType> voxels, int length) {
+			for (int i = 0; i < length; ++i) voxels.next().set(byteBuffer.getDouble());
+		}
+		@Override
+		public void voxelsIntoBuffer(Cursor<? extends DoubleType> voxels, ByteBuffer byteBuffer, int length) {
+			for (int i = 0; i < length; ++i) byteBuffer.putDouble(voxels.next().get());
+		}
+		@Override
+		public Class<?> arrayClass() { return double[].class; }
+		@Override
+		public Buffer asTypedBuffer(ByteBuffer byteBuffer) { return byteBuffer.duplicate().asDoubleBuffer(); }
 		@Override
-		public void put(ByteBuffer byteBuffer, double value) { byteBuffer.putDouble(value); }
+		public void copyIntoArray(Buffer block, int blockPos, Object array, int arrayPos, int length) {
+			block.position(blockPos);
+			((DoubleBuffer)block).get((double[])array, arrayPos, length);
+		}
 		@Override
-		public double get(ByteBuffer byteBuffer) { return byteBuffer.getDouble(); }
+		public void copyFromArray(Object array, int arrayPos, Buffer block, int blockPos, int length) {
+			block.position(blockPos);
+			((DoubleBuffer)block).put((double[])array, arrayPos, length);
+		}
 	};
 }
@@ -9,13 +9,24 @@ package cz.it4i.fiji.legacy.util;
 
 import net.imglib2.Cursor;
 import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.WrappedImg;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
 import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.transform.integer.MixedTransform;
 import net.imglib2.type.Type;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.*;
 import net.imglib2.type.numeric.real.*;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.MixedTransformView;
+import net.imglib2.view.Views;
 
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
@@ -38,7 +49,7 @@ public class Imglib2Types {
 	);
 
 	public static class TypeHandler<T extends NativeType<T> & RealType<T>> {
-		public TypeHandler(final String typeName, final T typeType, final BufferProcessors.BufferProcessor bp) {
+		public TypeHandler(final String typeName, final T typeType, final BufferProcessors.BufferProcessor<? super T> bp) {
 			httpType = typeName;
 			nativeAndRealType = typeType;
 			this.bp = bp;
@@ -46,31 +57,181 @@ public class Imglib2Types {
 
 		final public String httpType;
 		final public T nativeAndRealType;
-		final BufferProcessors.BufferProcessor bp;
+		final BufferProcessors.BufferProcessor<? super T> bp;
 
 		public PlanarImgFactory<T> createPlanarImgFactory() {
 			return new PlanarImgFactory<>(nativeAndRealType);
 		}
 
-		public void blockIntoImgInterval(final byte[] bytes, final int length, final IterableInterval<T> img) {
-			final ByteBuffer blockData = ByteBuffer.wrap(bytes);
-			final Cursor<T> imageData = img.cursor();
-			int bl = 0;
-			while (bl < length) {
-				imageData.next().setReal( bp.get(blockData) );
-				++bl;
+		/**
+		 * Copies the block of 'blockSize' (x,y,z) voxels into the 'img' at the 'offset' (x,y,z).
+		 * If the 'img' is a (wrapped) PlanarImg or ArrayImg, or a view of a PlanarImg such
+		 * as one (c,t) stack of a 5D hyperstack, whole rows of the block are copied directly into
+		 * the primitive arrays behind the image, otherwise it falls back to a voxel-by-voxel copy.
+		 */
+		public void blockIntoImg(final ByteBuffer block, final int[] blockSize,
+		                         final RandomAccessibleInterval<T> img, final long[] offset) {
+			final RandomAccessibleInterval<T> storage = unwrap(img);
+			if (!copyRows(block, blockSize, storage, offset, true)) {
+				final int length = blockSize[0]*blockSize[1]*blockSize[2];
+				final Cursor<T> imageData = Views.flatIterable(subInterval(img,blockSize,offset)).cursor();
+				bp.bufferIntoVoxels(block.duplicate(), imageData, length);
 			}
 		}
 
-		public void imgIntervalIntoBlock(final IterableInterval<T> img, final int length, final byte[] bytes) {
-			final ByteBuffer blockData = ByteBuffer.wrap(bytes);
-			final Cursor<T> imageData = img.cursor();
-			int bl = 0;
-			while (bl < length) {
-				bp.put(blockData, imageData.next().getRealDouble() );
-				++bl;
+		public void blockIntoImg(final byte[] bytes, final int[] blockSize,
+		                         final RandomAccessibleInterval<T> img, final long[] offset) {
+			blockIntoImg(ByteBuffer.wrap(bytes), blockSize, img, offset);
+		}
+
+		/**
+		 * Copies the block of 'blockSize' (x,y,z) voxels from the 'img' at the 'offset' (x,y,z)
+		 * into the 'block', the counterpart of {@link #blockIntoImg(ByteBuffer, int[], RandomAccessibleInterval, long[])}.
+		 */
+		public void imgIntoBlock(final RandomAccessibleInterval<T> img, final long[] offset,
+		                         final int[] blockSize, final ByteBuffer block) {
+			final RandomAccessibleInterval<T> storage = unwrap(img);
+			if (!copyRows(block, blockSize, storage, offset, false)) {
+				final int length = blockSize[0]*blockSize[1]*blockSize[2];
+				final Cursor<T> imageData = Views.flatIterable(subInterval(img,blockSize,offset)).cursor();
+				bp.voxelsIntoBuffer(imageData, block.duplicate(), length);
+			}
+		}
+
+		public void imgIntoBlock(final RandomAccessibleInterval<T> img, final long[] offset,
+		                         final int[] blockSize, final byte[] bytes) {
+			imgIntoBlock(img, offset, blockSize, ByteBuffer.wrap(bytes));
+		}
+
+		/** the fast path: returns false if the 'img' is not backed by suitable primitive arrays */
+		boolean copyRows(final ByteBuffer block, final int[] blockSize,
+		                 final RandomAccessibleInterval<T> img, final long[] offset,
+		                 final boolean intoImg) {
+			final int n = img.numDimensions();
+			if (n != 2 && n != 3) return false;
+			if (n == 2 && (blockSize[2] != 1 || offset[2] != 0)) return false;
+			for (int d = 0; d < n; ++d)
+				if (img.min(d) != 0 || offset[d] < 0 || offset[d]+blockSize[d] > img.dimension(d)) return false;
+
+			final int width  = (int)img.dimension(0);
+			final int height = (int)img.dimension(1);
+			final int bx = blockSize[0], by = blockSize[1], bz = blockSize[2];
+			final int ox = (int)offset[0], oy = (int)offset[1], oz = (int)offset[2];
+
+			final Buffer typedBlock = bp.asTypedBuffer(block);
+			final PlanarImg<?,?> planarImg = planesBehind(img);
+			if (planarImg != null) {
+				final int[] planes = planesOf(img, planarImg);
+				if (planes == null) return false;
+				for (int z = 0; z < bz; ++z)
+					if (!bp.arrayClass().isInstance(planarImg.getPlane(planes[oz+z]).getCurrentStorageArray())) return false;
+
+				for (int z = 0; z < bz; ++z) {
+					final Object plane = planarImg.getPlane(planes[oz+z]).getCurrentStorageArray();
+					for (int y = 0; y < by; ++y)
+						copyRow(typedBlock, (z*by + y)*bx, plane, (oy+y)*width + ox, bx, intoImg);
+				}
+				return true;
+			}
+			if (img instanceof ArrayImg) {
+				final Object access = ((ArrayImg<?,?>)img).update(null);
+				if (!(access instanceof ArrayDataAccess)) return false;
+				final Object array = ((ArrayDataAccess<?>)access).getCurrentStorageArray();
+				if (!bp.arrayClass().isInstance(array)) return false;
+
+				for (int z = 0; z < bz; ++z)
+					for (int y = 0; y < by; ++y)
+						copyRow(typedBlock, (z*by + y)*bx, array, ((oz+z)*height + oy+y)*width + ox, bx, intoImg);
+				return true;
+			}
+			return false;
+		}
+
+		private void copyRow(final Buffer block, final int blockPos, final Object array, final int arrayPos,
+		                     final int length, final boolean intoArray) {
+			if (intoArray) bp.copyIntoArray(block, blockPos, array, arrayPos, length);
+			else bp.copyFromArray(array, arrayPos, block, blockPos, length);
+		}
+
+		private IntervalView<T> subInterval(final RandomAccessibleInterval<T> img,
+		                                    final int[] blockSize, final long[] offset) {
+			final int n = img.numDimensions();
+			final long[] min = new long[n];
+			final long[] max = new long[n];
+			for (int d = 0; d < n; ++d) {
+				min[d] = offset[d];
+				max[d] = min[d] + blockSize[d] - 1;
 			}
+			return Views.interval(img, min, max);
+		}
+
+		public void blockIntoImgInterval(final byte[] bytes, final int length, final IterableInterval<T> img) {
+			bp.bufferIntoVoxels(ByteBuffer.wrap(bytes), img.cursor(), length);
+		}
+
+		public void imgIntervalIntoBlock(final IterableInterval<T> img, final int length, final byte[] bytes) {
+			bp.voxelsIntoBuffer(img.cursor(), ByteBuffer.wrap(bytes), length);
+		}
+	}
+
+
+	/** peels off wrappers such as ImgPlus to reach the image that holds the data */
+	static <T> RandomAccessibleInterval<T> unwrap(final RandomAccessibleInterval<T> img) {
+		RandomAccessibleInterval<T> i = img;
+		while (i instanceof WrappedImg) i = ((WrappedImg<T>)i).getImg();
+		return i;
+	}
+
+	/** the 'img' if it is a PlanarImg, the (wrapped) PlanarImg that the 'img' is a view of, or null */
+	static PlanarImg<?,?> planesBehind(final RandomAccessibleInterval<?> img) {
+		if (img instanceof PlanarImg) return (PlanarImg<?,?>)img;
+		//Views.hyperSlice() or permute() give an interval of a MixedTransformView, nested ones are merged into one
+		if (!(img instanceof IntervalView)) return null;
+		final RandomAccessible<?> view = ((IntervalView<?>)img).getSource();
+		if (!(view instanceof MixedTransformView)) return null;
+		RandomAccessible<?> source = ((MixedTransformView<?>)view).getSource();
+		while (source instanceof WrappedImg) source = ((WrappedImg<?>)source).getImg();
+		return source instanceof PlanarImg ? (PlanarImg<?,?>)source : null;
+	}
+
+	/**
+	 * Returns the indices of the planes of the 'planarImg' that are the z-slices of the 'img',
+	 * where the 'img' is either the 'planarImg' itself, or its view that keeps the x,y axes
+	 * as they are, only fixes the positions along the other axes but one, which becomes the z
+	 * (e.g. a (c,t) stack of a 5D hyperstack, also with the axes permuted). Returns null otherwise.
+	 */
+	static int[] planesOf(final RandomAccessibleInterval<?> img, final PlanarImg<?,?> planarImg) {
+		final int n = img.numDimensions();
+		final int depth = n == 2 ? 1 : (int)img.dimension(2);
+		final int[] planes = new int[depth];
+		if (img == planarImg) {
+			if (planarImg.numSlices() != depth) return null;
+			for (int z = 0; z < depth; ++z) planes[z] = z;
+			return planes;
+		}
+
+		final MixedTransform t = ((MixedTransformView<?>)((IntervalView<?>)img).getSource()).getTransformToSource();
+		for (int d = 0; d < 2; ++d)
+			if (t.getComponentZero(d) || t.getComponentMapping(d) != d
+					|| t.getComponentInversion(d) || t.getTranslation(d) != 0) return null;
+
+		//the planes are ordered along the axes 2,3,... of the planarImg with the axis 2 running fastest
+		long firstPlane = 0, zStride = 0, stride = 1;
+		for (int d = 2; d < t.numTargetDimensions(); ++d) {
+			if (t.getComponentZero(d)) {
+				final long pos = t.getTranslation(d);
+				if (pos < 0 || pos >= planarImg.dimension(d)) return null;
+				firstPlane += pos * stride;
+			} else if (n == 3 && t.getComponentMapping(d) == 2
+					&& !t.getComponentInversion(d) && t.getTranslation(d) == 0) {
+				zStride = stride;
+			} else return null;
+			stride *= planarImg.dimension(d);
 		}
+		//a z-axis added by a view repeats the same plane
+		if (zStride == 0 && depth > 1) return null;
+		for (int z = 0; z < depth; ++z) planes[z] = (int)(firstPlane + z * zStride);
+		return planes;
 	}
 
 
@@ -0,0 +1,111 @@
+package cz.it4i.fiji.datastore;
+
+import cz.it4i.fiji.datastore.rest_client.BatchedBlocks;
+import cz.it4i.fiji.legacy.common.AsyncBlockTransport;
+import cz.it4i.fiji.legacy.common.BlockTransport;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AsyncBlockTransportTest {
+	static final int NO_OF_TRANSFERS = 50;
+	static final int BLOCKS_PER_TRANSFER = 40;
+	static final int BLOCK_SIDE = 8;
+
+	@Test
+	public void ManyTransfersInFlight() throws Exception {
+		try (LocalDatasetServer server = new LocalDatasetServer(DataType.UINT16);
+		     BlockTransport transport = new AsyncBlockTransport(2, 16, 10000)) {
+			for (int i = 0; i < NO_OF_TRANSFERS * BLOCKS_PER_TRANSFER; ++i)
+				server.blocks.put(i+"/0/0/0/0/0", block((short)i));
+
+			//the callbacks only note what they got, it is checked here after the transfers
+			final Map<Integer,String> seenBlocks = new ConcurrentHashMap<>();
+			final List<CompletableFuture<Void>> results = new ArrayList<>();
+			for (int t = 0; t < NO_OF_TRANSFERS; ++t) {
+				final int firstBlock = t * BLOCKS_PER_TRANSFER;
+				final BlockTransport.BlockHandler recorder = (idx, bx, by, bz, data) ->
+						seenBlocks.put(firstBlock + idx, bx+","+by+","+bz+":"+valuesOf(data));
+
+				if (t % 2 == 0) {
+					//blocks listed in the URL
+					final StringBuilder url = new StringBuilder(server.getURL());
+					for (int i = 0; i < BLOCKS_PER_TRANSFER; ++i) url.append(firstBlock+i).append("/0/0/0/0/0/");
+					results.add( transport.download(url.toString(), null, BLOCKS_PER_TRANSFER, 2, recorder) );
+				} else {
+					//blocks listed in the body
+					final List<long[]> positions = new ArrayList<>();
+					for (int i = 0; i < BLOCKS_PER_TRANSFER; ++i) positions.add(new long[] {firstBlock+i,0,0});
+					results.add( transport.download(server.getURL()+BatchedBlocks.READ_PATH,
+							BatchedBlocks.encodeCoordinates(positions,0,0,0), BLOCKS_PER_TRANSFER, 2, recorder) );
+				}
+			}
+			CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get();
+			assertEquals(NO_OF_TRANSFERS * BLOCKS_PER_TRANSFER, seenBlocks.size());
+			for (int i = 0; i < NO_OF_TRANSFERS * BLOCKS_PER_TRANSFER; ++i)
+				assertEquals(BLOCK_SIDE+","+BLOCK_SIDE+","+BLOCK_SIDE+":"+(short)i, seenBlocks.get(i), "block "+i);
+
+			//a missing block
+			final Map<Integer,String> missing = new ConcurrentHashMap<>();
+			transport.download(server.getURL()+"9999/0/0/0/0/0/", null, 1, 2,
+					(idx, bx, by, bz, data) -> missing.put(idx, valuesOf(data))).get();
+			assertEquals("missing", missing.get(0));
+			assertEquals(1, missing.size());
+
+			//a failing request
+			final ExecutionException e = assertThrows(ExecutionException.class,
+					() -> transport.download(server.getURL()+"no/such/block", null, 1, 2, (idx, bx, by, bz, data) -> {}).get());
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	@Test
+	public void FailingHandlerCompletesTheDownload() throws Exception {
+		try (LocalDatasetServer server = new LocalDatasetServer(DataType.UINT16);
+		     BlockTransport transport = new AsyncBlockTransport(1, 4, 10000)) {
+			server.blocks.put("0/0/0/0/0/0", block((short)0));
+
+			//an Error from the handler must not get lost in the I/O thread of the transport
+			final CompletableFuture<Void> result = transport.download(server.getURL()+"0/0/0/0/0/0/", null, 1, 2,
+					(idx, bx, by, bz, data) -> { throw new AssertionError("handler failed"); });
+			final ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(10, TimeUnit.SECONDS));
+			assertTrue(e.getCause() instanceof AssertionError);
+
+			//the transport keeps working
+			final AtomicInteger blocks = new AtomicInteger();
+			transport.download(server.getURL()+"0/0/0/0/0/0/", null, 1, 2,
+					(idx, bx, by, bz, data) -> blocks.incrementAndGet()).get(10, TimeUnit.SECONDS);
+			assertEquals(1, blocks.get());
+		}
+	}
+
+	/** the value of all voxels of the block, which are expected to be the same */
+	static String valuesOf(final ByteBuffer data) {
+		if (data == null) return "missing";
+		final short value = data.getShort(0);
+		while (data.hasRemaining())
+			if (data.getShort() != value) return "mixed";
+		return String.valueOf(value);
+	}
+
+	static byte[] block(final short value) {
+		final ByteBuffer b = ByteBuffer.allocate(12 + BLOCK_SIDE*BLOCK_SIDE*BLOCK_SIDE*2);
+		b.putInt(BLOCK_SIDE).putInt(BLOCK_SIDE).putInt(BLOCK_SIDE);
+		while (b.hasRemaining()) b.putShort(value);
+		return b.array();
+	}
+}
@@ -0,0 +1,137 @@
+package cz.it4i.fiji.datastore;
+
+import cz.it4i.fiji.datastore.rest_client.AsyncDatasetServerClient;
+import cz.it4i.fiji.datastore.rest_client.BatchedBlocks;
+import cz.it4i.fiji.datastore.rest_client.WireCompression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AsyncDatasetServerClientTest {
+	static final int NO_OF_BLOCKS = 100;
+	static final int MAX_IN_FLIGHT = 8;
+	static final int BLOCK_SIDE = 16;
+
+	@Test
+	public void ManyBlocksInFlight() throws Exception {
+		try (LocalDatasetServer server = new LocalDatasetServer(DataType.UINT16)) {
+			for (WireCompression c : new WireCompression[] {WireCompression.RAW, WireCompression.LZ4}) {
+				server.blocks.clear();
+				final AsyncDatasetServerClient client = new AsyncDatasetServerClient(server.getURL(),
+						DataType.UINT16, c, WireCompression.DEFAULT_LEVEL, MAX_IN_FLIGHT);
+				final AtomicInteger maxSeenInFlight = new AtomicInteger();
+
+				//all blocks are sent from this one thread
+				final List<CompletableFuture<Void>> writes = new ArrayList<>();
+				for (int i = 0; i < NO_OF_BLOCKS; ++i) {
+					writes.add( client.writeBlock(block(i), 0,0,0).toCompletableFuture() );
+					maxSeenInFlight.accumulateAndGet(client.getInFlight(), Math::max);
+				}
+				CompletableFuture.allOf(writes.toArray(new CompletableFuture[0])).get();
+				assertEquals(NO_OF_BLOCKS, server.blocks.size());
+
+				final List<CompletableFuture<DataBlock<short[]>>> reads = new ArrayList<>();
+				for (int i = 0; i < NO_OF_BLOCKS; ++i) {
+					final CompletableFuture<DataBlock<short[]>> read =
+							client.<short[]>readBlock(new long[] {i,0,0}, 0,0,0).toCompletableFuture();
+					reads.add(read);
+					maxSeenInFlight.accumulateAndGet(client.getInFlight(), Math::max);
+				}
+				for (int i = 0; i < NO_OF_BLOCKS; ++i) {
+					final DataBlock<short[]> block = reads.get(i).get();
+					assertArrayEquals(new long[] {i,0,0}, block.getGridPosition());
+					assertArrayEquals(block(i).getData(), block.getData());
+				}
+
+				assertTrue(maxSeenInFlight.get() <= MAX_IN_FLIGHT);
+				assertEquals(0, client.getInFlight());
+			}
+		}
+	}
+
+	@Test
+	public void RequestsBeyondTheLimitAreQueued() throws Exception {
+		try (LocalDatasetServer server = new LocalDatasetServer(DataType.UINT16)) {
+			for (int i = 0; i < NO_OF_BLOCKS; ++i) server.blocks.put(i+"/0/0/0/0/0", toBytes(block(i)));
+			final AsyncDatasetServerClient client = new AsyncDatasetServerClient(server.getURL(),
+					DataType.UINT16, WireCompression.RAW, WireCompression.DEFAULT_LEVEL, 2);
+
+			//the server holds the answers, the sending thread must not wait for the room in flight
+			server.answering = new CountDownLatch(1);
+			final List<CompletableFuture<DataBlock<short[]>>> reads = new ArrayList<>();
+			assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+				for (int i = 0; i < 10; ++i)
+					reads.add( client.<short[]>readBlock(new long[] {i,0,0}, 0,0,0).toCompletableFuture() );
+			});
+			assertEquals(2, client.getInFlight());
+			assertEquals(8, client.getWaiting());
+
+			server.answering.countDown();
+			for (int i = 0; i < 10; ++i)
+				assertArrayEquals(block(i).getData(), reads.get(i).get().getData());
+			assertEquals(0, client.getInFlight());
+			assertEquals(0, client.getWaiting());
+		}
+	}
+
+	@Test
+	public void MissingBlocksAndFailures() throws Exception {
+		final AsyncDatasetServerClient client;
+		try (LocalDatasetServer server = new LocalDatasetServer(DataType.UINT16)) {
+			client = new AsyncDatasetServerClient(server.getURL(), DataType.UINT16);
+			assertNull(client.readBlock(new long[] {1,2,3}, 0,0,0).toCompletableFuture().get());
+
+			//a null block removes the block
+			client.writeBlock(block(1), 0,0,0).toCompletableFuture().get();
+			client.writeBlock(new long[] {1,0,0}, null, 0,0,0).toCompletableFuture().get();
+			assertTrue(server.blocks.isEmpty());
+
+			//a follow-up request from the completion does not wait for the room it holds
+			final AsyncDatasetServerClient oneInFlight = new AsyncDatasetServerClient(server.getURL(),
+					DataType.UINT16, WireCompression.RAW, WireCompression.DEFAULT_LEVEL, 1);
+			assertNull(oneInFlight.readBlock(new long[] {0,0,0}, 0,0,0)
+					.thenCompose(b -> oneInFlight.readBlock(new long[] {1,0,0}, 0,0,0))
+					.toCompletableFuture().get());
+		}
+
+		//the server is gone
+		final ExecutionException e = assertThrows(ExecutionException.class,
+				() -> client.readBlock(new long[] {0,0,0}, 0,0,0).toCompletableFuture().get());
+		assertTrue(e.getCause() instanceof IOException);
+		assertEquals(0, client.getInFlight());
+	}
+
+	/** the block as the DatasetServer keeps it */
+	static byte[] toBytes(final DataBlock<?> block) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (DataOutputStream os = new DataOutputStream(baos)) {
+			BatchedBlocks.writeBlock(os, block);
+		}
+		return baos.toByteArray();
+	}
+
+	static ShortArrayDataBlock block(final int i) {
+		final short[] data = new short[BLOCK_SIDE*BLOCK_SIDE*BLOCK_SIDE];
+		for (int j = 0; j < data.length; ++j) data[j] = (short)(i + j % 7);
+		return new ShortArrayDataBlock(new int[] {BLOCK_SIDE,BLOCK_SIDE,BLOCK_SIDE}, new long[] {i,0,0}, data);
+	}
+}
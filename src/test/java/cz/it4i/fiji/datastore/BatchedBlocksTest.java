@@ -0,0 +1,60 @@
+package cz.it4i.fiji.datastore;
+
+import cz.it4i.fiji.datastore.rest_client.DatasetServerClient;
+import cz.it4i.fiji.datastore.rest_client.RESTClientFactory;
+import cz.it4i.fiji.datastore.rest_client.Routines;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class BatchedBlocksTest {
+	static final int NO_OF_BLOCKS = 20000;
+
+	@Test
+	public void WriteAndReadManySmallBlocks() throws IOException {
+		try (LocalDatasetServer server = new LocalDatasetServer(DataType.UINT8)) {
+			final DatasetServerClient client = RESTClientFactory.create(server.getURL(), DatasetServerClient.class);
+
+			final List<DataBlock<?>> blocks = new ArrayList<>(NO_OF_BLOCKS);
+			final List<long[]> positions = new ArrayList<>(NO_OF_BLOCKS+1);
+			for (int i = 0; i < NO_OF_BLOCKS; ++i) {
+				final long[] pos = {i % 100, i / 100, 0};
+				final byte[] data = new byte[8];
+				Arrays.fill(data, (byte)i);
+				blocks.add( new ByteArrayDataBlock(new int[] {2,2,2}, pos, data) );
+				positions.add(pos);
+			}
+			//one block that was never written
+			positions.add(new long[] {1000,1000,1000});
+
+			Routines.writeBlocks(client, blocks, 0,1,2);
+			final List<DataBlock<byte[]>> readBlocks = Routines.readBlocks(DataType.UINT8, client, positions, 0,1,2);
+			assertEquals(2, server.noOfRequests.get());
+
+			assertEquals(NO_OF_BLOCKS+1, readBlocks.size());
+			for (int i = 0; i < NO_OF_BLOCKS; ++i) {
+				final DataBlock<byte[]> block = readBlocks.get(i);
+				assertNotNull(block);
+				assertArrayEquals(positions.get(i), block.getGridPosition());
+				assertArrayEquals((byte[])blocks.get(i).getData(), block.getData());
+			}
+			assertNull(readBlocks.get(NO_OF_BLOCKS));
+
+			//the per-URL requests still see the same blocks
+			final DataBlock<byte[]> block = Routines.readBlock(DataType.UINT8, client, new long[] {5,3,0}, 0,1,2);
+			assertNotNull(block);
+			assertArrayEquals((byte[])blocks.get(305).getData(), block.getData());
+		}
+	}
+}
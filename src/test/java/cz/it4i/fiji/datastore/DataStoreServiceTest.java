@@ -0,0 +1,313 @@
+package cz.it4i.fiji.datastore;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import cz.it4i.fiji.datastore.service.DataStoreRequest;
+import cz.it4i.fiji.datastore.service.DataStoreService;
+import cz.it4i.fiji.datastore.service.DataStoreServiceMetrics;
+import cz.it4i.fiji.legacy.ReadFullImage;
+import cz.it4i.fiji.legacy.ReadHyperstack;
+import cz.it4i.fiji.legacy.WriteFullImage;
+import cz.it4i.fiji.legacy.WriteHyperstack;
+import net.imglib2.img.array.ArrayImgs;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.scijava.Context;
+import org.scijava.log.LogService;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The DataStoreService against a register service that takes a while to start
+ * a DatasetServer: concurrent requests for the same DatasetServer start only one,
+ * failures are shared but not cached, asynchronous requests start their servers
+ * in parallel, the keep-alive renews only the servers in use, and the metrics
+ * are published over JMX (only if asked for) while the service lives.
+ */
+public class DataStoreServiceTest {
+	static final int THREADS = 16;
+
+	HttpServer register;
+	Context context;
+	final AtomicInteger startedServers = new AtomicInteger();
+	final AtomicInteger pings = new AtomicInteger();
+	volatile long lastPingMillis = 0;
+	volatile boolean failing = false;
+	/** if set, a server is started only once this many requests are starting one at the same time */
+	volatile CountDownLatch startingTogether = null;
+
+	@BeforeEach
+	public void startRegister() throws IOException {
+		register = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		register.createContext("/datasets/", this::startServer);
+		register.createContext("/server/", e -> {
+			if (e.getRequestURI().getPath().contains("/datatype/")) {
+				lastPingMillis = System.currentTimeMillis();
+				pings.incrementAndGet();
+			}
+			reply(e, 200);
+		});
+		register.setExecutor(Executors.newCachedThreadPool());
+		register.start();
+	}
+
+	@AfterEach
+	public void stopRegister() {
+		if (context != null) context.dispose();
+		register.stop(0);
+	}
+
+	/** the service of a new context, which is disposed after the test */
+	DataStoreService newService() {
+		context = new Context(LogService.class, DataStoreService.class);
+		return context.getService(DataStoreService.class);
+	}
+
+	void startServer(final HttpExchange e) throws IOException {
+		try {
+			final CountDownLatch together = startingTogether;
+			if (together != null) {
+				together.countDown();
+				if (!together.await(10, TimeUnit.SECONDS)) {
+					reply(e, 504);
+					return;
+				}
+			}
+			Thread.sleep(300);
+		} catch (InterruptedException ignored) {}
+		if (failing) {
+			reply(e, 503);
+			return;
+		}
+		e.getResponseHeaders().add("Location", "/server/"+startedServers.incrementAndGet()+"/");
+		reply(e, 302);
+	}
+
+	static void reply(final HttpExchange e, final int code) throws IOException {
+		e.getRequestBody().close();
+		e.sendResponseHeaders(code, -1);
+		e.close();
+	}
+
+	DataStoreRequest request(final String version) {
+		return request(version, 30000);
+	}
+
+	DataStoreRequest request(final String version, final int timeout) {
+		return new DataStoreRequest("localhost:"+register.getAddress().getPort(), "some-uuid",
+				1,1,1, version, "write", timeout);
+	}
+
+	/** polls the 'condition' until it holds, fails if it does not within the 'deadlineMillis' */
+	static void waitUntil(final BooleanSupplier condition, final long deadlineMillis, final String what)
+	throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + deadlineMillis;
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for "+what);
+			Thread.sleep(10);
+		}
+	}
+
+	List<Future<String>> askConcurrently(final DataStoreService service, final DataStoreRequest request) {
+		final ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+		final List<Future<String>> urls = new ArrayList<>(THREADS);
+		for (int i = 0; i < THREADS; ++i) {
+			final Callable<String> ask = () -> service.getActiveServingUrl(request);
+			urls.add( threads.submit(ask) );
+		}
+		threads.shutdown();
+		return urls;
+	}
+
+	@Test
+	public void SingleServerForConcurrentRequests() throws Exception {
+		final DataStoreService service = newService();
+
+		final Set<String> urls = new HashSet<>();
+		for (Future<String> url : askConcurrently(service, request("latest")))
+			urls.add(url.get());
+		assertEquals(1, startedServers.get());
+		assertEquals(1, urls.size());
+		assertTrue(urls.iterator().next().endsWith("/server/1/"));
+
+		//a different request gets its own server, the same one is served from the cache
+		service.getActiveServingUrl(request("1"));
+		service.getActiveServingUrl(request("latest"));
+		assertEquals(2, startedServers.get());
+
+		final DataStoreServiceMetrics metrics = service.getMetrics();
+		assertEquals(2, metrics.getSpawns());
+		assertEquals(2, metrics.getLiveLeases());
+		assertEquals(THREADS+2, metrics.getHits() + metrics.getMisses());
+		//one of the concurrent requests has started the server, the others either waited
+		//for it or came after it (the last request above is a hit too)
+		assertEquals(THREADS-1, metrics.getHits() - 1 + metrics.getCoalescedRequests());
+		assertTrue(metrics.getMeanSpawnMillis() >= 300);
+
+		//the same numbers over JMX once published, the services of the previous tests are gone
+		final MBeanServer jmx = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName pattern = new ObjectName("cz.it4i.fiji.datastore:type=DataStoreService,*");
+		assertTrue(jmx.queryNames(pattern, null).isEmpty());
+		service.publishMetrics();
+		service.publishMetrics();
+		final Set<ObjectName> names = jmx.queryNames(pattern, null);
+		assertEquals(1, names.size());
+		final ObjectName name = names.iterator().next();
+		assertEquals(Integer.toHexString(System.identityHashCode(service)), name.getKeyProperty("id"));
+		assertEquals(2L, jmx.getAttribute(name, "Spawns"));
+		assertEquals(2, jmx.getAttribute(name, "LiveLeases"));
+
+		//and gone with this one too
+		context.dispose();
+		context = null;
+		assertTrue(jmx.queryNames(pattern, null).isEmpty());
+	}
+
+	@Test
+	public void SingleUseTransfersLeaveNoMBeans() throws Exception {
+		//nothing listens there, the transfers fail right after they have set up their contexts
+		final String url = "localhost:1";
+		assertThrows(IOException.class, () -> ReadFullImage.from(url, "some-uuid", 0,0,0, "[1, 1, 1]", "latest"));
+		assertThrows(IOException.class, () -> ReadFullImage.lazilyFrom(url, "some-uuid", 0,0,0, "[1, 1, 1]", "latest", 16));
+		assertThrows(IOException.class, () -> WriteFullImage.to(ArrayImgs.unsignedShorts(8,8,8), url, "some-uuid",
+				0,0,0, "[1, 1, 1]", "latest"));
+		assertThrows(IOException.class, () -> ReadHyperstack.from(url, "some-uuid", 0,0, 0,0, 0,0, "[1, 1, 1]", "latest"));
+		assertThrows(IOException.class, () -> WriteHyperstack.to(ArrayImgs.unsignedShorts(8,8,8,1,1), url, "some-uuid",
+				0,0,0, 0, "[1, 1, 1]", true, "latest", 1, 1));
+
+		final ObjectName pattern = new ObjectName("cz.it4i.fiji.datastore:type=DataStoreService,*");
+		assertTrue(ManagementFactory.getPlatformMBeanServer().queryNames(pattern, null).isEmpty());
+	}
+
+	@Test
+	public void FailureIsSharedAndNotCached() throws Exception {
+		final DataStoreService service = newService();
+
+		failing = true;
+		int failures = 0;
+		for (Future<String> url : askConcurrently(service, request("latest")))
+			try {
+				url.get();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+				++failures;
+			}
+		assertEquals(THREADS, failures);
+
+		failing = false;
+		assertTrue(service.getActiveServingUrl(request("latest")).endsWith("/server/1/"));
+		failing = true;
+		service.forgetServingUrl(request("latest"));
+		assertThrows(IOException.class, () -> service.getActiveServingUrl(request("latest")));
+	}
+
+	@Test
+	public void AsyncRequestsStartInParallel() throws Exception {
+		final DataStoreService service = newService();
+
+		//these start at the same time, or none is started at all
+		startingTogether = new CountDownLatch(4);
+		final List<CompletableFuture<String>> urls = new ArrayList<>();
+		for (int v = 1; v <= 4; ++v)
+			urls.add( service.getActiveServingUrlAsync(request(String.valueOf(v))) );
+		urls.add( service.getActiveServingUrlAsync(request("1")) );
+		final Set<String> distinctUrls = new HashSet<>();
+		for (CompletableFuture<String> url : urls)
+			distinctUrls.add(url.get());
+		assertEquals(4, startedServers.get());
+		assertEquals(4, distinctUrls.size());
+
+		//a known one is served right away
+		assertTrue(service.getActiveServingUrlAsync(request("1")).isDone());
+
+		failing = true;
+		final CompletableFuture<String> failed = service.getActiveServingUrlAsync(request("5"));
+		final ExecutionException e = assertThrows(ExecutionException.class, failed::get);
+		assertTrue(e.getCause() instanceof IOException);
+	}
+
+	@Test
+	public void KeepAliveRenewsOnlyActiveServers() throws Exception {
+		final DataStoreService service = newService();
+		service.uncertaintyWindowMiliSeconds = 200;
+		service.keepAlivePeriodMiliSeconds = 50;
+		service.keepAliveMaxIdleMiliSeconds = 1500;
+		service.startKeepAlive();
+		try {
+			//a pause longer than the timeout is bridged by the keep-alive: it is renewed
+			//300 ms before its end, the second renewal is past the original end of 600 ms
+			final DataStoreRequest request = request("latest", 600);
+			service.getActiveServingUrl(request);
+			waitUntil(() -> service.getMetrics().getRenewals() >= 2, 5000, "the renewals");
+			assertTrue(service.getActiveServingUrl(request).endsWith("/server/1/"));
+			assertTrue(pings.get() >= 2);
+
+			//a server idle for longer is let go: the pings stop, and once it is not renewed
+			//for longer than its timeout, the next request starts a new one
+			waitUntil(() -> lastPingMillis > 0 && System.currentTimeMillis() - lastPingMillis > 600 + 400,
+					1500 + 5000, "the pings to stop");
+			assertTrue(service.getActiveServingUrl(request).endsWith("/server/2/"));
+		} finally {
+			service.stopKeepAlive();
+		}
+		assertFalse(service.isKeepingAlive());
+	}
+
+	@Test
+	public void KeepAliveRunsWhileSomeoneNeedsIt() throws Exception {
+		final DataStoreService service = newService();
+		service.keepAlivePeriodMiliSeconds = 50;
+		service.keepAliveMaxIdleMiliSeconds = 300;
+
+		//the callers are counted
+		service.startKeepAlive();
+		service.startKeepAlive();
+		service.stopKeepAlive();
+		assertTrue(service.isKeepingAlive());
+		service.stopKeepAlive();
+		assertFalse(service.isKeepingAlive());
+		service.stopKeepAlive();
+		assertFalse(service.isKeepingAlive());
+
+		//a caller bound to a connection is stopped once the connection is idle
+		final DataStoreRequest request = request("latest");
+		service.getActiveServingUrl(request);
+		service.keepAliveWhileUsed(request);
+		service.startKeepAlive();
+		assertTrue(service.isKeepingAlive());
+		service.stopKeepAlive();
+		waitUntil(() -> !service.isKeepingAlive(), 5000, "the idle connection to stop the keep-alive");
+
+		//the disposed service stops it regardless of the callers
+		service.startKeepAlive();
+		service.keepAliveWhileUsed(request);
+		context.dispose();
+		context = null;
+		assertFalse(service.isKeepingAlive());
+	}
+}
@@ -0,0 +1,209 @@
+package cz.it4i.fiji.datastore;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import cz.it4i.fiji.datastore.rest_client.BatchedBlocks;
+import cz.it4i.fiji.datastore.rest_client.DataBlockRoutines;
+import cz.it4i.fiji.datastore.rest_client.WireCompression;
+import org.janelia.saalfeldlab.n5.DataType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory stand-in for a DatasetServer to test the clients offline.
+ * It serves one data type, keeps the blocks in a map, and understands the
+ * per-URL block requests (x/y/z/t/c/a/ segments, also several of them in
+ * one URL), the batched block requests (see {@link BatchedBlocks}) and
+ * the datatype query. It also understands the {@link WireCompression} of the
+ * uploaded blocks and compresses the downloaded ones if asked for it, unless
+ * {@link #acceptsWireCompression} is off.
+ */
+public class LocalDatasetServer implements AutoCloseable {
+	public LocalDatasetServer(final DataType dataType) throws IOException {
+		this.dataType = dataType;
+		this.bytesPerVoxel = DataBlockRoutines.getSizeOfElement(dataType);
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", this::handle);
+		server.start();
+	}
+
+	final DataType dataType;
+	final int bytesPerVoxel;
+	final HttpServer server;
+
+	/** blocks (headers and data) under keys "x/y/z/t/c/a" */
+	public final Map<String,byte[]> blocks = new ConcurrentHashMap<>();
+
+	/** how many requests have been served so far */
+	public final AtomicInteger noOfRequests = new AtomicInteger();
+
+	/** bytes of the request and response bodies as they went over the wire */
+	public final AtomicLong receivedBytes = new AtomicLong();
+	public final AtomicLong sentBytes = new AtomicLong();
+
+	/** if false, the compressed uploads are refused with 415 and the downloads are raw */
+	public volatile boolean acceptsWireCompression = true;
+
+	/** if set, the requests are answered only once it is counted down */
+	public volatile CountDownLatch answering = null;
+
+	public String getURL() {
+		return "http://localhost:"+server.getAddress().getPort()+"/";
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+	}
+
+	void handle(final HttpExchange exchange) throws IOException {
+		noOfRequests.incrementAndGet();
+		final CountDownLatch answeringNow = answering;
+		if (answeringNow != null) {
+			try {
+				answeringNow.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		final String path = exchange.getRequestURI().getPath().substring(1);
+		final boolean isPost = exchange.getRequestMethod().equals("POST");
+		try (InputStream is = new CountingInputStream(exchange.getRequestBody())) {
+			final WireCompression uploadCoding = WireCompression.fromEncoding(
+					exchange.getRequestHeaders().getFirst(WireCompression.CONTENT_ENCODING));
+			if (uploadCoding == null || (uploadCoding != WireCompression.RAW && !acceptsWireCompression)) {
+				while (is.read(new byte[1 << 16]) >= 0); //the client expects its body to be read
+				exchange.sendResponseHeaders(415, -1);
+				return;
+			}
+			final DataInputStream body = new DataInputStream(uploadCoding.decompress(is));
+			if (path.startsWith("datatype")) {
+				reply(exchange, dataType.toString().getBytes(StandardCharsets.UTF_8));
+			} else if (path.equals(BatchedBlocks.READ_PATH)) {
+				readBlocks(exchange, BatchedBlocks.readCoordinates(body));
+			} else if (path.equals(BatchedBlocks.WRITE_PATH)) {
+				writeBlocks(body, BatchedBlocks.readCoordinates(body));
+				reply(exchange, new byte[0]);
+			} else {
+				final String[] segments = path.split("/");
+				if (segments.length % 6 != 0) {
+					exchange.sendResponseHeaders(404, -1);
+					return;
+				}
+				final List<int[]> coords = new ArrayList<>();
+				for (int i = 0; i < segments.length; i += 6) {
+					final int[] c = new int[6];
+					for (int j = 0; j < 6; ++j) c[j] = Integer.parseInt(segments[i+j]);
+					coords.add(c);
+				}
+				if (isPost) {
+					writeBlocks(body, coords);
+					reply(exchange, new byte[0]);
+				} else readBlocks(exchange, coords);
+			}
+		} catch (IOException | RuntimeException e) {
+			exchange.sendResponseHeaders(500, -1);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	void readBlocks(final HttpExchange exchange, final List<int[]> coords) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(baos);
+		for (int[] c : coords) {
+			final byte[] block = blocks.get(key(c));
+			if (block != null) out.write(block);
+			else for (int i = 0; i < 3; ++i) out.writeInt(-1);
+		}
+		reply(exchange, baos.toByteArray());
+	}
+
+	void writeBlocks(final DataInputStream body, final List<int[]> coords) throws IOException {
+		for (int[] c : coords) {
+			final int x = body.readInt(), y = body.readInt(), z = body.readInt();
+			if (x == -1 && y == -1 && z == -1) {
+				blocks.remove(key(c));
+				continue;
+			}
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			final DataOutputStream out = new DataOutputStream(baos);
+			out.writeInt(x); out.writeInt(y); out.writeInt(z);
+			final byte[] data = new byte[x*y*z * bytesPerVoxel];
+			body.readFully(data);
+			out.write(data);
+			blocks.put(key(c), baos.toByteArray());
+		}
+	}
+
+	static String key(final int[] c) {
+		return c[0]+"/"+c[1]+"/"+c[2]+"/"+c[3]+"/"+c[4]+"/"+c[5];
+	}
+
+	void reply(final HttpExchange exchange, final byte[] data) throws IOException {
+		exchange.getResponseHeaders().add("Content-Type","application/octet-stream");
+		final WireCompression coding = acceptsWireCompression
+				? negotiate(exchange.getRequestHeaders().getFirst(WireCompression.ACCEPT_ENCODING))
+				: WireCompression.RAW;
+		byte[] wireData = data;
+		if (coding != WireCompression.RAW && data.length > 0) {
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			try (OutputStream os = coding.compress(baos, WireCompression.DEFAULT_LEVEL)) {
+				os.write(data);
+			}
+			wireData = baos.toByteArray();
+			exchange.getResponseHeaders().add(WireCompression.CONTENT_ENCODING, coding.encoding);
+		}
+		sentBytes.addAndGet(wireData.length);
+		exchange.sendResponseHeaders(200, wireData.length > 0 ? wireData.length : -1);
+		if (wireData.length > 0)
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(wireData);
+			}
+	}
+
+	/** the first supported coding of the Accept-Encoding header, or RAW */
+	static WireCompression negotiate(final String acceptEncoding) {
+		if (acceptEncoding == null) return WireCompression.RAW;
+		for (String coding : acceptEncoding.split(",")) {
+			final WireCompression c = WireCompression.fromEncoding(coding.split(";")[0]);
+			if (c != null) return c;
+		}
+		return WireCompression.RAW;
+	}
+
+	class CountingInputStream extends FilterInputStream {
+		CountingInputStream(final InputStream is) {
+			super(is);
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b >= 0) receivedBytes.incrementAndGet();
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			final int n = super.read(b, off, len);
+			if (n > 0) receivedBytes.addAndGet(n);
+			return n;
+		}
+	}
+}
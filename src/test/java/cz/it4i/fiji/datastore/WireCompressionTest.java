@@ -0,0 +1,111 @@
+package cz.it4i.fiji.datastore;
+
+import cz.it4i.fiji.datastore.rest_client.DatasetServerClient;
+import cz.it4i.fiji.datastore.rest_client.RESTClientFactory;
+import cz.it4i.fiji.datastore.rest_client.Routines;
+import cz.it4i.fiji.datastore.rest_client.WireCompression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WireCompressionTest {
+	static final int NO_OF_BLOCKS = 64;
+	static final int BLOCK_SIDE = 16;
+
+	@Test
+	public void CodecsRoundTrip() throws IOException {
+		final byte[] data = new byte[1 << 20];
+		for (int i = 0; i < data.length; ++i) data[i] = (byte)(i / 1000);
+
+		for (WireCompression c : WireCompression.values())
+			for (int level : new int[] {WireCompression.DEFAULT_LEVEL, 1, 9}) {
+				final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				try (OutputStream os = c.compress(baos, level)) {
+					os.write(data);
+				}
+				if (c != WireCompression.RAW) assertTrue(baos.size() < data.length / 10);
+
+				final byte[] decoded = new byte[data.length];
+				try (InputStream is = WireCompression.decoding(c.encoding, new ByteArrayInputStream(baos.toByteArray()))) {
+					int read = 0, n;
+					while ((n = is.read(decoded, read, decoded.length-read)) > 0) read += n;
+					assertEquals(data.length, read);
+					assertEquals(-1, is.read());
+				}
+				assertArrayEquals(data, decoded);
+			}
+
+		assertEquals(WireCompression.RAW, WireCompression.fromEncoding(null));
+		assertEquals(WireCompression.LZ4, WireCompression.fromName("lz4"));
+		assertEquals(WireCompression.RAW, WireCompression.fromName("none"));
+		assertThrows(IOException.class, () -> WireCompression.decoding("br", new ByteArrayInputStream(new byte[0])));
+	}
+
+	@Test
+	public void CompressedBlocksOverTheWire() throws IOException {
+		final List<DataBlock<?>> blocks = new ArrayList<>(NO_OF_BLOCKS);
+		final List<long[]> positions = new ArrayList<>(NO_OF_BLOCKS);
+		for (int i = 0; i < NO_OF_BLOCKS; ++i) {
+			final long[] pos = {i % 8, i / 8, 0};
+			final short[] data = new short[BLOCK_SIDE*BLOCK_SIDE*BLOCK_SIDE];
+			for (int j = 0; j < data.length; ++j) data[j] = (short)(100 + i + (j % BLOCK_SIDE) / 4);
+			blocks.add( new ShortArrayDataBlock(new int[] {BLOCK_SIDE,BLOCK_SIDE,BLOCK_SIDE}, pos, data) );
+			positions.add(pos);
+		}
+
+		long rawBytes = 0;
+		for (WireCompression c : WireCompression.values())
+			try (LocalDatasetServer server = new LocalDatasetServer(DataType.UINT16)) {
+				final DatasetServerClient client = RESTClientFactory.create(server.getURL(),
+						DatasetServerClient.class, c, WireCompression.DEFAULT_LEVEL);
+
+				Routines.writeBlocks(client, blocks, 0,0,0);
+				final List<DataBlock<short[]>> readBlocks = Routines.readBlocks(DataType.UINT16, client, positions, 0,0,0);
+				for (int i = 0; i < NO_OF_BLOCKS; ++i) {
+					assertNotNull(readBlocks.get(i));
+					assertArrayEquals((short[])blocks.get(i).getData(), readBlocks.get(i).getData());
+				}
+
+				final long wireBytes = server.receivedBytes.get() + server.sentBytes.get();
+				if (c == WireCompression.RAW) rawBytes = wireBytes;
+				else assertTrue(wireBytes < rawBytes / 3, c+" sent "+wireBytes+" Bytes, raw "+rawBytes);
+			}
+	}
+
+	@Test
+	public void ServerWithoutCompression() throws IOException {
+		try (LocalDatasetServer server = new LocalDatasetServer(DataType.UINT16)) {
+			server.acceptsWireCompression = false;
+			final short[] data = new short[BLOCK_SIDE*BLOCK_SIDE*BLOCK_SIDE];
+			final List<DataBlock<?>> blocks = new ArrayList<>();
+			blocks.add( new ShortArrayDataBlock(new int[] {BLOCK_SIDE,BLOCK_SIDE,BLOCK_SIDE}, new long[] {0,0,0}, data) );
+
+			//the downloads asking for compression are served raw
+			final DatasetServerClient raw = RESTClientFactory.create(server.getURL(), DatasetServerClient.class);
+			Routines.writeBlocks(raw, blocks, 0,0,0);
+			final DatasetServerClient gzip = RESTClientFactory.create(server.getURL(),
+					DatasetServerClient.class, WireCompression.GZIP, WireCompression.DEFAULT_LEVEL);
+			final DataBlock<short[]> block = Routines.readBlock(DataType.UINT16, gzip, new long[] {0,0,0}, 0,0,0);
+			assertNotNull(block);
+			assertArrayEquals(data, block.getData());
+
+			//the compressed uploads are refused
+			assertThrows(IOException.class, () -> Routines.writeBlocks(gzip, blocks, 0,0,0));
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package cz.it4i.fiji.datastore.rest_client;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.ProcessingException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * The clients are handed out again from the cache, the least recently used ones
+ * beyond the limit are dropped, and so are all of them when the cache is
+ * cleared. The dropped clients stay usable for those who still hold them. No
+ * server is needed: a usable client fails on connecting to none, a closed one
+ * would fail before that.
+ */
+public class RESTClientFactoryTest {
+	static final String URL_A = "http://localhost:1/a/";
+	static final String URL_B = "http://localhost:1/b/";
+	static final String URL_C = "http://localhost:1/c/";
+
+	int originalMaxCachedClients;
+
+	@BeforeEach
+	public void limitCache() {
+		RESTClientFactory.clearCache();
+		originalMaxCachedClients = RESTClientFactory.maxCachedClients;
+		RESTClientFactory.maxCachedClients = 2;
+	}
+
+	@AfterEach
+	public void restoreCache() {
+		RESTClientFactory.clearCache();
+		RESTClientFactory.maxCachedClients = originalMaxCachedClients;
+	}
+
+	@Test
+	public void CacheHitsAndEviction() {
+		final DatasetServerClient a = RESTClientFactory.create(URL_A, DatasetServerClient.class);
+		assertSame(a, RESTClientFactory.create(URL_A, DatasetServerClient.class));
+		//another compression is another client
+		final DatasetServerClient aLz4 = RESTClientFactory.create(URL_A, DatasetServerClient.class,
+				WireCompression.LZ4, WireCompression.DEFAULT_LEVEL);
+		assertNotSame(a, aLz4);
+		assertEquals(2, RESTClientFactory.cachedClients());
+
+		//'a' is used more recently than 'aLz4', which is thus the one dropped
+		assertSame(a, RESTClientFactory.create(URL_A, DatasetServerClient.class));
+		final DatasetServerClient b = RESTClientFactory.create(URL_B, DatasetServerClient.class);
+		assertEquals(2, RESTClientFactory.cachedClients());
+		assertUsable(aLz4);
+		assertSame(a, RESTClientFactory.create(URL_A, DatasetServerClient.class));
+		assertSame(b, RESTClientFactory.create(URL_B, DatasetServerClient.class));
+
+		//the dropped one is created anew
+		final DatasetServerClient aLz4Again = RESTClientFactory.create(URL_A, DatasetServerClient.class,
+				WireCompression.LZ4, WireCompression.DEFAULT_LEVEL);
+		assertNotSame(aLz4, aLz4Again);
+		assertUsable(a);
+	}
+
+	@Test
+	public void ClearingDropsAll() {
+		final DatasetServerClient b = RESTClientFactory.create(URL_B, DatasetServerClient.class);
+		final DatasetRegisterServiceClient c = RESTClientFactory.create(URL_C, DatasetRegisterServiceClient.class);
+		RESTClientFactory.clearCache();
+		assertEquals(0, RESTClientFactory.cachedClients());
+		assertUsable(b);
+		assertThrows(ProcessingException.class, () -> c.createEmptyDataset(null));
+		assertNotSame(b, RESTClientFactory.create(URL_B, DatasetServerClient.class));
+	}
+
+	static void assertUsable(final DatasetServerClient client) {
+		assertThrows(ProcessingException.class, client::stopDataServer);
+	}
+}
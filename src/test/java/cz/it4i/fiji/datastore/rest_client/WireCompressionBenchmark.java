@@ -0,0 +1,141 @@
+package cz.it4i.fiji.datastore.rest_client;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes and decodes one transfer of 16 blocks 64x64x32 of uint16 voxels (8 MB with the
+ * block headers) that look like a fluorescence microscopy image: a dark background with
+ * a few smooth bright objects, and a shot noise of a few counts. The main() reports
+ * additionally the compression ratio and the effective throughput of such transfers over
+ * 1 and 10 Gbit links: with the encoding, the wire and the decoding all overlapping, it
+ * is the slowest of the encoder, the decoder, and the link bandwidth times the ratio.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireCompressionBenchmark {
+	@Param({"raw","gzip","lz4"})
+	public String codec;
+
+	@Param({"-1","1","9"})
+	public int level;
+
+	static final int[] BLOCK_SIZE = {64,64,32};
+	static final int NO_OF_BLOCKS = 16;
+
+	WireCompression compression;
+	byte[] transfer;
+	byte[] compressed;
+	final byte[] readBuffer = new byte[1 << 16];
+	final ByteArrayOutputStream wire = new ByteArrayOutputStream(1 << 24);
+
+	@Setup
+	public void setup() throws IOException {
+		compression = WireCompression.fromName(codec);
+		transfer = microscopyLikeTransfer();
+		encode();
+		compressed = wire.toByteArray();
+	}
+
+	@Benchmark
+	public Object encode() throws IOException {
+		wire.reset();
+		try (OutputStream os = compression.compress(wire, level)) {
+			os.write(transfer);
+		}
+		return wire;
+	}
+
+	@Benchmark
+	public long decode() throws IOException {
+		long sum = 0;
+		try (InputStream is = compression.decompress(new ByteArrayInputStream(compressed))) {
+			int n;
+			while ((n = is.read(readBuffer)) > 0) sum += n;
+		}
+		return sum;
+	}
+
+	static byte[] microscopyLikeTransfer() {
+		final Random rnd = new Random(42);
+		final int voxels = BLOCK_SIZE[0]*BLOCK_SIZE[1]*BLOCK_SIZE[2];
+		final ByteBuffer b = ByteBuffer.allocate(NO_OF_BLOCKS * (12 + 2*voxels));
+		for (int i = 0; i < NO_OF_BLOCKS; ++i) {
+			b.putInt(BLOCK_SIZE[0]).putInt(BLOCK_SIZE[1]).putInt(BLOCK_SIZE[2]);
+			//a few gaussian blobs per block
+			final double[][] blobs = new double[3][];
+			for (int j = 0; j < blobs.length; ++j)
+				blobs[j] = new double[] { rnd.nextDouble()*BLOCK_SIZE[0], rnd.nextDouble()*BLOCK_SIZE[1],
+						rnd.nextDouble()*BLOCK_SIZE[2], 4 + rnd.nextDouble()*8, 500 + rnd.nextDouble()*2000 };
+			for (int z = 0; z < BLOCK_SIZE[2]; ++z)
+				for (int y = 0; y < BLOCK_SIZE[1]; ++y)
+					for (int x = 0; x < BLOCK_SIZE[0]; ++x) {
+						double v = 100;
+						for (double[] blob : blobs) {
+							final double dx = x-blob[0], dy = y-blob[1], dz = z-blob[2];
+							v += blob[4] * Math.exp(-(dx*dx+dy*dy+dz*dz) / (2*blob[3]*blob[3]));
+						}
+						b.putShort((short)(v + rnd.nextInt(4)));
+					}
+		}
+		return b.array();
+	}
+
+	public static void main(String[] args) throws RunnerException, IOException {
+		final Collection<RunResult> results = new Runner(new OptionsBuilder()
+				.include(WireCompressionBenchmark.class.getSimpleName())
+				.build()).run();
+
+		final double transferMB = microscopyLikeTransfer().length / 1e6;
+		System.out.println();
+		System.out.println("codec level  ratio  encode MB/s  decode MB/s  1 Gbit MB/s  10 Gbit MB/s");
+		for (RunResult encodeResult : results) {
+			if (!encodeResult.getParams().getBenchmark().endsWith("encode")) continue;
+			final String codec = encodeResult.getParams().getParam("codec");
+			final String level = encodeResult.getParams().getParam("level");
+			double decodeMBps = 0;
+			for (RunResult r : results)
+				if (r.getParams().getBenchmark().endsWith("decode") && codec.equals(r.getParams().getParam("codec"))
+						&& level.equals(r.getParams().getParam("level")))
+					decodeMBps = r.getPrimaryResult().getScore() * transferMB;
+			final double encodeMBps = encodeResult.getPrimaryResult().getScore() * transferMB;
+
+			final WireCompressionBenchmark b = new WireCompressionBenchmark();
+			b.codec = codec;
+			b.level = Integer.parseInt(level);
+			b.setup();
+			final double ratio = (double)b.transfer.length / b.compressed.length;
+
+			final double codecMBps = Math.min(encodeMBps, decodeMBps);
+			System.out.printf("%5s %5s %6.2f %12.1f %12.1f %12.1f %13.1f%n", codec, level, ratio,
+					encodeMBps, decodeMBps, Math.min(codecMBps, 125 * ratio), Math.min(codecMBps, 1250 * ratio));
+		}
+	}
+}
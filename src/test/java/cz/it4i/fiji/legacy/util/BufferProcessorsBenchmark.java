@@ -0,0 +1,144 @@
+package cz.it4i.fiji.legacy.util;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes and encodes one 64x64x32 block of every supported voxel type with the conversion
+ * that was used before ("double": every voxel through setReal()/getRealDouble() as a double),
+ * with the typed processors ("typed": a voxel type's own primitive getters and setters), and
+ * with the bulk row copies into the primitive arrays of a PlanarImg ("bulk"). Divide the
+ * reported ops/s with the block size in bytes to get the throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferProcessorsBenchmark<T extends NativeType<T> & RealType<T>> {
+	@Param({"int8","uint8","int16","uint16","int32","uint32","int64","uint64","float32","float64"})
+	public String type;
+
+	@Param({"double","typed","bulk"})
+	public String path;
+
+	static final int[] BLOCK_SIZE = {64,64,32};
+	static final long[] BLOCK_OFFSET = {64,0,32};
+
+	Imglib2Types.TypeHandler<T> th;
+	Img<T> img;
+	RandomAccessibleInterval<T> target;
+	byte[] block;
+
+	@Setup
+	@SuppressWarnings("unchecked")
+	public void setup() {
+		th = Imglib2Types.getTypeHandler(type);
+		img = th.createPlanarImgFactory().create(192,128,96);
+		//a view is not a PlanarImg and thus takes the voxel-by-voxel path
+		target = path.equals("bulk") ? img : Views.interval(img, img);
+		block = new byte[BLOCK_SIZE[0]*BLOCK_SIZE[1]*BLOCK_SIZE[2] * th.nativeAndRealType.getBitsPerPixel()/8];
+		new Random(42).nextBytes(block);
+	}
+
+	@Benchmark
+	public Object decode() {
+		if (path.equals("double")) decodeViaDouble();
+		else th.blockIntoImg(block, BLOCK_SIZE, target, BLOCK_OFFSET);
+		return img;
+	}
+
+	@Benchmark
+	public Object encode() {
+		if (path.equals("double")) encodeViaDouble();
+		else th.imgIntoBlock(target, BLOCK_OFFSET, BLOCK_SIZE, block);
+		return block;
+	}
+
+	// ------------ the conversion as it was done before ------------
+	//NB: the type is resolved once per block, not per voxel, to measure only the conversion
+	void decodeViaDouble() {
+		final ByteBuffer b = ByteBuffer.wrap(block);
+		final Cursor<T> imageData = Views.flatIterable(blockView()).cursor();
+		final int length = BLOCK_SIZE[0]*BLOCK_SIZE[1]*BLOCK_SIZE[2];
+		switch (type) {
+			case "int8": case "uint8":
+				for (int bl = 0; bl < length; ++bl) imageData.next().setReal(b.get());
+				break;
+			case "int16": case "uint16":
+				for (int bl = 0; bl < length; ++bl) imageData.next().setReal(b.getShort());
+				break;
+			case "int32": case "uint32":
+				for (int bl = 0; bl < length; ++bl) imageData.next().setReal(b.getInt());
+				break;
+			case "int64": case "uint64":
+				for (int bl = 0; bl < length; ++bl) imageData.next().setReal(b.getLong());
+				break;
+			case "float32":
+				for (int bl = 0; bl < length; ++bl) imageData.next().setReal(b.getFloat());
+				break;
+			default:
+				for (int bl = 0; bl < length; ++bl) imageData.next().setReal(b.getDouble());
+		}
+	}
+
+	void encodeViaDouble() {
+		final ByteBuffer b = ByteBuffer.wrap(block);
+		final Cursor<T> imageData = Views.flatIterable(blockView()).cursor();
+		final int length = BLOCK_SIZE[0]*BLOCK_SIZE[1]*BLOCK_SIZE[2];
+		switch (type) {
+			case "int8": case "uint8":
+				for (int bl = 0; bl < length; ++bl) b.put((byte)imageData.next().getRealDouble());
+				break;
+			case "int16": case "uint16":
+				for (int bl = 0; bl < length; ++bl) b.putShort((short)imageData.next().getRealDouble());
+				break;
+			case "int32": case "uint32":
+				for (int bl = 0; bl < length; ++bl) b.putInt((int)imageData.next().getRealDouble());
+				break;
+			case "int64": case "uint64":
+				for (int bl = 0; bl < length; ++bl) b.putLong((long)imageData.next().getRealDouble());
+				break;
+			case "float32":
+				for (int bl = 0; bl < length; ++bl) b.putFloat((float)imageData.next().getRealDouble());
+				break;
+			default:
+				for (int bl = 0; bl < length; ++bl) b.putDouble(imageData.next().getRealDouble());
+		}
+	}
+
+	RandomAccessibleInterval<T> blockView() {
+		return Views.interval(img,
+				new long[] {BLOCK_OFFSET[0], BLOCK_OFFSET[1], BLOCK_OFFSET[2]},
+				new long[] {BLOCK_OFFSET[0]+BLOCK_SIZE[0]-1, BLOCK_OFFSET[1]+BLOCK_SIZE[1]-1, BLOCK_OFFSET[2]+BLOCK_SIZE[2]-1});
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(BufferProcessorsBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
@@ -0,0 +1,164 @@
+package cz.it4i.fiji.legacy.util;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * The bulk row copies into the PlanarImg and ArrayImg (Imglib2Types.TypeHandler.copyRows())
+ * must give the same results as the voxel-by-voxel copies (taken with a view of the image),
+ * for all supported types and also for a block that does not start at the buffer's beginning.
+ * Both must carry the wide integer values losslessly. The (c,t) stacks of a 5D PlanarImg are
+ * copied in bulk, too.
+ */
+public class Imglib2TypesTest {
+	static final String[] TYPES = {"int8","uint8","int16","uint16","int32","uint32","int64","uint64","float32","float64"};
+	static final long[] IMG_SIZE = {20,12,6};
+	static final int[] BLOCK_SIZE = {8,5,3};
+	static final long[] BLOCK_OFFSET = {8,5,3};
+	/** the block is placed after a header, as it is in a transfer */
+	static final int HEADER = 12;
+
+	@Test
+	public void BulkCopiesMatchVoxelCopiesInPlanarImg() {
+		for (String type : TYPES) compareCopies(type, false);
+	}
+
+	@Test
+	public void BulkCopiesMatchVoxelCopiesInArrayImg() {
+		for (String type : TYPES) compareCopies(type, true);
+	}
+
+	@Test
+	public <T extends NativeType<T> & RealType<T>>
+	void BulkCopiesIntoStackOfPlanarHyperstack() {
+		@SuppressWarnings("unchecked")
+		final Imglib2Types.TypeHandler<T> th = Imglib2Types.getTypeHandler("uint16");
+		final Img<T> hyperstack = th.createPlanarImgFactory().create(IMG_SIZE[0], IMG_SIZE[1], IMG_SIZE[2], 2, 3);
+		final Img<T> voxels = th.createPlanarImgFactory().create(IMG_SIZE[0], IMG_SIZE[1], IMG_SIZE[2], 2, 3);
+		final RandomAccessibleInterval<T> stack = Views.hyperSlice(Views.hyperSlice(hyperstack, 4, 2), 3, 1);
+		final RandomAccessibleInterval<T> voxelsStack = Views.hyperSlice(Views.hyperSlice(voxels, 4, 2), 3, 1);
+
+		//the stack of c=1,t=2 starts at the plane z + Z*(c + 2*t)
+		assertEquals((int)IMG_SIZE[2]*5, Imglib2Types.planesOf(stack, Imglib2Types.planesBehind(stack))[0]);
+		//with the axes X,Y,C,Z,T (of an ImagePlus), the z-slices of a stack are every other plane
+		final Img<T> xyczt = th.createPlanarImgFactory().create(IMG_SIZE[0], IMG_SIZE[1], 2, IMG_SIZE[2], 3);
+		final RandomAccessibleInterval<T> cStack = Views.hyperSlice(Views.hyperSlice(Views.permute(xyczt, 2, 3), 4, 2), 3, 1);
+		assertArrayEquals(new int[] {25,27,29,31,33,35}, Imglib2Types.planesOf(cStack, Imglib2Types.planesBehind(cStack)));
+		//a view that does not keep the x,y axes is copied voxel by voxel
+		final RandomAccessibleInterval<T> swapped = Views.permute(stack, 0, 1);
+		assertNull(Imglib2Types.planesOf(swapped, Imglib2Types.planesBehind(swapped)));
+
+		final ByteBuffer block = randomValues("uint16", BLOCK_SIZE[0]*BLOCK_SIZE[1]*BLOCK_SIZE[2]*2);
+		th.blockIntoImg(block, BLOCK_SIZE, stack, BLOCK_OFFSET);
+		th.blockIntoImg(block, BLOCK_SIZE, Views.interval(voxelsStack, voxelsStack), BLOCK_OFFSET);
+		assertArrayEquals(contentOf(th, voxels), contentOf(th, hyperstack), "decoded into a stack of a hyperstack");
+
+		final ByteBuffer bulkBlock = ByteBuffer.allocate(block.capacity());
+		th.imgIntoBlock(stack, BLOCK_OFFSET, BLOCK_SIZE, bulkBlock);
+		assertArrayEquals(block.array(), bulkBlock.array(), "encoded from a stack of a hyperstack");
+	}
+
+	/** the values that a double cannot hold exactly must survive a round trip */
+	@Test
+	public void WideIntegersAreLossless() {
+		final long aboveDoublePrecision = (1L << 53) + 1;
+		roundTrip("int64", aboveDoublePrecision, -aboveDoublePrecision, Long.MAX_VALUE, Long.MIN_VALUE);
+		//the unsigned values are in their two's complement, e.g. -1 is 2^64-1
+		roundTrip("uint64", aboveDoublePrecision, -1L, Long.MIN_VALUE + 1);
+		//the uint32 values above 2^31 are the negative int32 ones on the wire
+		roundTrip("uint32", (long)Integer.MIN_VALUE + 1, -1L);
+	}
+
+	/** the 'values' sent in a block come back the same, through the voxel and the bulk paths */
+	@SuppressWarnings("unchecked")
+	<T extends NativeType<T> & RealType<T>>
+	void roundTrip(final String type, final long... values) {
+		final Imglib2Types.TypeHandler<T> th = Imglib2Types.getTypeHandler(type);
+		final int bytesPerVoxel = th.nativeAndRealType.getBitsPerPixel()/8;
+		final ByteBuffer block = ByteBuffer.allocate(values.length * bytesPerVoxel);
+		for (long v : values)
+			if (bytesPerVoxel == 8) block.putLong(v);
+			else block.putInt((int)v);
+		final int[] blockSize = {values.length,1,1};
+		final long[] origin = {0,0,0};
+
+		for (boolean arrayImg : new boolean[] {false, true}) {
+			final Img<T> img = arrayImg ? new ArrayImgFactory<>(th.nativeAndRealType).create(values.length,1,1)
+					: th.createPlanarImgFactory().create(values.length,1,1);
+			for (boolean bulk : new boolean[] {false, true}) {
+				final ByteBuffer sent = block.duplicate();
+				sent.rewind();
+				th.blockIntoImg(sent, blockSize, bulk ? img : Views.interval(img, img), origin);
+				final ByteBuffer received = ByteBuffer.allocate(block.capacity());
+				th.imgIntoBlock(bulk ? img : Views.interval(img, img), origin, blockSize, received);
+				assertArrayEquals(block.array(), received.array(),
+						type+" via "+(bulk ? "bulk" : "voxel")+" copies into "+img.getClass().getSimpleName());
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	<T extends NativeType<T> & RealType<T>>
+	void compareCopies(final String type, final boolean arrayImg) {
+		final Imglib2Types.TypeHandler<T> th = Imglib2Types.getTypeHandler(type);
+		final int bytesPerVoxel = th.nativeAndRealType.getBitsPerPixel()/8;
+		final Img<T> bulk = create(th, arrayImg);
+		final Img<T> voxels = create(th, arrayImg);
+
+		//block into image
+		final ByteBuffer block = randomValues(type, HEADER + BLOCK_SIZE[0]*BLOCK_SIZE[1]*BLOCK_SIZE[2]*bytesPerVoxel);
+		block.position(HEADER);
+		th.blockIntoImg(block, BLOCK_SIZE, bulk, BLOCK_OFFSET);
+		th.blockIntoImg(block, BLOCK_SIZE, Views.interval(voxels, voxels), BLOCK_OFFSET);
+		assertArrayEquals(contentOf(th, voxels), contentOf(th, bulk), type+" decoded into "+bulk.getClass().getSimpleName());
+
+		//image into block
+		final int imgLength = (int)(IMG_SIZE[0]*IMG_SIZE[1]*IMG_SIZE[2]);
+		th.blockIntoImgInterval(randomValues(type, imgLength*bytesPerVoxel).array(), imgLength, Views.flatIterable(bulk));
+		final ByteBuffer bulkBlock = ByteBuffer.allocate(block.capacity());
+		final ByteBuffer voxelsBlock = ByteBuffer.allocate(block.capacity());
+		bulkBlock.position(HEADER);
+		voxelsBlock.position(HEADER);
+		th.imgIntoBlock(bulk, BLOCK_OFFSET, BLOCK_SIZE, bulkBlock);
+		th.imgIntoBlock(Views.interval(bulk, bulk), BLOCK_OFFSET, BLOCK_SIZE, voxelsBlock);
+		assertArrayEquals(voxelsBlock.array(), bulkBlock.array(), type+" encoded from "+bulk.getClass().getSimpleName());
+	}
+
+	static <T extends NativeType<T> & RealType<T>>
+	Img<T> create(final Imglib2Types.TypeHandler<T> th, final boolean arrayImg) {
+		return arrayImg ? new ArrayImgFactory<>(th.nativeAndRealType).create(IMG_SIZE)
+				: th.createPlanarImgFactory().create(IMG_SIZE);
+	}
+
+	/** random bytes, only the floating point values are chosen not to be NaNs */
+	static ByteBuffer randomValues(final String type, final int bytes) {
+		final Random random = new Random(42);
+		final ByteBuffer b = ByteBuffer.allocate(bytes);
+		if (type.equals("float32")) while (b.remaining() >= 4) b.putFloat(random.nextFloat()*2000-1000);
+		else if (type.equals("float64")) while (b.remaining() >= 8) b.putDouble(random.nextDouble()*2000-1000);
+		else random.nextBytes(b.array());
+		b.rewind();
+		return b;
+	}
+
+	/** the image voxels, in the block format */
+	static <T extends NativeType<T> & RealType<T>>
+	byte[] contentOf(final Imglib2Types.TypeHandler<T> th, final Img<T> img) {
+		final int length = (int)img.size();
+		final byte[] bytes = new byte[length * th.nativeAndRealType.getBitsPerPixel()/8];
+		th.imgIntervalIntoBlock(Views.flatIterable(img), length, bytes);
+		return bytes;
+	}
+}